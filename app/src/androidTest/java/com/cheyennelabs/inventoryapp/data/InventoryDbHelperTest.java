@@ -0,0 +1,184 @@
+package com.cheyennelabs.inventoryapp.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.cheyennelabs.inventoryapp.data.InventoryContract.InventoryEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks every database version and migration path against the frozen schema of each version,
+ * on a real SQLite on the device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class InventoryDbHelperTest {
+
+    private final InventoryDbHelper mDbHelper =
+            new InventoryDbHelper(InstrumentationRegistry.getTargetContext());
+
+    @Test
+    public void everyVersion_matchesItsSchema() throws IOException {
+        for (int version = 1; version <= InventoryDbHelper.getDatabaseVersion(); version++) {
+            SQLiteDatabase db = createDatabaseAt(version);
+            assertEquals("Version " + version, expectedSchema(version), schemaOf(db));
+            db.close();
+        }
+    }
+
+    @Test
+    public void everyUpgradePath_matchesItsSchema() throws IOException {
+        int latest = InventoryDbHelper.getDatabaseVersion();
+        for (int from = 1; from < latest; from++) {
+            for (int to = from + 1; to <= latest; to++) {
+                SQLiteDatabase stepped = createDatabaseAt(from);
+                mDbHelper.onUpgrade(stepped, from, to);
+
+                assertEquals("Upgrade " + from + " -> " + to, expectedSchema(to), schemaOf(stepped));
+                stepped.close();
+            }
+        }
+    }
+
+    @Test
+    public void newDatabase_matchesLatestSchema() throws IOException {
+        SQLiteDatabase created = SQLiteDatabase.create(null);
+        mDbHelper.onCreate(created);
+
+        assertEquals(expectedSchema(InventoryDbHelper.getDatabaseVersion()), schemaOf(created));
+        created.close();
+    }
+
+    @Test
+    public void upgradeFromVersion1_keepsExistingRows() {
+        SQLiteDatabase db = createDatabaseAt(1);
+        db.execSQL("INSERT INTO " + InventoryEntry.TABLE_NAME + " ("
+                + InventoryEntry.COLUMN_INVENTORY_PRODUCT + ", "
+                + InventoryEntry.COLUMN_INVENTORY_PRICE + ", "
+                + InventoryEntry.COLUMN_INVENTORY_QUANTITY + ", "
+                + InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME + ", "
+                + InventoryEntry.COLUMN_INVENTORY_SUPPLIERPHONENUMBER
+                + ") VALUES ('Flipper rubber', 1.5, 12, 'Marco', '5551234');");
+
+        mDbHelper.onUpgrade(db, 1, InventoryDbHelper.getDatabaseVersion());
+
+        Cursor cursor = db.rawQuery("SELECT " + InventoryEntry.COLUMN_INVENTORY_PRODUCT + ", "
+                + InventoryEntry.COLUMN_INVENTORY_QUANTITY + ", "
+                + InventoryEntry.COLUMN_INVENTORY_PRICE + " FROM " + InventoryEntry.TABLE_NAME, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Flipper rubber", cursor.getString(0));
+        assertEquals(12, cursor.getInt(1));
+        // Prices are kept in cents since version 10
+        assertEquals(150, cursor.getLong(2));
+        cursor.close();
+        db.close();
+    }
+
+    /**
+     * Create an in-memory database with the schema of the given version.
+     */
+    private SQLiteDatabase createDatabaseAt(int version) {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        InventoryDbHelper.createBaseSchema(db);
+        mDbHelper.onUpgrade(db, 1, version);
+        return db;
+    }
+
+    /**
+     * Return the frozen schema of the given version, from {@code schemas/<version>.txt} in the
+     * test assets: one line per entry, as {@link #schemaOf} describes it. Once a version has
+     * shipped, its file never changes, so a migration that changes after the fact fails here.
+     */
+    private static List<String> expectedSchema(int version) throws IOException {
+        List<String> schema = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                InstrumentationRegistry.getContext().getAssets().open("schemas/" + version + ".txt"), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    schema.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return schema;
+    }
+
+    /**
+     * Describe every table, view, index and trigger, one line each: the columns of tables and
+     * views with their type, constraints and default, the columns of indexes, and the table of
+     * triggers. The SQL text itself is left out, because SQLite keeps it as it was written, and
+     * the low stock index only has its WHERE clause on SQLite 3.8.0 and later.
+     */
+    private static List<String> schemaOf(SQLiteDatabase db) {
+        List<String> schema = new ArrayList<>();
+        Cursor cursor = db.rawQuery("SELECT type, name, tbl_name FROM sqlite_master"
+                + " WHERE name NOT LIKE 'sqlite_%' ORDER BY type, name", null);
+        while (cursor.moveToNext()) {
+            String type = cursor.getString(0);
+            String name = cursor.getString(1);
+            String table = cursor.getString(2);
+            if ("table".equals(type) || "view".equals(type)) {
+                schema.add(type + " " + name + " (" + columnsOf(db, name) + ")");
+            } else if ("index".equals(type)) {
+                schema.add(type + " " + name + " ON " + table + " (" + indexColumnsOf(db, name) + ")");
+            } else {
+                schema.add(type + " " + name + " ON " + table);
+            }
+        }
+        cursor.close();
+        return schema;
+    }
+
+    private static String columnsOf(SQLiteDatabase db, String table) {
+        StringBuilder columns = new StringBuilder();
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        while (cursor.moveToNext()) {
+            if (columns.length() != 0) {
+                columns.append(", ");
+            }
+            columns.append(cursor.getString(cursor.getColumnIndex("name")));
+            String type = cursor.getString(cursor.getColumnIndex("type"));
+            if (!type.isEmpty()) {
+                columns.append(' ').append(type);
+            }
+            if (cursor.getInt(cursor.getColumnIndex("notnull")) != 0) {
+                columns.append(" NOT NULL");
+            }
+            if (!cursor.isNull(cursor.getColumnIndex("dflt_value"))) {
+                columns.append(" DEFAULT ").append(cursor.getString(cursor.getColumnIndex("dflt_value")));
+            }
+            if (cursor.getInt(cursor.getColumnIndex("pk")) != 0) {
+                columns.append(" PRIMARY KEY");
+            }
+        }
+        cursor.close();
+        return columns.toString();
+    }
+
+    private static String indexColumnsOf(SQLiteDatabase db, String index) {
+        StringBuilder columns = new StringBuilder();
+        Cursor cursor = db.rawQuery("PRAGMA index_info(" + index + ")", null);
+        while (cursor.moveToNext()) {
+            if (columns.length() != 0) {
+                columns.append(", ");
+            }
+            columns.append(cursor.getString(cursor.getColumnIndex("name")));
+        }
+        cursor.close();
+        return columns.toString();
+    }
+}
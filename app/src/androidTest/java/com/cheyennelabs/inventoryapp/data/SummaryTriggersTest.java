@@ -0,0 +1,236 @@
+package com.cheyennelabs.inventoryapp.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.cheyennelabs.inventoryapp.data.InventoryContract.InventoryEntry;
+import com.cheyennelabs.inventoryapp.data.InventoryContract.SummaryEntry;
+import com.cheyennelabs.inventoryapp.data.InventoryContract.SupplierEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the summary row, which the triggers keep up to date one write at a time, always
+ * holds what summing the whole inventory again gives, on a real SQLite on the device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SummaryTriggersTest {
+
+    private final InventoryDbHelper mDbHelper =
+            new InventoryDbHelper(InstrumentationRegistry.getTargetContext());
+
+    @Test
+    public void everyWrite_keepsSummaryExact() {
+        SQLiteDatabase db = createDatabaseAt(InventoryDbHelper.getDatabaseVersion());
+        long supplierId = insertSupplier(db, "Acme");
+        assertSummaryMatches(db, "empty", true);
+
+        long first = insertProduct(db, "Widget", 1250, 3, supplierId, 5);
+        long second = insertProduct(db, "Gadget", 99, 40, supplierId, 10);
+        assertSummaryMatches(db, "insert", true);
+
+        // The way the provider's bulk insert writes: many inserts in one transaction
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < 200; i++) {
+                insertProduct(db, "Part " + i, 10 + i * 7, i % 13, supplierId, i % 9);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        assertSummaryMatches(db, "bulk insert", true);
+
+        ContentValues values = new ContentValues();
+        values.put(InventoryEntry.COLUMN_INVENTORY_PRICE, 1999);
+        db.update(InventoryEntry.TABLE_NAME, values, InventoryEntry._ID + " = " + first, null);
+        assertSummaryMatches(db, "price update", true);
+
+        values = new ContentValues();
+        values.put(InventoryEntry.COLUMN_INVENTORY_QUANTITY, 2);
+        db.update(InventoryEntry.TABLE_NAME, values, InventoryEntry.COLUMN_INVENTORY_QUANTITY + " > 10", null);
+        assertSummaryMatches(db, "quantity update", true);
+
+        // Raising and lowering thresholds moves products in and out of low stock without
+        // touching their quantity
+        values = new ContentValues();
+        values.put(InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD, 0);
+        db.update(InventoryEntry.TABLE_NAME, values, InventoryEntry._ID + " % 2 = 0", null);
+        assertSummaryMatches(db, "lower thresholds", true);
+        values.put(InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD, 50);
+        db.update(InventoryEntry.TABLE_NAME, values, InventoryEntry._ID + " % 3 = 0", null);
+        assertSummaryMatches(db, "raise thresholds", true);
+
+        values = new ContentValues();
+        values.put(InventoryEntry.COLUMN_INVENTORY_PRODUCT, "Widget II");
+        values.put(InventoryEntry.COLUMN_INVENTORY_PRICE, 1500);
+        values.put(InventoryEntry.COLUMN_INVENTORY_QUANTITY, 7);
+        values.put(InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD, 8);
+        db.update(InventoryEntry.TABLE_NAME, values, InventoryEntry._ID + " = " + second, null);
+        assertSummaryMatches(db, "full update", true);
+
+        sell(db, first, 1);
+        sell(db, second, 7);
+        // More than there is, so nothing changes
+        sell(db, second, 1);
+        assertSummaryMatches(db, "sell", true);
+
+        db.delete(InventoryEntry.TABLE_NAME, InventoryEntry._ID + " = " + first, null);
+        assertSummaryMatches(db, "delete", true);
+        db.delete(InventoryEntry.TABLE_NAME, InventoryEntry.COLUMN_INVENTORY_QUANTITY + " < 5", null);
+        assertSummaryMatches(db, "delete by selection", true);
+        db.delete(InventoryEntry.TABLE_NAME, null, null);
+        assertSummaryMatches(db, "delete all", true);
+        db.close();
+    }
+
+    @Test
+    public void fixedThreshold_keepsSummaryExactUntilVersion7() {
+        SQLiteDatabase db = createDatabaseAt(6);
+        // Prices were kept in whole units as REAL, so these add up exactly in binary
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < 50; i++) {
+                ContentValues values = new ContentValues();
+                values.put(InventoryEntry.COLUMN_INVENTORY_PRODUCT, "Part " + i);
+                values.put(InventoryEntry.COLUMN_INVENTORY_PRICE, 0.25 * (i + 1));
+                values.put(InventoryEntry.COLUMN_INVENTORY_QUANTITY, i % 11);
+                values.put(InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME, "Acme");
+                db.insertOrThrow(InventoryEntry.TABLE_NAME, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        assertSummaryMatches(db, "insert", false);
+
+        ContentValues values = new ContentValues();
+        values.put(InventoryEntry.COLUMN_INVENTORY_QUANTITY, 9);
+        db.update(InventoryEntry.TABLE_NAME, values, InventoryEntry.COLUMN_INVENTORY_QUANTITY + " < 3", null);
+        values = new ContentValues();
+        values.put(InventoryEntry.COLUMN_INVENTORY_PRICE, 4.5);
+        db.update(InventoryEntry.TABLE_NAME, values, InventoryEntry._ID + " % 4 = 0", null);
+        assertSummaryMatches(db, "update", false);
+
+        db.delete(InventoryEntry.TABLE_NAME, InventoryEntry._ID + " % 5 = 0", null);
+        assertSummaryMatches(db, "delete", false);
+
+        // Version 7 counts low stock against each product's own threshold
+        mDbHelper.onUpgrade(db, 6, 7);
+        assertSummaryMatches(db, "upgrade to 7", true);
+        values = new ContentValues();
+        values.put(InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD, 9);
+        db.update(InventoryEntry.TABLE_NAME, values, InventoryEntry._ID + " % 3 = 0", null);
+        assertSummaryMatches(db, "threshold update", true);
+        db.close();
+    }
+
+    @Test
+    public void upgradeTo10_rebuildsSummaryInCents() {
+        SQLiteDatabase db = createDatabaseAt(9);
+        long supplierId = insertSupplier(db, "Acme");
+        ContentValues values = new ContentValues();
+        values.put(InventoryEntry.COLUMN_INVENTORY_SUPPLIER_ID, supplierId);
+        // Prices that are not exact in binary, which the upgrade rounds to cents
+        for (int i = 0; i < 100; i++) {
+            values.put(InventoryEntry.COLUMN_INVENTORY_PRODUCT, "Part " + i);
+            values.put(InventoryEntry.COLUMN_INVENTORY_PRICE, 0.1 + i * 0.01);
+            values.put(InventoryEntry.COLUMN_INVENTORY_QUANTITY, i % 7);
+            values.put(InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD, i % 5);
+            db.insertOrThrow(InventoryEntry.TABLE_NAME, null, values);
+        }
+
+        mDbHelper.onUpgrade(db, 9, 10);
+        assertSummaryMatches(db, "upgrade to 10", true);
+
+        sell(db, 2, 1);
+        db.delete(InventoryEntry.TABLE_NAME, InventoryEntry._ID + " = 3", null);
+        assertSummaryMatches(db, "write after upgrade", true);
+        db.close();
+    }
+
+    /**
+     * Create an in-memory database with the schema of the given version.
+     */
+    private SQLiteDatabase createDatabaseAt(int version) {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        InventoryDbHelper.createBaseSchema(db);
+        mDbHelper.onUpgrade(db, 1, version);
+        return db;
+    }
+
+    private static long insertSupplier(SQLiteDatabase db, String name) {
+        ContentValues values = new ContentValues();
+        values.put(SupplierEntry.COLUMN_NAME, name);
+        values.put(SupplierEntry.COLUMN_PHONE_NUMBER, "555-0100");
+        return db.insertOrThrow(SupplierEntry.TABLE_NAME, null, values);
+    }
+
+    private static long insertProduct(SQLiteDatabase db, String name, long price, int quantity,
+                                      long supplierId, int reorderThreshold) {
+        ContentValues values = new ContentValues();
+        values.put(InventoryEntry.COLUMN_INVENTORY_PRODUCT, name);
+        values.put(InventoryEntry.COLUMN_INVENTORY_PRICE, price);
+        values.put(InventoryEntry.COLUMN_INVENTORY_QUANTITY, quantity);
+        values.put(InventoryEntry.COLUMN_INVENTORY_SUPPLIER_ID, supplierId);
+        values.put(InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD, reorderThreshold);
+        return db.insertOrThrow(InventoryEntry.TABLE_NAME, null, values);
+    }
+
+    /**
+     * Sell the way {@link InventoryStatements#sell} does: only if there are enough.
+     */
+    private static void sell(SQLiteDatabase db, long id, int count) {
+        db.execSQL("UPDATE " + InventoryEntry.TABLE_NAME + " SET "
+                + InventoryEntry.COLUMN_INVENTORY_QUANTITY + " = " + InventoryEntry.COLUMN_INVENTORY_QUANTITY + " - ?"
+                + " WHERE " + InventoryEntry._ID + " = ? AND " + InventoryEntry.COLUMN_INVENTORY_QUANTITY + " >= ?",
+                new Object[]{count, id, count});
+    }
+
+    /**
+     * Assert that the summary row holds the totals of the inventory, summed again from every
+     * row. Low stock is below each product's own threshold, or below the default threshold for
+     * the schema from before there was one.
+     */
+    private static void assertSummaryMatches(SQLiteDatabase db, String after, boolean perProductThreshold) {
+        Cursor cursor = db.rawQuery("SELECT "
+                + "IFNULL(SUM(" + InventoryEntry.COLUMN_INVENTORY_PRICE + " * "
+                + InventoryEntry.COLUMN_INVENTORY_QUANTITY + "), 0), "
+                + "IFNULL(SUM(" + InventoryEntry.COLUMN_INVENTORY_QUANTITY + "), 0), "
+                + "COUNT(*), "
+                + "IFNULL(SUM(" + InventoryEntry.COLUMN_INVENTORY_QUANTITY + " < "
+                + (perProductThreshold ? InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD
+                : String.valueOf(InventoryEntry.DEFAULT_REORDER_THRESHOLD)) + "), 0) FROM "
+                + InventoryEntry.TABLE_NAME, null);
+        assertTrue(cursor.moveToFirst());
+        double[] expected = {cursor.getDouble(0), cursor.getLong(1), cursor.getLong(2), cursor.getLong(3)};
+        cursor.close();
+
+        double[] summary = summaryOf(db);
+        assertEquals("Stock value after " + after, expected[0], summary[0], 0);
+        assertEquals("Units after " + after, expected[1], summary[1], 0);
+        assertEquals("Products after " + after, expected[2], summary[2], 0);
+        assertEquals("Low stock after " + after, expected[3], summary[3], 0);
+    }
+
+    /**
+     * Return the stock value, units, products and low stock count of the summary row.
+     */
+    private static double[] summaryOf(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT " + SummaryEntry.COLUMN_STOCK_VALUE + ", "
+                + SummaryEntry.COLUMN_UNITS + ", "
+                + SummaryEntry.COLUMN_PRODUCTS + ", "
+                + SummaryEntry.COLUMN_LOW_STOCK + " FROM " + SummaryEntry.TABLE_NAME
+                + " WHERE " + SummaryEntry._ID + " = " + SummaryEntry.ROW_ID, null);
+        assertTrue(cursor.moveToFirst());
+        double[] summary = {cursor.getDouble(0), cursor.getLong(1), cursor.getLong(2), cursor.getLong(3)};
+        cursor.close();
+        return summary;
+    }
+}
@@ -0,0 +1,65 @@
+package com.cheyennelabs.inventoryapp;
+
+import android.os.Bundle;
+import android.support.v7.app.AppCompatActivity;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+
+import com.cheyennelabs.inventoryapp.data.InventoryContract;
+import com.cheyennelabs.inventoryapp.data.InventoryContract.InventoryEntry;
+
+/**
+ * Debug builds only: shows what the provider has done since it started, per URI and call
+ * method, to find out why the list is slow on a device. These are the same metrics as
+ * {@code adb shell dumpsys activity provider com.cheyennelabs.inventoryapp/.data.InventoryProvider}.
+ */
+public class MetricsActivity extends AppCompatActivity {
+
+    private TextView mMetricsTextView;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_metrics);
+        mMetricsTextView = (TextView) findViewById(R.id.metrics_text);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        showMetrics(false);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_metrics, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case R.id.action_refresh:
+                showMetrics(false);
+                return true;
+            case R.id.action_reset:
+                // Show what is cleared one last time, so nothing is lost by accident
+                showMetrics(true);
+                return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    /**
+     * Read the metrics from the provider and show them, clearing them afterwards if asked to.
+     * They are kept in memory, so reading them on the main thread is quick.
+     */
+    private void showMetrics(boolean reset) {
+        Bundle extras = new Bundle();
+        extras.putBoolean(InventoryContract.EXTRA_RESET, reset);
+        Bundle result = getContentResolver().call(InventoryEntry.CONTENT_URI,
+                InventoryContract.METHOD_METRICS, null, extras);
+        mMetricsTextView.setText(result == null ? null : result.getString(InventoryContract.EXTRA_METRICS));
+    }
+}
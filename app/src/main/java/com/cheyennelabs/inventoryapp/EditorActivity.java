@@ -26,8 +26,10 @@ import android.widget.Spinner;
 import android.widget.Toast;
 
 
+import com.cheyennelabs.inventoryapp.core.StockEngine;
 import com.cheyennelabs.inventoryapp.data.InventoryContract.InventoryEntry;
 import com.cheyennelabs.inventoryapp.data.InventoryDbHelper;
+import com.cheyennelabs.inventoryapp.data.Prices;
 
 
 public class EditorActivity extends AppCompatActivity
@@ -50,6 +52,8 @@ public class EditorActivity extends AppCompatActivity
 
     private EditText mQuantityEditText;
 
+    private EditText mReorderThresholdEditText;
+
     private boolean mInventoryHasChanged = false;
 
     private Button mIncreaseQuantityButton;
@@ -115,6 +119,7 @@ public class EditorActivity extends AppCompatActivity
         mSupplierNameEditText = (EditText) findViewById(R.id.edit_supplier_name);
         mPhoneEditText = (EditText) findViewById(R.id.edit_supplier_number);
         mQuantityEditText = (EditText) findViewById(R.id.edit_quantity_text);
+        mReorderThresholdEditText = (EditText) findViewById(R.id.edit_reorder_threshold);
         mIncreaseQuantityButton = (Button) findViewById(R.id.increase_quantity_btn);
         mDecreaseQuantityButton = (Button) findViewById(R.id.decrease_quantity_btn);
 
@@ -127,6 +132,7 @@ public class EditorActivity extends AppCompatActivity
         mSupplierNameEditText.setOnTouchListener(mTouchListener);
         mPhoneEditText.setOnTouchListener(mTouchListener);
         mQuantityEditText.setOnTouchListener(mTouchListener);
+        mReorderThresholdEditText.setOnTouchListener(mTouchListener);
 
         // Create two buttons - pulled in the Resources themselves to make sure we get the correct values
         // Change the quantity unless it's going negative, make a toast.
@@ -141,10 +147,11 @@ public class EditorActivity extends AppCompatActivity
                     Toast.makeText(getApplicationContext() , getString(R.string.nonulls_quantity_toast),
                             Toast.LENGTH_SHORT).show();
                 }
-                if (quantity <= 0) {
+                quantity = StockEngine.step(quantity, -1);
+                if (quantity == StockEngine.NOT_ENOUGH_STOCK) {
                     Toast.makeText(EditorActivity.this, "You must have a positive Quantity", Toast.LENGTH_SHORT).show();
                 } else {
-                    mQuantityEditTextTemp.setText(String.valueOf(--quantity));
+                    mQuantityEditTextTemp.setText(String.valueOf(quantity));
                 }
             }
         });
@@ -160,8 +167,9 @@ public class EditorActivity extends AppCompatActivity
                 Toast.makeText(getApplicationContext() , getString(R.string.nonulls_quantity_toast),
                         Toast.LENGTH_SHORT).show();
             }
-                if (quantity >= 0) {
-                    mQuantityEditTextTemp.setText(String.valueOf(++quantity));
+                quantity = StockEngine.step(quantity, 1);
+                if (quantity != StockEngine.NOT_ENOUGH_STOCK) {
+                    mQuantityEditTextTemp.setText(String.valueOf(quantity));
                 }
             }
         });
@@ -182,6 +190,10 @@ public class EditorActivity extends AppCompatActivity
             Toast.makeText(this, getString(R.string.required_price_toast),
                     Toast.LENGTH_SHORT).show();
             return false;
+        } else if (!isValidPrice(mPriceEditText.getText().toString())) {
+            Toast.makeText(this, getString(R.string.invalid_price_toast),
+                    Toast.LENGTH_SHORT).show();
+            return false;
         } else if (TextUtils.isEmpty(mSupplierNameEditText.getText().toString().trim())) {
             Toast.makeText(this, getString(R.string.required_supplier_toast),
                     Toast.LENGTH_SHORT).show();
@@ -200,6 +212,18 @@ public class EditorActivity extends AppCompatActivity
     }
 
 
+    /**
+     * Return true if the text is a price that can be stored: a number, not negative, such as
+     * "12.50".
+     */
+    private static boolean isValidPrice(String text) {
+        try {
+            return Prices.parse(text) >= 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
     /**
      * Get user input from editor and save product into database.
      */
@@ -211,6 +235,10 @@ public class EditorActivity extends AppCompatActivity
         String supplierNameString = mSupplierNameEditText.getText().toString().trim();
         String phoneString = mPhoneEditText.getText().toString().trim();
         int quantityInt = Integer.parseInt(mQuantityEditText.getText().toString());
+        String reorderThresholdString = mReorderThresholdEditText.getText().toString().trim();
+        // An empty threshold means the default one
+        int reorderThresholdInt = TextUtils.isEmpty(reorderThresholdString)
+                ? InventoryEntry.DEFAULT_REORDER_THRESHOLD : Integer.parseInt(reorderThresholdString);
 
         // Check if this is supposed to be a new product
         // and check if all the fields in the editor are blank
@@ -227,10 +255,12 @@ public class EditorActivity extends AppCompatActivity
         // and product attributes from the editor are the values.
         ContentValues values = new ContentValues();
         values.put(InventoryEntry.COLUMN_INVENTORY_PRODUCT, productString);
-        values.put(InventoryEntry.COLUMN_INVENTORY_PRICE, priceString);
+        // The provider keeps prices in cents
+        values.put(InventoryEntry.COLUMN_INVENTORY_PRICE, Prices.parse(priceString));
         values.put(InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME, supplierNameString);
         values.put(InventoryEntry.COLUMN_INVENTORY_SUPPLIERPHONENUMBER, phoneString);
         values.put(InventoryEntry.COLUMN_INVENTORY_QUANTITY, quantityInt);
+        values.put(InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD, reorderThresholdInt);
 
 
         // Determine if this is a new or existing product by checking if mCurrentInventoryUri is null or not
@@ -376,7 +406,8 @@ public class EditorActivity extends AppCompatActivity
                 InventoryEntry.COLUMN_INVENTORY_PRICE,
                 InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME,
                 InventoryEntry.COLUMN_INVENTORY_SUPPLIERPHONENUMBER,
-                InventoryEntry.COLUMN_INVENTORY_QUANTITY};
+                InventoryEntry.COLUMN_INVENTORY_QUANTITY,
+                InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD};
 
         // This loader will execute the ContentProvider's query method on a background thread
         return new CursorLoader(this,   // Parent activity context
@@ -403,13 +434,15 @@ public class EditorActivity extends AppCompatActivity
             int suppliernameColumnIndex = cursor.getColumnIndex(InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME);
             int supplierphoneColumnIndex = cursor.getColumnIndex(InventoryEntry.COLUMN_INVENTORY_SUPPLIERPHONENUMBER);
             int quantityColumnIndex = cursor.getColumnIndex(InventoryEntry.COLUMN_INVENTORY_QUANTITY);
+            int reorderThresholdColumnIndex = cursor.getColumnIndex(InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD);
 
             // Extract out the value from the Cursor for the given column index
             String name = cursor.getString(nameColumnIndex);
-            String price = cursor.getString(priceColumnIndex);
+            String price = Prices.toString(cursor.getLong(priceColumnIndex));
             String suppliername = cursor.getString(suppliernameColumnIndex);
             String supplierphone = cursor.getString(supplierphoneColumnIndex);
             String quantity = cursor.getString(quantityColumnIndex);
+            String reorderThreshold = cursor.getString(reorderThresholdColumnIndex);
 
             // Update the views on the screen with the values from the database
             mProductEditText.setText(name);
@@ -417,6 +450,7 @@ public class EditorActivity extends AppCompatActivity
             mSupplierNameEditText.setText(suppliername);
             mPhoneEditText.setText(supplierphone);
             mQuantityEditText.setText(quantity);
+            mReorderThresholdEditText.setText(reorderThreshold);
         }
     }
 
@@ -428,6 +462,7 @@ public class EditorActivity extends AppCompatActivity
         mSupplierNameEditText.setText("");
         mPhoneEditText.setText("");
         mQuantityEditText.setText("");
+        mReorderThresholdEditText.setText("");
     }
 
     /**
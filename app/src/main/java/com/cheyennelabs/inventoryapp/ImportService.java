@@ -0,0 +1,205 @@
+package com.cheyennelabs.inventoryapp;
+
+import android.app.IntentService;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.provider.OpenableColumns;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+
+import com.cheyennelabs.inventoryapp.data.InventoryImporter;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Imports a CSV file of products in the background with {@link InventoryImporter}, showing its
+ * progress in a notification that can cancel it. Start it with the content URI of the file as the
+ * intent data. Imports that are started while one is running wait for it to finish.
+ */
+public class ImportService extends IntentService {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = ImportService.class.getSimpleName();
+
+    /**
+     * Action of the intent that cancels the running import
+     */
+    private static final String ACTION_CANCEL = "com.cheyennelabs.inventoryapp.action.CANCEL_IMPORT";
+
+    private static final String CHANNEL_ID = "import";
+
+    private static final int NOTIFICATION_ID = 1;
+
+    /**
+     * Update the progress notification at most this often, in milliseconds
+     */
+    private static final long PROGRESS_INTERVAL_MS = 500;
+
+    /**
+     * Number of rejected rows listed in the notification at the end. The rest are only logged.
+     */
+    private static final int MAX_LISTED_REJECTIONS = 5;
+
+    /**
+     * The import that is running, or null
+     */
+    private volatile InventoryImporter mImporter;
+
+    public ImportService() {
+        super("ImportService");
+    }
+
+    /**
+     * Import the CSV file with the given content URI.
+     */
+    public static void start(Context context, Uri file) {
+        Intent intent = new Intent(context, ImportService.class);
+        intent.setData(file);
+        // Pass on our permission to read the file
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        context.startService(intent);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Cancel right away instead of waiting in the queue behind the import
+        if (intent != null && ACTION_CANCEL.equals(intent.getAction())) {
+            InventoryImporter importer = mImporter;
+            if (importer != null) {
+                importer.cancel();
+            }
+        }
+        return super.onStartCommand(intent, flags, startId);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (intent == null || ACTION_CANCEL.equals(intent.getAction()) || intent.getData() == null) {
+            return;
+        }
+        Uri file = intent.getData();
+        final long size = fileSize(file);
+
+        createChannel();
+        final NotificationManager notificationManager =
+                (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        final NotificationCompat.Builder progress = new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_shopping_cart_black_24dp)
+                .setContentTitle(getString(R.string.import_running))
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .setProgress(0, 0, true)
+                .addAction(0, getString(R.string.cancel), PendingIntent.getService(this, 0,
+                        new Intent(this, ImportService.class).setAction(ACTION_CANCEL), 0));
+        startForeground(NOTIFICATION_ID, progress.build());
+
+        final StringBuilder rejections = new StringBuilder();
+        InventoryImporter importer = new InventoryImporter(getContentResolver());
+        mImporter = importer;
+        InventoryImporter.Result result = null;
+        InputStream in = null;
+        try {
+            in = getContentResolver().openInputStream(file);
+            if (in == null) {
+                throw new IOException("Cannot open " + file);
+            }
+            result = importer.importCsv(in, new InventoryImporter.Listener() {
+                private long mLastUpdate;
+                private int mListed;
+
+                @Override
+                public void onProgress(long bytesRead, int imported, int rejected) {
+                    long now = SystemClock.uptimeMillis();
+                    if (now - mLastUpdate < PROGRESS_INTERVAL_MS) {
+                        return;
+                    }
+                    mLastUpdate = now;
+                    if (size > 0) {
+                        progress.setProgress(1000, (int) (1000 * Math.min(bytesRead, size) / size), false);
+                    }
+                    progress.setContentText(getString(R.string.import_counts, imported, rejected));
+                    notificationManager.notify(NOTIFICATION_ID, progress.build());
+                }
+
+                @Override
+                public void onRowRejected(int line, String reason) {
+                    Log.w(LOG_TAG, "Rejected line " + line + ": " + reason);
+                    if (mListed < MAX_LISTED_REJECTIONS) {
+                        mListed++;
+                        rejections.append('\n').append(getString(R.string.import_rejected_line, line, reason));
+                    }
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to import " + file, e);
+            rejections.insert(0, e.getMessage());
+        } finally {
+            mImporter = null;
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing left to read from it anyway
+                }
+            }
+        }
+
+        // Replace the progress with the outcome, which stays after the service stops
+        stopForeground(true);
+        NotificationCompat.Builder done = new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_shopping_cart_black_24dp)
+                .setAutoCancel(true)
+                .setContentIntent(PendingIntent.getActivity(this, 0,
+                        new Intent(this, InventoryActivity.class), 0));
+        if (result == null) {
+            done.setContentTitle(getString(R.string.import_failed));
+            done.setContentText(rejections.toString().trim());
+        } else {
+            String counts = getString(R.string.import_counts, result.imported, result.rejected);
+            done.setContentTitle(getString(result.cancelled ? R.string.import_cancelled : R.string.import_finished));
+            done.setContentText(counts);
+            done.setStyle(new NotificationCompat.BigTextStyle().bigText(counts + rejections));
+        }
+        notificationManager.notify(NOTIFICATION_ID, done.build());
+    }
+
+    /**
+     * Return the size of the file in bytes, or -1 if it is not known.
+     */
+    private long fileSize(Uri file) {
+        Cursor cursor = null;
+        try {
+            cursor = getContentResolver().query(file, new String[]{OpenableColumns.SIZE}, null, null, null);
+            if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getLong(0);
+            }
+        } catch (RuntimeException e) {
+            // Not every provider answers this; the progress bar just won't move
+            Log.w(LOG_TAG, "Cannot get the size of " + file, e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return -1;
+    }
+
+    private void createChannel() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationManager notificationManager =
+                    (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            notificationManager.createNotificationChannel(new NotificationChannel(CHANNEL_ID,
+                    getString(R.string.import_channel), NotificationManager.IMPORTANCE_LOW));
+        }
+    }
+}
@@ -14,35 +14,144 @@ import android.content.ContentValues;
 import android.content.CursorLoader;
 import android.content.Intent;
 import android.content.Loader;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.MergeCursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
+import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.cheyennelabs.inventoryapp.data.InventoryContract;
 import com.cheyennelabs.inventoryapp.data.InventoryContract.InventoryEntry;
 
+import java.util.ArrayList;
+import java.util.List;
+
 // Main activty class.   Most core logic carried out here, as well as TextViews
 
 public class InventoryActivity extends AppCompatActivity implements
         LoaderManager.LoaderCallbacks<Cursor> {
     // required for Loader
 
-    private static final int INVENTORY_LOADER = 0;
+    // Each page of the list has its own loader, with the page number as the loader ID
+
+    private static final int FIRST_PAGE_LOADER = 0;
+
+    private static final int SEARCH_LOADER = -1;
+
+    /**
+     * How long to wait after the last keystroke before searching, in milliseconds
+     */
+    private static final long SEARCH_DELAY_MS = 250;
+
+    /**
+     * Most search results to show
+     */
+    private static final int SEARCH_LIMIT = 100;
+
+    /**
+     * Number of rows in each page of the list
+     */
+    private static final int PAGE_SIZE = 50;
+
+    /**
+     * Request code for picking a CSV file to import
+     */
+    private static final int PICK_IMPORT_FILE = 1;
 
     /**
      * Adapter for the ListView
      */
     InventoryCursorAdapter mCursorAdapter;
 
+    /**
+     * The pages loaded so far, by page number. The list shows them merged in order.
+     */
+    private final SparseArray<Cursor> mPages = new SparseArray<>();
+
+    /**
+     * The loader arguments each page was started with, by page number. They hold the key of the
+     * last row of the page before it.
+     */
+    private final SparseArray<Bundle> mPageArgs = new SparseArray<>();
+
+    /**
+     * The loader arguments of the page after each loaded page, by page number. They are worked
+     * out as soon as a page loads, because the adapter reads the page cursors on a thread of its
+     * own after that.
+     */
+    private final SparseArray<Bundle> mNextPageArgs = new SparseArray<>();
+
+    /**
+     * Number of the last page, once a page came back short. -1 while there could be more rows.
+     */
+    private int mLastPage = -1;
+
+    /**
+     * True if the list only shows the products below their reorder threshold.
+     */
+    private boolean mLowStockOnly;
+
+    /**
+     * Text currently being searched for, or null when the whole list is shown.
+     */
+    private String mSearchQuery;
+
+    /**
+     * Text typed into the search box that hasn't been searched for yet.
+     */
+    private String mPendingSearchQuery;
+
+    private final Handler mSearchHandler = new Handler();
+
+    /**
+     * Patches the list when the provider announces a change to a single row. Changes to many
+     * rows at once reload the pages through their own loaders instead.
+     */
+    private final ContentObserver mRowObserver = new ContentObserver(new Handler()) {
+        @Override
+        public void onChange(boolean selfChange) {
+            // Older devices don't tell us which row changed
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            String change = uri == null ? null : uri.getQueryParameter(InventoryContract.QUERY_PARAMETER_CHANGE);
+            if (change == null) {
+                if (uri == null) {
+                    reloadPages();
+                }
+                return;
+            }
+            mCursorAdapter.onRowChanged(ContentUris.parseId(uri), change, mSearchQuery == null,
+                    mLastPage != -1);
+        }
+    };
+
+    /**
+     * Runs the search once the user has stopped typing for {@link #SEARCH_DELAY_MS}.
+     */
+    private final Runnable mSearchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            search(mPendingSearchQuery);
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -58,22 +167,16 @@ public class InventoryActivity extends AppCompatActivity implements
             }
         });
 
-        // Find the ListView which will be populated with the inventory data
-        ListView productListView = (ListView) findViewById(R.id.list);
-
-        // Find and set empty view on the ListView, so that it only shows when the list has 0 items.
-        View emptyView = findViewById(R.id.empty_view);
-        productListView.setEmptyView(emptyView);
+        // Find the RecyclerView which will be populated with the inventory data
+        RecyclerView productListView = (RecyclerView) findViewById(R.id.list);
+        final LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        productListView.setLayoutManager(layoutManager);
 
         // Setup an Adapter to create a list item for each row of inventory data in the Cursor.
-        // There is no inventory data yet (until the loader finishes) so pass in null for the Cursor.
-        mCursorAdapter = new InventoryCursorAdapter(this, null);
-        productListView.setAdapter(mCursorAdapter);
-
-        // Setup the item click listener
-        productListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        // There is no inventory data yet (until the loader finishes).
+        mCursorAdapter = new InventoryCursorAdapter(this, new InventoryCursorAdapter.OnItemClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> productView, View view, int position, long id) {
+            public void onItemClick(long id) {
                 // Create new intent to go to {@link EditorActivity}
                 Intent intent = new Intent(InventoryActivity.this, EditorActivity.class);
 
@@ -88,46 +191,328 @@ public class InventoryActivity extends AppCompatActivity implements
                 startActivity(intent);
             }
         });
+        productListView.setAdapter(mCursorAdapter);
+
+        // Find the empty view, and only show it when the list has 0 items.
+        final View emptyView = findViewById(R.id.empty_view);
+        mCursorAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onChanged() {
+                emptyView.setVisibility(mCursorAdapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
+            }
+
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                onChanged();
+            }
+
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                onChanged();
+            }
+        });
+
+        // Load the next page when the user gets near the end of what has been loaded so far
+        productListView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                if (mSearchQuery == null && layoutManager.findLastVisibleItemPosition()
+                        >= mCursorAdapter.getItemCount() - PAGE_SIZE / 2) {
+                    loadNextPage();
+                }
+            }
+        });
+
+        // Listen for changes to single rows
+        getContentResolver().registerContentObserver(InventoryEntry.CONTENT_URI, true, mRowObserver);
+
+        // Kick off the loader for the first page
+        mPageArgs.put(FIRST_PAGE_LOADER, new Bundle());
+        getLoaderManager().initLoader(FIRST_PAGE_LOADER, mPageArgs.get(FIRST_PAGE_LOADER), this);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mSearchHandler.removeCallbacks(mSearchRunnable);
+        getContentResolver().unregisterContentObserver(mRowObserver);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        // Inflate the menu options from the res/menu/menu_inventory.xml file.
+        getMenuInflater().inflate(R.menu.menu_inventory, menu);
+
+        // Search as the user types, but only once they pause, so we don't run a query per key
+        SearchView searchView = (SearchView) menu.findItem(R.id.action_search).getActionView();
+        searchView.setQueryHint(getString(R.string.search_hint));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                mSearchHandler.removeCallbacks(mSearchRunnable);
+                search(query);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                mPendingSearchQuery = newText;
+                mSearchHandler.removeCallbacks(mSearchRunnable);
+                mSearchHandler.postDelayed(mSearchRunnable, SEARCH_DELAY_MS);
+                return true;
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.action_low_stock) {
+            // Switch between all products and the ones low on stock, starting from the first page
+            mLowStockOnly = !item.isChecked();
+            item.setChecked(mLowStockOnly);
+            mCursorAdapter.setLowStockOnly(mLowStockOnly);
+            mLastPage = -1;
+            dropPagesAfter(FIRST_PAGE_LOADER);
+            startPage(FIRST_PAGE_LOADER, new Bundle());
+            return true;
+        }
+        if (item.getItemId() == R.id.action_import) {
+            // Let the user pick a CSV file, such as a supplier's price list
+            Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+            intent.addCategory(Intent.CATEGORY_OPENABLE);
+            intent.setType("*/*");
+            intent.putExtra(Intent.EXTRA_MIME_TYPES,
+                    new String[]{"text/csv", "text/comma-separated-values", "text/plain"});
+            startActivityForResult(intent, PICK_IMPORT_FILE);
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode == PICK_IMPORT_FILE) {
+            if (resultCode == RESULT_OK && data != null && data.getData() != null) {
+                // Runs in the background; the list reloads as the rows come in
+                ImportService.start(this, data.getData());
+                Toast.makeText(this, R.string.import_started, Toast.LENGTH_SHORT).show();
+            }
+            return;
+        }
+        super.onActivityResult(requestCode, resultCode, data);
+    }
+
+    /**
+     * Show the search results for the given text, or the whole list again if it is empty.
+     * Restarting the search loader cancels a search that is still running for older text.
+     */
+    private void search(String query) {
+        query = query == null ? "" : query.trim();
+        if (query.isEmpty()) {
+            if (mSearchQuery != null) {
+                // Show the list again before the search loader closes its cursor
+                mSearchQuery = null;
+                showPages();
+                getLoaderManager().destroyLoader(SEARCH_LOADER);
+            }
+            return;
+        }
+        if (query.equals(mSearchQuery)) {
+            return;
+        }
+        mSearchQuery = query;
+        Bundle args = new Bundle();
+        args.putString(InventoryContract.QUERY_PARAMETER_SEARCH, query);
+        getLoaderManager().restartLoader(SEARCH_LOADER, args, this);
+    }
+
+    /**
+     * Start loading the page after the last one that has been loaded, unless that page is already
+     * loading or the end of the table has been reached.
+     */
+    private void loadNextPage() {
+        int lastLoaded = FIRST_PAGE_LOADER - 1;
+        while (mPages.get(lastLoaded + 1) != null) {
+            lastLoaded++;
+        }
+        if (lastLoaded < FIRST_PAGE_LOADER || mLastPage != -1 || mPageArgs.get(lastLoaded + 1) != null) {
+            return;
+        }
+        startPage(lastLoaded + 1, mNextPageArgs.get(lastLoaded));
+    }
+
+    /**
+     * Start (or restart) the loader of the given page with the given arguments.
+     */
+    private void startPage(int page, Bundle args) {
+        mPageArgs.put(page, args);
+        getLoaderManager().restartLoader(page, args, this);
+    }
+
+    /**
+     * Build the loader arguments of the page that follows the given page cursor.
+     */
+    private static Bundle pageArgsAfter(Cursor page) {
+        Bundle args = new Bundle();
+        if (page.moveToLast()) {
+            args.putString(InventoryContract.QUERY_PARAMETER_AFTER_PRODUCT,
+                    page.getString(page.getColumnIndex(InventoryEntry.COLUMN_INVENTORY_PRODUCT)));
+            args.putLong(InventoryContract.QUERY_PARAMETER_AFTER_ID,
+                    page.getLong(page.getColumnIndex(InventoryEntry._ID)));
+        }
+        return args;
+    }
+
+    /**
+     * Stop loading every page after the given one and forget about them.
+     */
+    private void dropPagesAfter(int page) {
+        for (int i = mPageArgs.size() - 1; i >= 0; i--) {
+            int key = mPageArgs.keyAt(i);
+            if (key > page) {
+                mPageArgs.remove(key);
+                mPages.remove(key);
+                mNextPageArgs.remove(key);
+            }
+        }
+        // Show the remaining pages before the dropped loaders close their cursors
+        showPages();
+        for (int key = page + 1; getLoaderManager().getLoader(key) != null; key++) {
+            getLoaderManager().destroyLoader(key);
+        }
+    }
+
+    /**
+     * Reload every page that has been loaded, and the search results if they are showing.
+     */
+    private void reloadPages() {
+        for (int i = 0; i < mPageArgs.size(); i++) {
+            Loader<Cursor> loader = getLoaderManager().getLoader(mPageArgs.keyAt(i));
+            if (loader != null) {
+                loader.onContentChanged();
+            }
+        }
+        Loader<Cursor> searchLoader = getLoaderManager().getLoader(SEARCH_LOADER);
+        if (searchLoader != null) {
+            searchLoader.onContentChanged();
+        }
+    }
 
-        // Kick off the loader
-        getLoaderManager().initLoader(INVENTORY_LOADER, null, this);
+    /**
+     * Hand the adapter every page that has been loaded in order, up to the first gap.
+     */
+    private void showPages() {
+        if (mSearchQuery != null) {
+            // The search results are showing, they will be swapped out when the search is cleared
+            return;
+        }
+        List<Cursor> pages = new ArrayList<>();
+        for (int page = FIRST_PAGE_LOADER; mPages.get(page) != null; page++) {
+            pages.add(mPages.get(page));
+        }
+        mCursorAdapter.swapCursor(pages.isEmpty() ? null
+                : new MergeCursor(pages.toArray(new Cursor[pages.size()])));
     }
 
 
     @Override
-    public Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
+    public Loader<Cursor> onCreateLoader(int page, Bundle args) {
         // Define a projection that specifies the columns from the table we care about.
-        String[] projection = {
-                InventoryEntry._ID,
-                InventoryEntry.COLUMN_INVENTORY_PRODUCT,
-                InventoryEntry.COLUMN_INVENTORY_PRICE,
-                InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME,
-                InventoryEntry.COLUMN_INVENTORY_SUPPLIERPHONENUMBER,
-                InventoryEntry.COLUMN_INVENTORY_QUANTITY};
+        String[] projection = InventoryCursorAdapter.PROJECTION;
+
+        if (page == SEARCH_LOADER) {
+            // The search loader queries the full-text search for the best matches
+            Uri searchUri = InventoryEntry.SEARCH_URI.buildUpon()
+                    .appendQueryParameter(InventoryContract.QUERY_PARAMETER_SEARCH,
+                            args.getString(InventoryContract.QUERY_PARAMETER_SEARCH))
+                    .appendQueryParameter(InventoryContract.QUERY_PARAMETER_LIMIT, String.valueOf(SEARCH_LIMIT))
+                    .build();
+            return new CursorLoader(this, searchUri, projection, null, null, null);
+        }
+
+        // Ask for a single page, starting after the last row of the previous page
+        Uri listUri = mLowStockOnly ? InventoryEntry.LOW_STOCK_URI : InventoryEntry.LIST_URI;
+        Uri.Builder pageUri = listUri.buildUpon()
+                .appendQueryParameter(InventoryContract.QUERY_PARAMETER_LIMIT, String.valueOf(PAGE_SIZE));
+        if (args.containsKey(InventoryContract.QUERY_PARAMETER_AFTER_ID)) {
+            pageUri.appendQueryParameter(InventoryContract.QUERY_PARAMETER_AFTER_PRODUCT,
+                    args.getString(InventoryContract.QUERY_PARAMETER_AFTER_PRODUCT));
+            pageUri.appendQueryParameter(InventoryContract.QUERY_PARAMETER_AFTER_ID,
+                    String.valueOf(args.getLong(InventoryContract.QUERY_PARAMETER_AFTER_ID)));
+        }
 
         // This loader will execute the ContentProvider's query method on a background thread
         return new CursorLoader(this,   // Parent activity context
-                InventoryEntry.CONTENT_URI,   // Provider content URI to query
+                pageUri.build(),        // Provider content URI for this page
                 projection,             // Columns to include in the resulting Cursor
                 null,                   // No selection clause
                 null,                   // No selection arguments
-                null);                  // Default sort order
+                null);                  // Page sort order
     }
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        // Update {@link InventoryCursorAdapter} with this new cursor containing updated Inventory data
-        mCursorAdapter.swapCursor(data);
+        int page = loader.getId();
+        if (page == SEARCH_LOADER) {
+            // Show the search results in place of the list
+            mCursorAdapter.swapCursor(data);
+            return;
+        }
+        // A page loaded for the first time right after the others is simply added to the end
+        // of the list. Anything else means rows were reloaded, so the list is rebuilt.
+        boolean newLastPage = mPages.get(page) == null && mPages.get(page + 1) == null
+                && (page == FIRST_PAGE_LOADER || mPages.get(page - 1) != null);
+        mPages.put(page, data);
+        Bundle expected = pageArgsAfter(data);
+        mNextPageArgs.put(page, expected);
+
+        if (data.getCount() < PAGE_SIZE) {
+            // A short page is the end of the table, so there is nothing to load after it
+            mLastPage = page;
+            if (newLastPage && mSearchQuery == null) {
+                mCursorAdapter.appendCursor(data);
+            } else {
+                dropPagesAfter(page);
+            }
+            return;
+        }
+        if (mLastPage == page) {
+            // This page was the end of the table but has since filled up
+            mLastPage = -1;
+        }
+
+        // If the rows moved (something was added or removed), the next page has to start after
+        // this page's new last row, otherwise rows could go missing or show up twice.
+        Bundle next = mPageArgs.get(page + 1);
+        if (next != null) {
+            if (expected.getLong(InventoryContract.QUERY_PARAMETER_AFTER_ID)
+                    != next.getLong(InventoryContract.QUERY_PARAMETER_AFTER_ID)
+                    || !TextUtils.equals(expected.getString(InventoryContract.QUERY_PARAMETER_AFTER_PRODUCT),
+                    next.getString(InventoryContract.QUERY_PARAMETER_AFTER_PRODUCT))) {
+                startPage(page + 1, expected);
+            }
+        }
+
+        // Update {@link InventoryCursorAdapter} with the pages containing updated Inventory data
+        if (newLastPage && mSearchQuery == null) {
+            mCursorAdapter.appendCursor(data);
+        } else {
+            showPages();
+        }
     }
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
         // Callback called when the data needs to be deleted
-        mCursorAdapter.swapCursor(null);
+        if (loader.getId() == SEARCH_LOADER) {
+            if (mSearchQuery == null) {
+                return;
+            }
+            mSearchQuery = null;
+        }
+        mPages.remove(loader.getId());
+        mNextPageArgs.remove(loader.getId());
+        showPages();
     }
 }
-
-
-
-
-
@@ -1,72 +1,297 @@
 package com.cheyennelabs.inventoryapp;
 
 import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
-import android.content.Intent;
 import android.database.Cursor;
-import android.net.Uri;
+import android.database.StaleDataException;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
-import android.widget.CursorAdapter;
-import android.widget.LinearLayout;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.cheyennelabs.inventoryapp.core.StockEngine;
 import com.cheyennelabs.inventoryapp.data.InventoryContract;
 import com.cheyennelabs.inventoryapp.data.InventoryContract.InventoryEntry;
+import com.cheyennelabs.inventoryapp.data.Prices;
+import com.cheyennelabs.inventoryapp.data.SaleQueue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 /**
- * {@link InventorCursorAdapter} is an adapter for a list or grid view
- * that uses a {@link Cursor} of product data as its data source. This adapter knows
- * how to create list items for each row of product data in the {@link Cursor}.
+ * {@link InventoryCursorAdapter} is an adapter for a {@link RecyclerView}
+ * that uses a {@link Cursor} of product data as its data source. Every new cursor is read into
+ * a list of rows, and only the rows that differ from the ones on screen are rebound. Single rows
+ * can also be patched in place when the provider announces a change to them.
  */
-public class InventoryCursorAdapter extends CursorAdapter {
+public class InventoryCursorAdapter extends RecyclerView.Adapter<InventoryCursorAdapter.ViewHolder> {
+
+    /**
+     * Works out the differences between the old and the new rows, off the main thread
+     */
+    private static final Executor DIFF_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    /**
+     * Called when the user taps a product in the list.
+     */
+    public interface OnItemClickListener {
+        void onItemClick(long id);
+    }
+
+    private final Context mContext;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final OnItemClickListener mOnItemClickListener;
+
+    /**
+     * Queue the sell button hands its sales to
+     */
+    private final SaleQueue mSaleQueue;
+
+    /**
+     * Columns the list needs from the provider
+     */
+    public static final String[] PROJECTION = InventoryEntry.LIST_PROJECTION;
+
+    /**
+     * The rows currently shown in the list
+     */
+    private List<InventoryItem> mItems = Collections.emptyList();
+
+    /**
+     * The rows most recently handed to the diff, which the list will show once every pending
+     * diff has been applied. New changes are always made on top of these.
+     */
+    private List<InventoryItem> mLatestItems = Collections.emptyList();
+
+    /**
+     * True if the list only shows the products below their reorder threshold
+     */
+    private volatile boolean mLowStockOnly;
 
     /**
      * Constructs a new {@link InventoryCursorAdapter}.
      *
-     * @param context The context
-     * @param c       The cursor from which to get the data.
+     * @param context             The context
+     * @param onItemClickListener Called when a product is tapped
      */
-    public InventoryCursorAdapter(Context context, Cursor c) {
-        super(context, c, 0 /* flags */);
+    public InventoryCursorAdapter(Context context, OnItemClickListener onItemClickListener) {
+        mContext = context;
+        mOnItemClickListener = onItemClickListener;
+        mSaleQueue = SaleQueue.getInstance(context);
+        setHasStableIds(true);
     }
 
     /**
-     * Makes a new blank list item view. No data is set (or bound) to the views yet.
+     * Tell the adapter whether the list only shows the products that are low on stock, so a
+     * changed row is only patched in while it still belongs in the list.
+     */
+    public void setLowStockOnly(boolean lowStockOnly) {
+        mLowStockOnly = lowStockOnly;
+    }
+
+    /**
+     * Show the rows of a new cursor. The rows are read on {@link #DIFF_EXECUTOR}, and the list is
+     * updated once the diff with the old rows is ready. Nothing else may move the cursor after
+     * this. Its loader may close it, but only once a newer cursor was handed over, which then
+     * takes its place.
      *
-     * @param context app context
-     * @param cursor  The cursor from which to get the data. The cursor is already
-     *                moved to the correct position.
-     * @param parent  The parent to which the new view is attached to
-     * @return the newly created list item view.
+     * @param cursor The cursor from which to get the data, or null to empty the list.
      */
-    @Override
-    public View newView(Context context, Cursor cursor, ViewGroup parent) {
-        // Inflate a list item view using the layout specified in list_item.xml
-        return LayoutInflater.from(context).inflate(R.layout.list_item, parent, false);
+    public void swapCursor(final Cursor cursor) {
+        DIFF_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<InventoryItem> newItems = readItemsIfOpen(cursor);
+                if (newItems == null) {
+                    return;
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        submitItems(newItems);
+                    }
+                });
+            }
+        });
     }
 
     /**
-     * This method binds the product data (in the current row pointed to by cursor) to the given
-     * list item layout. For example, the name for the current pet can be set on the name TextView
-     * in the list item layout.
+     * Add the rows of a new page to the end of the list, keeping any rows that were patched in
+     * since the earlier pages were loaded. The rows are read like those of {@link #swapCursor}.
      *
-     * @param view    Existing view, returned earlier by newView() method
-     * @param context app context
-     * @param cursor  The cursor from which to get the data. The cursor is already moved to the
-     *                correct row.
+     * @param cursor The cursor of the page that follows the rows already in the list.
      */
-    @Override
-    public void bindView(View view, final Context context, Cursor cursor) {
-        // Find individual views that we want to modify in the list item layout
+    public void appendCursor(final Cursor cursor) {
+        DIFF_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<InventoryItem> page = readItemsIfOpen(cursor);
+                if (page == null) {
+                    return;
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        List<InventoryItem> items = new ArrayList<>(mLatestItems);
+                        for (InventoryItem item : page) {
+                            if (indexOf(items, item.id) == -1) {
+                                items.add(item);
+                            }
+                        }
+                        submitItems(items);
+                    }
+                });
+            }
+        });
+    }
 
-        TextView nameTextView = (TextView) view.findViewById(R.id.name);
-        final TextView quantityTextView = (TextView) view.findViewById(R.id.quantity_item_view);
-        TextView priceTextView = (TextView) view.findViewById(R.id.price_item_view);
+    /**
+     * Patch a single row of the list after it changed in the provider, without reloading the
+     * rest of the list.
+     *
+     * @param id        _ID of the row that changed
+     * @param change    what happened to the row, e.g. {@link InventoryContract#CHANGE_UPDATE}
+     * @param sorted    true if the list is sorted by product, so the row can be moved to (or
+     *                  inserted at) its place; false to only replace or remove it where it is
+     * @param endOfList true if every row of the table has been loaded, so a row that belongs
+     *                  after the last loaded row is added at the end rather than left for
+     *                  the next page
+     */
+    public void onRowChanged(final long id, String change, final boolean sorted, final boolean endOfList) {
+        if (InventoryContract.CHANGE_DELETE.equals(change)) {
+            List<InventoryItem> items = new ArrayList<>(mLatestItems);
+            int index = indexOf(items, id);
+            if (index != -1) {
+                items.remove(index);
+                submitItems(items);
+            }
+            return;
+        }
+
+        // Read the row off the main thread, then patch it in on the main thread
+        DIFF_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                Cursor cursor;
+                if (mLowStockOnly) {
+                    // No row comes back once the product is stocked up again, which removes it
+                    cursor = mContext.getContentResolver().query(InventoryEntry.LOW_STOCK_URI, PROJECTION,
+                            InventoryEntry._ID + "=?", new String[]{String.valueOf(id)}, null);
+                } else {
+                    cursor = mContext.getContentResolver().query(
+                            ContentUris.withAppendedId(InventoryEntry.CONTENT_URI, id), PROJECTION, null, null, null);
+                }
+                final List<InventoryItem> row = readItems(cursor);
+                if (cursor != null) {
+                    cursor.close();
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        putRow(id, row.isEmpty() ? null : row.get(0), sorted, endOfList);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Replace, move or insert the row with the given ID. A null item means the row is gone.
+     */
+    private void putRow(long id, InventoryItem item, boolean sorted, boolean endOfList) {
+        List<InventoryItem> items = new ArrayList<>(mLatestItems);
+        int index = indexOf(items, id);
+        if (!sorted || item == null) {
+            if (index == -1) {
+                // Not one of ours (for example not a search result), so leave the list alone
+                return;
+            }
+            if (item == null) {
+                items.remove(index);
+            } else {
+                items.set(index, item);
+            }
+        } else {
+            if (index != -1) {
+                items.remove(index);
+            }
+            int position = Collections.binarySearch(items, item, InventoryItem.LIST_ORDER);
+            position = position < 0 ? -position - 1 : position;
+            // A row past the last loaded row will turn up with the next page
+            if (position < items.size() || endOfList) {
+                items.add(position, item);
+            } else if (index == -1) {
+                return;
+            }
+        }
+        submitItems(items);
+    }
+
+    private static int indexOf(List<InventoryItem> items, long id) {
+        for (int i = 0; i < items.size(); i++) {
+            if (items.get(i).id == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Queue a diff from the previously submitted rows to the given rows. Diffs run in order on
+     * {@link #DIFF_EXECUTOR} and are applied in the same order on the main thread, so each one
+     * starts from exactly the rows the list shows when it is applied.
+     */
+    private void submitItems(final List<InventoryItem> newItems) {
+        final List<InventoryItem> oldItems = mLatestItems;
+        mLatestItems = newItems;
+
+        DIFF_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new ItemDiff(oldItems, newItems));
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mItems = newItems;
+                        diff.dispatchUpdatesTo(InventoryCursorAdapter.this);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Read every row of a cursor handed over by a loader, or return null if the loader closed it
+     * in the meantime. A newer cursor is queued after it then, so nothing is lost by skipping it.
+     */
+    private List<InventoryItem> readItemsIfOpen(Cursor cursor) {
+        try {
+            return readItems(cursor);
+        } catch (IllegalStateException | StaleDataException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Read every row of the cursor. The column indices are looked up once for the whole cursor.
+     * Sales that are still queued are taken off the quantities, so they do not flicker back.
+     */
+    private List<InventoryItem> readItems(Cursor cursor) {
+        if (cursor == null || cursor.getCount() == 0) {
+            return Collections.emptyList();
+        }
 
         // Find the columns of product attributes that we're interested in
         int rowIdColumnIndex = cursor.getColumnIndex(InventoryEntry._ID);
@@ -74,58 +299,202 @@ public class InventoryCursorAdapter extends CursorAdapter {
         int quantityColumnIndex = cursor.getColumnIndex(InventoryEntry.COLUMN_INVENTORY_QUANTITY);
         int priceColumnIndex = cursor.getColumnIndex(InventoryEntry.COLUMN_INVENTORY_PRICE);
 
-        // Read the product attributes from the Cursor for the current product
-        final int row = cursor.getInt(rowIdColumnIndex);
-        String productName = cursor.getString(nameColumnIndex);
-        int quantityTemp = cursor.getInt(quantityColumnIndex);
-        double price = cursor.getDouble(priceColumnIndex);
+        List<InventoryItem> items = new ArrayList<>(cursor.getCount());
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            long id = cursor.getLong(rowIdColumnIndex);
+            int quantity = cursor.getInt(quantityColumnIndex) - mSaleQueue.getPendingCount(id);
+            items.add(new InventoryItem(id,
+                    cursor.getString(nameColumnIndex),
+                    cursor.getLong(priceColumnIndex),
+                    Math.max(quantity, 0)));
+        }
+        return items;
+    }
 
+    @Override
+    public int getItemCount() {
+        return mItems.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mItems.get(position).id;
+    }
+
+    /**
+     * Makes a new blank list item view. No data is set (or bound) to the views yet.
+     */
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        // Inflate a list item view using the layout specified in list_item.xml
+        return new ViewHolder(LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.list_item, parent, false));
+    }
+
+    /**
+     * This method binds the product data at the given position to the views of the holder.
+     * For example, the name for the current product is set on the name TextView.
+     */
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        InventoryItem item = mItems.get(position);
 
         // Update the TextViews with the attributes for the current product
-        nameTextView.setText(productName);
-        quantityTextView.setText(Integer.toString(quantityTemp));
-        priceTextView.setText(String.valueOf(price));
+        holder.nameTextView.setText(item.product);
+        holder.quantityTextView.setText(Integer.toString(item.quantity));
+        // Formatted into the holder's own buffer, which the text view shows without a copy
+        int priceLength = Prices.format(item.price, holder.priceText);
+        holder.priceTextView.setText(holder.priceText, 0, priceLength);
+    }
 
-        // Button logic to allow for selling of products from main screen.
-        Button buttonSell = (Button) view.findViewById(R.id.button_sell);
-        buttonSell.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View view) {
-                int quantitySell = Integer.parseInt(quantityTextView.getText().toString().trim());
-
-                if (quantitySell <= 0) {
-                    // The logic is so that if we are anything other than non zero or negative
-                    // that we set it to zero (known good base), and throw out the toast.
-                    quantitySell = 0;
-                    Toast.makeText(context, R.string.stock_error, Toast.LENGTH_SHORT).show();
-                } else {
-                    // reduce quantity, format it, put it back in the Contract and then do error
-                    // checking
-                    quantitySell--;
-
-                    String newQuantity = Integer.toString(quantitySell);
-                    // Insert new quantity into the backend DB
-                    ContentValues values = new ContentValues();
-                    values.put(InventoryEntry.COLUMN_INVENTORY_QUANTITY, newQuantity);
-
-                    // Make sure we can append the data, and depending on how that happens throw out
-                    // Different toasts
-                    Uri currentInventoryUri = ContentUris.withAppendedId(InventoryEntry.CONTENT_URI, row);
-                    int rowsAffected = context.getContentResolver().update(currentInventoryUri, values, null, null);
-
-                    if (rowsAffected == 0) {
-                        // If no rows were affected, then there was an error with the update.
-                        Toast.makeText(context, "Failed to update record",
-                                Toast.LENGTH_SHORT).show();
-                    } else {
-                        // Otherwise, the update was successful and we can display a toast.
-                        Toast.makeText(context, "One product succesfully sold",
-                                Toast.LENGTH_SHORT).show();
-                    }
+    /**
+     * Sell one of the product with the given ID and show the quantity that is left.
+     */
+    private void sell(long id) {
+        List<InventoryItem> items = new ArrayList<>(mLatestItems);
+        int index = indexOf(items, id);
+        if (index == -1) {
+            return;
+        }
+        InventoryItem item = items.get(index);
 
-                }
+        int quantity = StockEngine.sell(item.quantity, 1);
+        if (quantity == StockEngine.NOT_ENOUGH_STOCK) {
+            // Nothing left to sell, so we are out of stock - throw out the toast.
+            Toast.makeText(mContext, R.string.stock_error, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        // Queue the sale and show it straight away. The provider still checks the stock when the
+        // queue reaches it, and the row is reloaded if the sale could not be made after all.
+        mSaleQueue.sell(id, 1);
+        items.set(index, new InventoryItem(item.id, item.product, item.price, quantity));
+        submitItems(items);
+        Toast.makeText(mContext, "One product succesfully sold",
+                Toast.LENGTH_SHORT).show();
+    }
+
+    /**
+     * Holds the views of one list item, found once when the item is created, and a single click
+     * listener for the item and its sell button that is reused on every bind.
+     */
+    class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+
+        final TextView nameTextView;
+
+        final TextView quantityTextView;
+
+        final TextView priceTextView;
+
+        /**
+         * The price shown by {@link #priceTextView}, reused on every bind
+         */
+        final char[] priceText = new char[Prices.MAX_LENGTH];
+
+        final Button sellButton;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            // Find individual views that we want to modify in the list item layout
+            nameTextView = (TextView) itemView.findViewById(R.id.name);
+            quantityTextView = (TextView) itemView.findViewById(R.id.quantity_item_view);
+            priceTextView = (TextView) itemView.findViewById(R.id.price_item_view);
+            sellButton = (Button) itemView.findViewById(R.id.button_sell);
+
+            itemView.setOnClickListener(this);
+            sellButton.setOnClickListener(this);
+        }
+
+        @Override
+        public void onClick(View view) {
+            int position = getAdapterPosition();
+            if (position == RecyclerView.NO_POSITION) {
+                // The row is being removed
+                return;
             }
-        });
+            long id = mItems.get(position).id;
+            if (view == sellButton) {
+                // Button logic to allow for selling of products from main screen.
+                sell(id);
+            } else {
+                mOnItemClickListener.onItemClick(id);
+            }
+        }
+    }
+
+    /**
+     * The values of one row of the list, as read from the cursor.
+     */
+    static final class InventoryItem {
+
+        final long id;
+
+        final String product;
+
+        /**
+         * Price in cents
+         */
+        final long price;
+
+        final int quantity;
+
+        /**
+         * The order of the product list: by product, then by _ID
+         */
+        static final Comparator<InventoryItem> LIST_ORDER = new Comparator<InventoryItem>() {
+            @Override
+            public int compare(InventoryItem a, InventoryItem b) {
+                int byProduct = a.product.compareTo(b.product);
+                return byProduct != 0 ? byProduct : Long.compare(a.id, b.id);
+            }
+        };
+
+        InventoryItem(long id, String product, long price, int quantity) {
+            this.id = id;
+            this.product = product;
+            this.price = price;
+            this.quantity = quantity;
+        }
+
+        boolean hasSameContents(InventoryItem other) {
+            return quantity == other.quantity && price == other.price
+                    && (product == null ? other.product == null : product.equals(other.product));
+        }
+    }
+
+    /**
+     * Compares the rows on screen with the rows of a new cursor, matching them by _ID.
+     */
+    private static final class ItemDiff extends DiffUtil.Callback {
+
+        private final List<InventoryItem> mOldItems;
+
+        private final List<InventoryItem> mNewItems;
+
+        ItemDiff(List<InventoryItem> oldItems, List<InventoryItem> newItems) {
+            mOldItems = oldItems;
+            mNewItems = newItems;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOldItems.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNewItems.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldItems.get(oldItemPosition).id == mNewItems.get(newItemPosition).id;
+        }
 
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldItems.get(oldItemPosition).hasSameContents(mNewItems.get(newItemPosition));
+        }
     }
 }
@@ -0,0 +1,185 @@
+package com.cheyennelabs.inventoryapp.data;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Merges the change notifications of {@link InventoryProvider} that arrive close together, so a
+ * burst of sales makes the list reload once instead of once per sale.
+ * <p>
+ * A change is sent once no other change has come in for the merge window, but never later than
+ * the maximum delay after the first change that is waiting. The same URI is only sent once per
+ * dispatch, and row URIs are dropped when their whole collection is being sent anyway.
+ */
+class ChangeNotificationScheduler {
+
+    private final ContentResolver mResolver;
+
+    private final Handler mHandler;
+
+    /**
+     * URIs waiting to be sent, in the order they first came in. Guarded by this.
+     */
+    private final Set<Uri> mPending = new LinkedHashSet<>();
+
+    /**
+     * Uptime at which the oldest waiting change came in. Guarded by this.
+     */
+    private long mFirstPendingAt;
+
+    private volatile long mWindowMs;
+
+    private volatile long mMaxDelayMs;
+
+    private final AtomicLong mReceived = new AtomicLong();
+
+    private final AtomicLong mDispatched = new AtomicLong();
+
+    private final Runnable mDispatch = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    /**
+     * @param resolver   used to send the notifications
+     * @param windowMs   how long to wait for more changes before sending, in milliseconds
+     * @param maxDelayMs the longest any change is held back, in milliseconds
+     */
+    ChangeNotificationScheduler(ContentResolver resolver, long windowMs, long maxDelayMs) {
+        mResolver = resolver;
+        setWindow(windowMs, maxDelayMs);
+
+        HandlerThread thread = new HandlerThread("InventoryNotifications", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Change the merge window and the maximum delay. A window of 0 sends every change right away.
+     */
+    void setWindow(long windowMs, long maxDelayMs) {
+        if (windowMs < 0 || maxDelayMs < windowMs) {
+            throw new IllegalArgumentException("Notification window must be between 0 and the maximum delay");
+        }
+        mWindowMs = windowMs;
+        mMaxDelayMs = maxDelayMs;
+    }
+
+    long getWindowMs() {
+        return mWindowMs;
+    }
+
+    long getMaxDelayMs() {
+        return mMaxDelayMs;
+    }
+
+    /**
+     * Number of changes handed to {@link #schedule}.
+     */
+    long getReceivedCount() {
+        return mReceived.get();
+    }
+
+    /**
+     * Number of notifications actually sent.
+     */
+    long getDispatchedCount() {
+        return mDispatched.get();
+    }
+
+    /**
+     * Send a change notification for the given URI once the current burst of changes is over.
+     */
+    void schedule(Uri uri) {
+        mReceived.incrementAndGet();
+        if (mWindowMs == 0) {
+            send(uri);
+            return;
+        }
+
+        synchronized (this) {
+            if (!coveredByPending(uri)) {
+                removePendingUnder(uri);
+                mPending.add(uri);
+            }
+
+            long now = SystemClock.uptimeMillis();
+            if (mPending.size() == 1 && mFirstPendingAt == 0) {
+                mFirstPendingAt = now;
+            }
+            // Wait for the window after this change, but not past the maximum delay
+            long dispatchAt = Math.min(now + mWindowMs, mFirstPendingAt + mMaxDelayMs);
+            mHandler.removeCallbacks(mDispatch);
+            mHandler.postAtTime(mDispatch, dispatchAt);
+        }
+    }
+
+    /**
+     * Send every waiting change now.
+     */
+    private void dispatch() {
+        List<Uri> uris;
+        synchronized (this) {
+            uris = new ArrayList<>(mPending);
+            mPending.clear();
+            mFirstPendingAt = 0;
+        }
+        for (Uri uri : uris) {
+            send(uri);
+        }
+    }
+
+    private void send(Uri uri) {
+        mDispatched.incrementAndGet();
+        mResolver.notifyChange(uri, null);
+    }
+
+    /**
+     * Return true if the URI, or a URI above it, is already waiting to be sent. Notifying a URI
+     * also notifies everything registered under it. Call with the lock held.
+     */
+    private boolean coveredByPending(Uri uri) {
+        if (mPending.contains(uri)) {
+            return true;
+        }
+        for (Uri pending : mPending) {
+            if (isUnder(uri, pending)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drop the waiting URIs that sit under the given URI. Call with the lock held.
+     */
+    private void removePendingUnder(Uri uri) {
+        Iterator<Uri> iterator = mPending.iterator();
+        while (iterator.hasNext()) {
+            if (isUnder(iterator.next(), uri)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static boolean isUnder(Uri uri, Uri parent) {
+        List<String> segments = uri.getPathSegments();
+        List<String> parentSegments = parent.getPathSegments();
+        return parent.getQuery() == null
+                && segments.size() > parentSegments.size()
+                && segments.subList(0, parentSegments.size()).equals(parentSegments);
+    }
+}
@@ -0,0 +1,154 @@
+package com.cheyennelabs.inventoryapp.data;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+
+/**
+ * Reads the records of a CSV file one at a time, for {@link InventoryImporter}. Fields may be
+ * quoted with double quotes, and a quoted field may hold commas, doubled quotes and line breaks.
+ * A byte order mark at the start of the file is dropped.
+ * <p>
+ * No record may be longer than {@link #MAX_RECORD_LENGTH} characters, line breaks included, so
+ * a quote that is never closed, or a file that is not text at all, cannot fill the memory.
+ */
+final class CsvReader {
+
+    /**
+     * Longest record accepted, in characters.
+     */
+    static final int MAX_RECORD_LENGTH = 64 * 1024;
+
+    private final Reader mReader;
+
+    private final StringBuilder mLine = new StringBuilder();
+
+    private final StringBuilder mField = new StringBuilder();
+
+    /**
+     * Number of lines read so far
+     */
+    private int mLineNumber;
+
+    /**
+     * Line the last record started on
+     */
+    private int mRecordLine;
+
+    /**
+     * A character read past the end of a line, or -1
+     */
+    private int mPeeked = -1;
+
+    /**
+     * @param reader the file, which is read a character at a time, so it should be buffered
+     */
+    CsvReader(Reader reader) {
+        mReader = reader;
+    }
+
+    /**
+     * Return the line the last record read started on, counting from 1.
+     */
+    int getRecordLine() {
+        return mRecordLine;
+    }
+
+    /**
+     * Read the next record into the given list, replacing what it held. Return false at the end
+     * of the file.
+     *
+     * @throws IOException if the file cannot be read, or the record is too long
+     */
+    boolean readRecord(List<String> fields) throws IOException {
+        if (!readLine(MAX_RECORD_LENGTH)) {
+            return false;
+        }
+        mRecordLine = mLineNumber;
+        fields.clear();
+
+        StringBuilder line = mLine;
+        StringBuilder field = mField;
+        field.setLength(0);
+        int length = line.length();
+        boolean quoted = false;
+        int i = mLineNumber == 1 && line.length() != 0 && line.charAt(0) == '\uFEFF' ? 1 : 0;
+        while (true) {
+            if (i == line.length()) {
+                if (!quoted) {
+                    break;
+                }
+                // The quoted field continues on the next line, which may only take up what is
+                // left of the record after the line break
+                if (length == MAX_RECORD_LENGTH) {
+                    throw tooLong();
+                }
+                if (!readLine(MAX_RECORD_LENGTH - length - 1)) {
+                    break;
+                }
+                length += line.length() + 1;
+                field.append('\n');
+                i = 0;
+                continue;
+            }
+
+            char c = line.charAt(i++);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i < line.length() && line.charAt(i) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return true;
+    }
+
+    /**
+     * Read the next line into {@link #mLine}, without its line break, which may be "\n", "\r" or
+     * "\r\n". Return false at the end of the file.
+     *
+     * @throws IOException if the line is longer than the given number of characters
+     */
+    private boolean readLine(int limit) throws IOException {
+        StringBuilder line = mLine;
+        line.setLength(0);
+        int c = mPeeked != -1 ? mPeeked : mReader.read();
+        mPeeked = -1;
+        if (c == -1) {
+            return false;
+        }
+        mLineNumber++;
+        while (c != -1 && c != '\n') {
+            if (c == '\r') {
+                c = mReader.read();
+                if (c != '\n') {
+                    mPeeked = c;
+                }
+                break;
+            }
+            if (line.length() == limit) {
+                throw tooLong();
+            }
+            line.append((char) c);
+            c = mReader.read();
+        }
+        return true;
+    }
+
+    private IOException tooLong() {
+        return new IOException("The record on line " + mLineNumber + " is longer than "
+                + MAX_RECORD_LENGTH + " characters; is a quote missing?");
+    }
+}
@@ -4,6 +4,9 @@ import android.content.ContentResolver;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
+import com.cheyennelabs.inventoryapp.core.Product;
+import com.cheyennelabs.inventoryapp.core.StockEngine;
+
 // All the important part of setting up the Contract/SQL/URI variables
 
 public final class InventoryContract {
@@ -29,6 +32,266 @@ public final class InventoryContract {
      */
     public static final String PATH_INVENTORY = "inventory";
 
+    /**
+     * path for the paged product list. Its cursors are only reloaded when many rows change at
+     * once; changes to a single row are announced on that row's URI instead.
+     */
+    public static final String PATH_LIST = "list";
+
+    /**
+     * path for full-text search over products and suppliers, e.g. inventory/search?q=flip
+     */
+    public static final String PATH_SEARCH = "search";
+
+    /**
+     * path for the products that are below their reorder threshold, in list order. It takes the
+     * same page parameters and returns the same columns as {@link #PATH_LIST}.
+     */
+    public static final String PATH_LOW_STOCK = "low_stock";
+
+    /**
+     * path for the totals of the whole inventory, see {@link SummaryEntry}
+     */
+    public static final String PATH_SUMMARY = "summary";
+
+    /**
+     * path for an export of every product as a stream, opened with
+     * {@link android.content.ContentResolver#openInputStream} (CSV) or
+     * {@link android.content.ContentResolver#openTypedAssetFileDescriptor} (CSV or JSON).
+     */
+    public static final String PATH_EXPORT = "export";
+
+    /**
+     * path for the suppliers, see {@link SupplierEntry}
+     */
+    public static final String PATH_SUPPLIERS = "suppliers";
+
+    /**
+     * path appended to a single item URI to sell from its stock, e.g. inventory/3/sell
+     */
+    public static final String PATH_SELL = "sell";
+
+    /**
+     * path appended to a single item URI for the stock movements of that item, oldest first,
+     * e.g. inventory/3/movements. See {@link StockMovementEntry}.
+     */
+    public static final String PATH_MOVEMENTS = "movements";
+
+    /**
+     * {@link android.content.ContentResolver#call} method that sells from a single item's stock.
+     * The arg is the item's _ID, and {@link #EXTRA_COUNT} holds how many to sell (default 1).
+     * The result holds the new quantity in {@link #EXTRA_QUANTITY}, or -1 if there was not
+     * enough stock.
+     */
+    public static final String METHOD_SELL = "sell";
+
+    /**
+     * Number of items to sell, used in the call extras and in the values of a sell URI update.
+     */
+    public static final String EXTRA_COUNT = "count";
+
+    /**
+     * Quantity left in stock after a call.
+     */
+    public static final String EXTRA_QUANTITY = "quantity";
+
+    /**
+     * {@link android.content.ContentResolver#call} method that returns how change notifications
+     * are merged: {@link #EXTRA_NOTIFY_WINDOW_MS}, {@link #EXTRA_NOTIFY_MAX_DELAY_MS},
+     * {@link #EXTRA_NOTIFICATIONS_RECEIVED} and {@link #EXTRA_NOTIFICATIONS_DISPATCHED}. If the
+     * extras hold a window and a maximum delay, those are used from then on.
+     */
+    public static final String METHOD_NOTIFICATION_STATS = "notification_stats";
+
+    /**
+     * How long to wait for more changes before notifying listeners, in milliseconds.
+     */
+    public static final String EXTRA_NOTIFY_WINDOW_MS = "notify_window_ms";
+
+    /**
+     * The longest a change notification is held back, in milliseconds.
+     */
+    public static final String EXTRA_NOTIFY_MAX_DELAY_MS = "notify_max_delay_ms";
+
+    /**
+     * Number of changes the provider announced, and the number of notifications that were
+     * actually sent after merging them.
+     */
+    public static final String EXTRA_NOTIFICATIONS_RECEIVED = "notifications_received";
+
+    public static final String EXTRA_NOTIFICATIONS_DISPATCHED = "notifications_dispatched";
+
+    /**
+     * {@link android.content.ContentResolver#call} method that applies a batch of queued sales
+     * in one transaction. The extras hold {@link #EXTRA_SEQUENCES}, {@link #EXTRA_IDS} and
+     * {@link #EXTRA_COUNTS}, one entry per sale. Sales at or below the stored watermark were
+     * already applied and are skipped, so a batch can safely be sent again. The result holds the
+     * new watermark in {@link #EXTRA_SEQUENCE} and the number of sales that had too little stock
+     * in {@link #EXTRA_REJECTED}. Without extras it only returns the watermark.
+     */
+    public static final String METHOD_APPLY_SALES = "apply_sales";
+
+    /**
+     * Sequence numbers, _IDs and counts of the sales in a batch.
+     */
+    public static final String EXTRA_SEQUENCES = "sequences";
+
+    public static final String EXTRA_IDS = "ids";
+
+    public static final String EXTRA_COUNTS = "counts";
+
+    /**
+     * Sequence number of the last sale that was applied.
+     */
+    public static final String EXTRA_SEQUENCE = "sequence";
+
+    /**
+     * Number of sales in a batch that were dropped because there was not enough stock.
+     */
+    public static final String EXTRA_REJECTED = "rejected";
+
+    /**
+     * {@link android.content.ContentResolver#call} method that returns the statistics of the
+     * provider's cache of single rows: {@link #EXTRA_CACHE_HITS}, {@link #EXTRA_CACHE_MISSES},
+     * {@link #EXTRA_CACHE_EVICTIONS}, {@link #EXTRA_CACHE_SIZE} and {@link #EXTRA_CACHE_MAX_SIZE}.
+     */
+    public static final String METHOD_ROW_CACHE_STATS = "row_cache_stats";
+
+    /**
+     * Number of single row queries served from the cache, and the number that had to read the
+     * database.
+     */
+    public static final String EXTRA_CACHE_HITS = "cache_hits";
+
+    public static final String EXTRA_CACHE_MISSES = "cache_misses";
+
+    /**
+     * Number of rows pushed out of the cache to make room for others.
+     */
+    public static final String EXTRA_CACHE_EVICTIONS = "cache_evictions";
+
+    /**
+     * Estimated memory taken up by the cached rows, and the most they may take up, in bytes.
+     */
+    public static final String EXTRA_CACHE_SIZE = "cache_size";
+
+    public static final String EXTRA_CACHE_MAX_SIZE = "cache_max_size";
+
+    /**
+     * {@link android.content.ContentResolver#call} method that writes a binary snapshot of every
+     * product to a file, for a backup. The arg is the absolute path of the file, which is
+     * replaced. The result holds the number of products written in {@link #EXTRA_ROWS}.
+     */
+    public static final String METHOD_SAVE_SNAPSHOT = "save_snapshot";
+
+    /**
+     * {@link android.content.ContentResolver#call} method that replaces every product with the
+     * ones in a snapshot written by {@link #METHOD_SAVE_SNAPSHOT}, keeping their _IDs. The arg is
+     * the absolute path of the file. The result holds the number of products restored in
+     * {@link #EXTRA_ROWS}. Throws an {@link IllegalArgumentException} if the file is not a valid
+     * snapshot, in which case nothing is changed.
+     */
+    public static final String METHOD_RESTORE_SNAPSHOT = "restore_snapshot";
+
+    /**
+     * Number of products in a snapshot.
+     */
+    public static final String EXTRA_ROWS = "rows";
+
+    /**
+     * {@link android.content.ContentResolver#call} method that compacts the stock movement
+     * ledger right away, instead of waiting for the next scheduled run. The result holds the
+     * number of movements removed in {@link #EXTRA_ROWS}, and the number of products whose
+     * movements do not add up to their quantity in {@link #EXTRA_MISMATCHED}.
+     */
+    public static final String METHOD_COMPACT_LEDGER = "compact_ledger";
+
+    /**
+     * Number of products whose stock movements do not add up to their quantity.
+     */
+    public static final String EXTRA_MISMATCHED = "mismatched";
+
+    /**
+     * {@link android.content.ContentResolver#call} method that returns what the provider has
+     * done since it started, or since the metrics were last reset: the count, failures, latency
+     * and rows of every operation on every URI and call method, and the change notifications
+     * sent for each URI. The result holds them as text in {@link #EXTRA_METRICS}, the same text
+     * that {@code adb shell dumpsys activity provider} prints. With {@link #EXTRA_RESET} set to
+     * true in the extras the metrics are cleared after they are read.
+     */
+    public static final String METHOD_METRICS = "metrics";
+
+    /**
+     * The provider metrics, as text.
+     */
+    public static final String EXTRA_METRICS = "metrics";
+
+    /**
+     * Whether to clear the metrics after reading them.
+     */
+    public static final String EXTRA_RESET = "reset";
+
+    /**
+     * {@link android.content.ContentResolver#call} method that writes a chunk of imported rows in
+     * one transaction, like a bulk insert with {@link #QUERY_PARAMETER_UPSERT}. The extras hold
+     * the rows as {@link android.content.ContentValues} in {@link #EXTRA_VALUES}. A row that is
+     * invalid or that the database refuses is skipped; the result holds the index of each one in
+     * {@link #EXTRA_REFUSED_ROWS} and why in {@link #EXTRA_REFUSED_REASONS}.
+     */
+    public static final String METHOD_IMPORT_ROWS = "import_rows";
+
+    /**
+     * The rows of an import.
+     */
+    public static final String EXTRA_VALUES = "values";
+
+    /**
+     * Indexes of the rows of an import that were skipped, in order, and the reason for each.
+     */
+    public static final String EXTRA_REFUSED_ROWS = "refused_rows";
+
+    public static final String EXTRA_REFUSED_REASONS = "refused_reasons";
+
+    /**
+     * Query parameter that turns a list query into a page of at most this many rows, sorted by
+     * product and then _ID.
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+    /**
+     * Query parameters holding the product and _ID of the last row of the previous page. The
+     * page starts right after that row.
+     */
+    public static final String QUERY_PARAMETER_AFTER_PRODUCT = "after_product";
+
+    public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+
+    /**
+     * Query parameter holding the text to search for. Every word is matched as a prefix of a
+     * word in the product or supplier name.
+     */
+    public static final String QUERY_PARAMETER_SEARCH = "q";
+
+    /**
+     * Query parameter for a bulk insert into the inventory. When "true", a row with the same
+     * product and supplier name as an existing row updates that row instead of adding another
+     * one. Price, quantity and reorder threshold are only updated if they are given.
+     */
+    public static final String QUERY_PARAMETER_UPSERT = "upsert";
+
+    /**
+     * Query parameter on the row URI of a change notification, telling what happened to the row:
+     * {@link #CHANGE_INSERT}, {@link #CHANGE_UPDATE} or {@link #CHANGE_DELETE}. Notifications
+     * without it (on the collection URI) mean any number of rows may have changed.
+     */
+    public static final String QUERY_PARAMETER_CHANGE = "change";
+
+    public static final String CHANGE_INSERT = "insert";
+
+    public static final String CHANGE_UPDATE = "update";
+
+    public static final String CHANGE_DELETE = "delete";
+
     /**
      * Inner class that defines constant values for the inventory database table.
      * Each entry in the table represents a single inventory item.
@@ -40,6 +303,61 @@ public final class InventoryContract {
          */
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_INVENTORY);
 
+        /**
+         * The content URI for the paged product list, see {@link #PATH_LIST}
+         */
+        public static final Uri LIST_URI = Uri.withAppendedPath(CONTENT_URI, PATH_LIST);
+
+        /**
+         * The content URI for the products that are low on stock, see {@link #PATH_LOW_STOCK}
+         */
+        public static final Uri LOW_STOCK_URI = Uri.withAppendedPath(CONTENT_URI, PATH_LOW_STOCK);
+
+        /**
+         * The content URI to search the inventory data, with {@link #QUERY_PARAMETER_SEARCH}
+         */
+        public static final Uri SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SEARCH);
+
+        /**
+         * The content URI of the export of every product, see {@link #PATH_EXPORT}
+         */
+        public static final Uri EXPORT_URI = Uri.withAppendedPath(CONTENT_URI, PATH_EXPORT);
+
+        /**
+         * The MIME types the {@link #EXPORT_URI} can be opened as. The CSV has a header line with
+         * the column names, so {@link InventoryImporter} can read it back. The JSON is an array
+         * with an object per product. If the export fails part of the way, reading it fails
+         * with an IOException; before KitKat a CSV export then ends with a line saying so
+         * instead, and a JSON export lacks the end of its array.
+         */
+        public static final String EXPORT_TYPE_CSV = "text/csv";
+
+        public static final String EXPORT_TYPE_JSON = "application/json";
+
+        /**
+         * The columns of the {@link #LIST_URI}: just what a row of the product list shows. The
+         * list URI returns no other columns, and a covering index serves them without reading
+         * the table.
+         */
+        public static final String[] LIST_PROJECTION = {
+                InventoryEntry._ID,
+                InventoryEntry.COLUMN_INVENTORY_PRODUCT,
+                InventoryEntry.COLUMN_INVENTORY_PRICE,
+                InventoryEntry.COLUMN_INVENTORY_QUANTITY};
+
+        /**
+         * Build the URI a change to a single row is announced on.
+         *
+         * @param id     _ID of the row that changed
+         * @param change what happened to the row, e.g. {@link #CHANGE_UPDATE}
+         */
+        public static Uri buildChangeUri(long id, String change) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(String.valueOf(id))
+                    .appendQueryParameter(QUERY_PARAMETER_CHANGE, change)
+                    .build();
+        }
+
         /**
          * The MIME type of the {@link #CONTENT_URI} for a list of items.
          */
@@ -57,6 +375,18 @@ public final class InventoryContract {
          */
         public final static String TABLE_NAME = "inventory";
 
+        /**
+         * Name of the view of the inventory table joined with the suppliers, which has the
+         * supplier name and phone number columns. Queries read from it; writes go to the table.
+         */
+        public final static String VIEW_NAME = "inventory_with_supplier";
+
+        /**
+         * Name of the full-text index over the product and supplier names. Its docid is the _ID of
+         * the inventory row, and triggers keep it in sync with the inventory table.
+         */
+        public final static String SEARCH_TABLE_NAME = "inventory_search";
+
         /**
          * Unique ID number for the pet (only for use in the database table).
          * <p>
@@ -72,7 +402,8 @@ public final class InventoryContract {
         public final static String COLUMN_INVENTORY_PRODUCT = "product";
 
         /**
-         * Price of the item.
+         * Price of the item, as a whole number of cents. {@link Prices} converts it to and from
+         * text such as "12.50".
          * <p>
          * Type: INTEGER
          */
@@ -87,20 +418,248 @@ public final class InventoryContract {
         public final static String COLUMN_INVENTORY_QUANTITY = "quantity";
 
         /**
-         * Supplier Name.
+         * _ID of the item's supplier in {@link SupplierEntry}.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_INVENTORY_SUPPLIER_ID = "supplier_id";
+
+        /**
+         * Supplier Name, read from the item's supplier. Writing it moves the item to the supplier
+         * with that name, which is added if there is none yet.
          * <p>
          * Type: STRING
          */
         public final static String COLUMN_INVENTORY_SUPPLIERNAME = "suppliername";
 
         /**
-         * Supplier phone number.
+         * Supplier phone number, read from the item's supplier. Writing it changes the phone
+         * number of the supplier, so every item of that supplier shows the new number.
          * <p>
          * Type: STRING
          */
 
         public final static String COLUMN_INVENTORY_SUPPLIERPHONENUMBER = "supplierphonenumber";
 
+        /**
+         * Reorder threshold. The product is low on stock when its quantity is below it.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_INVENTORY_REORDER_THRESHOLD = "reorderthreshold";
+
+        /**
+         * Reorder threshold of a product that doesn't set its own. Before products had their own
+         * threshold, this was the threshold for every product.
+         */
+        public final static int DEFAULT_REORDER_THRESHOLD = Product.DEFAULT_REORDER_THRESHOLD;
+
+    }
+
+    /**
+     * Inner class that defines the suppliers. Each inventory item points to one, so a supplier's
+     * name and phone number are stored once however many items it supplies, and changing them is
+     * a write to a single row. A supplier that still has items cannot be deleted.
+     */
+    public static final class SupplierEntry implements BaseColumns {
+
+        /**
+         * The content URI of the suppliers
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_SUPPLIERS);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of suppliers.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SUPPLIERS;
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a single supplier.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SUPPLIERS;
+
+        /**
+         * Name of database table for the suppliers
+         */
+        public final static String TABLE_NAME = "suppliers";
+
+        /**
+         * Supplier name, unique among the suppliers.
+         * <p>
+         * Type: TEXT
+         */
+        public final static String COLUMN_NAME = "name";
+
+        /**
+         * Supplier phone number.
+         * <p>
+         * Type: TEXT
+         */
+        public final static String COLUMN_PHONE_NUMBER = "phonenumber";
+    }
+
+    /**
+     * Inner class that defines the totals of the whole inventory. The summary table has a single
+     * row, which triggers on the inventory table keep up to date in the same transaction as
+     * every write, so reading it never has to look at the inventory rows.
+     */
+    public static final class SummaryEntry implements BaseColumns {
+
+        /**
+         * The content URI of the totals. Its cursor is notified of every change to the inventory.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(InventoryEntry.CONTENT_URI, PATH_SUMMARY);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI}.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SUMMARY;
+
+        /**
+         * Name of database table for the totals
+         */
+        public final static String TABLE_NAME = "inventory_summary";
+
+        /**
+         * _ID of the only row
+         */
+        public final static long ROW_ID = 1;
+
+        /**
+         * Total value of the stock in cents: price times quantity, summed over every product.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_STOCK_VALUE = "stock_value";
+
+        /**
+         * Total number of items in stock.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_UNITS = "units";
+
+        /**
+         * Number of products.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PRODUCTS = "products";
+
+        /**
+         * Number of products that are low on stock: below their reorder threshold.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_LOW_STOCK = "low_stock";
+    }
+
+    /**
+     * Inner class that defines the stock movement ledger. Every change to the quantity of an
+     * inventory item adds a row in the same transaction, so the movements of an item always add
+     * up to its quantity. Rows are never changed; old ones are only folded into checkpoints.
+     */
+    public static final class StockMovementEntry implements BaseColumns {
+
+        /**
+         * Name of database table for the stock movements
+         */
+        public final static String TABLE_NAME = "stock_movements";
+
+        /**
+         * The MIME type of the movements of a single inventory item.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_MOVEMENTS;
+
+        /**
+         * _ID of the inventory item whose stock moved. Movements of deleted items are kept until
+         * they are compacted away.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PRODUCT_ID = "product_id";
+
+        /**
+         * What moved the stock: {@link #KIND_SALE}, {@link #KIND_RESTOCK},
+         * {@link #KIND_ADJUSTMENT} or {@link #KIND_CHECKPOINT}.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_KIND = "kind";
+
+        /**
+         * Change in quantity, negative when stock went out.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_DELTA = "delta";
+
+        /**
+         * When the stock moved, in milliseconds since the epoch.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_CREATED_AT = "created_at";
+
+        /**
+         * The sum of older movements that were compacted, so the movements of an item always
+         * add up to its quantity.
+         */
+        public static final int KIND_CHECKPOINT = StockEngine.KIND_CHECKPOINT;
+
+        /**
+         * Items sold.
+         */
+        public static final int KIND_SALE = StockEngine.KIND_SALE;
+
+        /**
+         * Stock added other than by a sale being undone: a new product's first stock, or a
+         * higher quantity saved in the editor or imported.
+         */
+        public static final int KIND_RESTOCK = StockEngine.KIND_RESTOCK;
+
+        /**
+         * Stock taken away other than by a sale: a lower quantity saved in the editor or imported.
+         */
+        public static final int KIND_ADJUSTMENT = StockEngine.KIND_ADJUSTMENT;
+
+        /**
+         * Build the URI of the movements of the inventory item with the given _ID.
+         */
+        public static Uri buildMovementsUri(long productId) {
+            return InventoryEntry.CONTENT_URI.buildUpon()
+                    .appendPath(String.valueOf(productId))
+                    .appendPath(PATH_MOVEMENTS)
+                    .build();
+        }
+    }
+
+    /**
+     * Inner class that defines the table holding the sequence number of the last queued sale
+     * that was applied. It has a single row.
+     */
+    public static final class SalesWatermarkEntry implements BaseColumns {
+
+        /**
+         * Name of database table for the watermark
+         */
+        public final static String TABLE_NAME = "sales_watermark";
+
+        /**
+         * _ID of the only row
+         */
+        public final static long ROW_ID = 1;
+
+        /**
+         * Sequence number of the last applied sale.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_SEQUENCE = "sequence";
     }
 
 }
\ No newline at end of file
@@ -1,16 +1,30 @@
 package com.cheyennelabs.inventoryapp.data;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.DatabaseUtils;
+import android.os.Build;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
 
 import com.cheyennelabs.inventoryapp.data.InventoryContract.InventoryEntry;
+import com.cheyennelabs.inventoryapp.data.InventoryContract.SalesWatermarkEntry;
+import com.cheyennelabs.inventoryapp.data.InventoryContract.StockMovementEntry;
+import com.cheyennelabs.inventoryapp.data.InventoryContract.SummaryEntry;
+import com.cheyennelabs.inventoryapp.data.InventoryContract.SupplierEntry;
 
 
 // Inventory DB Helper.  DB specific variables are held here.  As well as a onUpgrade and
 // onCreate class that contain the SQL to either upgrade or create the DB respectively
 public class InventoryDbHelper extends SQLiteOpenHelper {
 
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = InventoryDbHelper.class.getSimpleName();
+
     /**
      * Name of the database file
      */
@@ -19,7 +33,23 @@ public class InventoryDbHelper extends SQLiteOpenHelper {
     /**
      * Database version. If you change the database schema, you must increment the database version.
      */
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 11;
+
+    /**
+     * Name the inventory table is built under when a migration has to copy it
+     */
+    private static final String NEW_INVENTORY_TABLE_NAME = "inventory_new";
+
+    /**
+     * Page cache size of the primary connection (the one that writes), in KiB. The default of
+     * 2000 KiB is too small to keep the indexes of a large catalog in memory.
+     */
+    private static final int CACHE_SIZE_KB = 8192;
+
+    /**
+     * SQL for the current time in milliseconds since the epoch
+     */
+    static final String NOW_MILLIS = "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)";
 
     /**
      * Constructs a new instance of {@link InventoryDbHelper}.
@@ -28,6 +58,46 @@ public class InventoryDbHelper extends SQLiteOpenHelper {
      */
     public InventoryDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+
+        // Use write-ahead logging, so the list and the editor can keep reading while sales are
+        // being written. Older devices turn it on in onOpen instead.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    /**
+     * This is called when the database is opened, before it is created or upgraded.
+     * <p>
+     * Keep products from pointing to suppliers that don't exist. Set here, the connection pool
+     * turns foreign keys on for every connection it opens, not just the first one.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        db.setForeignKeyConstraintsEnabled(true);
+    }
+
+    /**
+     * This is called every time the database is opened, once the schema is up to date.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (!db.isReadOnly()) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+                db.enableWriteAheadLogging();
+                // There is no onConfigure before API 16. Writes there always go through this
+                // main connection and only reads are pooled, so the pragma on it is enough.
+                db.execSQL("PRAGMA foreign_keys = ON");
+            }
+            // With WAL, NORMAL only syncs at checkpoints. A commit can be lost on power failure,
+            // but the database can never be corrupted.
+            db.execSQL("PRAGMA synchronous = NORMAL");
+        }
+        // A negative size is in KiB rather than pages
+        db.execSQL("PRAGMA cache_size = -" + CACHE_SIZE_KB);
     }
 
     /**
@@ -35,6 +105,17 @@ public class InventoryDbHelper extends SQLiteOpenHelper {
      */
     @Override
     public void onCreate(SQLiteDatabase db) {
+        // Create the version 1 schema, then run every migration on top of it, so a new database
+        // always ends up with exactly the same schema as an upgraded one.
+        createBaseSchema(db);
+        onUpgrade(db, 1, DATABASE_VERSION);
+    }
+
+    /**
+     * Create the schema as it was at database version 1. Never change this; add a migration in
+     * {@link #migrateTo} instead.
+     */
+    static void createBaseSchema(SQLiteDatabase db) {
         // Create a String that contains the SQL statement to create the Inventory table
         String SQL_CREATE_INVENTORY_TABLE = "CREATE TABLE " + InventoryEntry.TABLE_NAME + " ("
                 + InventoryEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
@@ -49,10 +130,478 @@ public class InventoryDbHelper extends SQLiteOpenHelper {
     }
 
     /**
-     * This is called when the database needs to be upgraded.
+     * This is called when the database needs to be upgraded. Every migration step between the two
+     * versions is applied in order, inside the transaction opened by {@link SQLiteOpenHelper}.
      */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // The database is still at version 1, so there's nothing to do be done here.
+        for (int version = oldVersion + 1; version <= newVersion; version++) {
+            migrateTo(db, version);
+        }
+    }
+
+    /**
+     * Migrate the database from the version before the given one to the given version.
+     */
+    private static void migrateTo(SQLiteDatabase db, int version) {
+        switch (version) {
+            case 2:
+                // Index the columns we sort, search and filter the list by
+                db.execSQL("CREATE INDEX inventory_product_index ON " + InventoryEntry.TABLE_NAME
+                        + " (" + InventoryEntry.COLUMN_INVENTORY_PRODUCT + ");");
+                db.execSQL("CREATE INDEX inventory_suppliername_index ON " + InventoryEntry.TABLE_NAME
+                        + " (" + InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME + ");");
+                db.execSQL("CREATE INDEX inventory_quantity_index ON " + InventoryEntry.TABLE_NAME
+                        + " (" + InventoryEntry.COLUMN_INVENTORY_QUANTITY + ");");
+                break;
+            case 3:
+                // Full-text index over the product and supplier names, kept in sync by triggers
+                db.execSQL("CREATE VIRTUAL TABLE " + InventoryEntry.SEARCH_TABLE_NAME + " USING fts4("
+                        + InventoryEntry.COLUMN_INVENTORY_PRODUCT + ", "
+                        + InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME + ");");
+                db.execSQL("INSERT INTO " + InventoryEntry.SEARCH_TABLE_NAME + " (docid, "
+                        + InventoryEntry.COLUMN_INVENTORY_PRODUCT + ", "
+                        + InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME + ") SELECT "
+                        + InventoryEntry._ID + ", "
+                        + InventoryEntry.COLUMN_INVENTORY_PRODUCT + ", "
+                        + InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME + " FROM "
+                        + InventoryEntry.TABLE_NAME + ";");
+                db.execSQL("CREATE TRIGGER inventory_search_insert AFTER INSERT ON "
+                        + InventoryEntry.TABLE_NAME + " BEGIN INSERT INTO "
+                        + InventoryEntry.SEARCH_TABLE_NAME + " (docid, "
+                        + InventoryEntry.COLUMN_INVENTORY_PRODUCT + ", "
+                        + InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME + ") VALUES (new."
+                        + InventoryEntry._ID + ", new."
+                        + InventoryEntry.COLUMN_INVENTORY_PRODUCT + ", new."
+                        + InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME + "); END;");
+                db.execSQL("CREATE TRIGGER inventory_search_update AFTER UPDATE OF "
+                        + InventoryEntry.COLUMN_INVENTORY_PRODUCT + ", "
+                        + InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME + " ON "
+                        + InventoryEntry.TABLE_NAME + " BEGIN UPDATE "
+                        + InventoryEntry.SEARCH_TABLE_NAME + " SET "
+                        + InventoryEntry.COLUMN_INVENTORY_PRODUCT + " = new."
+                        + InventoryEntry.COLUMN_INVENTORY_PRODUCT + ", "
+                        + InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME + " = new."
+                        + InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME + " WHERE docid = new."
+                        + InventoryEntry._ID + "; END;");
+                db.execSQL("CREATE TRIGGER inventory_search_delete AFTER DELETE ON "
+                        + InventoryEntry.TABLE_NAME + " BEGIN DELETE FROM "
+                        + InventoryEntry.SEARCH_TABLE_NAME + " WHERE docid = old."
+                        + InventoryEntry._ID + "; END;");
+                break;
+            case 4:
+                // Watermark of the queued sales that were applied, so a batch is never applied twice
+                db.execSQL("CREATE TABLE " + SalesWatermarkEntry.TABLE_NAME + " ("
+                        + SalesWatermarkEntry._ID + " INTEGER PRIMARY KEY, "
+                        + SalesWatermarkEntry.COLUMN_SEQUENCE + " INTEGER NOT NULL DEFAULT 0);");
+                db.execSQL("INSERT INTO " + SalesWatermarkEntry.TABLE_NAME + " ("
+                        + SalesWatermarkEntry._ID + ") VALUES (" + SalesWatermarkEntry.ROW_ID + ");");
+                break;
+            case 5:
+                // Covering index for the product list, which replaces the product index
+                createListIndex(db);
+                db.execSQL("DROP INDEX inventory_product_index;");
+                break;
+            case 6:
+                // Totals of the whole inventory, kept up to date by triggers
+                db.execSQL("CREATE TABLE " + SummaryEntry.TABLE_NAME + " ("
+                        + SummaryEntry._ID + " INTEGER PRIMARY KEY, "
+                        + SummaryEntry.COLUMN_STOCK_VALUE + " REAL NOT NULL DEFAULT 0, "
+                        + SummaryEntry.COLUMN_UNITS + " INTEGER NOT NULL DEFAULT 0, "
+                        + SummaryEntry.COLUMN_PRODUCTS + " INTEGER NOT NULL DEFAULT 0, "
+                        + SummaryEntry.COLUMN_LOW_STOCK + " INTEGER NOT NULL DEFAULT 0);");
+                db.execSQL("INSERT INTO " + SummaryEntry.TABLE_NAME + " ("
+                        + SummaryEntry._ID + ", "
+                        + SummaryEntry.COLUMN_STOCK_VALUE + ", "
+                        + SummaryEntry.COLUMN_UNITS + ", "
+                        + SummaryEntry.COLUMN_PRODUCTS + ", "
+                        + SummaryEntry.COLUMN_LOW_STOCK + ") SELECT "
+                        + SummaryEntry.ROW_ID + ", "
+                        + "IFNULL(SUM(" + stockValueOf("") + "), 0), "
+                        + "IFNULL(SUM(" + InventoryEntry.COLUMN_INVENTORY_QUANTITY + "), 0), "
+                        + "COUNT(*), "
+                        + "IFNULL(SUM(" + isLowStock("", false) + "), 0) FROM "
+                        + InventoryEntry.TABLE_NAME + ";");
+                createSummaryTriggers(db, false);
+                break;
+            case 7:
+                // Every product gets its own reorder threshold, which now decides what is low on stock
+                db.execSQL("ALTER TABLE " + InventoryEntry.TABLE_NAME + " ADD COLUMN "
+                        + InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD + " INTEGER NOT NULL DEFAULT "
+                        + InventoryEntry.DEFAULT_REORDER_THRESHOLD + ";");
+                db.execSQL("DROP TRIGGER inventory_summary_insert;");
+                db.execSQL("DROP TRIGGER inventory_summary_update;");
+                db.execSQL("DROP TRIGGER inventory_summary_delete;");
+                createSummaryTriggers(db, true);
+                db.execSQL("UPDATE " + SummaryEntry.TABLE_NAME + " SET "
+                        + SummaryEntry.COLUMN_LOW_STOCK + " = (SELECT COUNT(*) FROM "
+                        + InventoryEntry.TABLE_NAME + " WHERE " + isLowStock("", true) + ") WHERE "
+                        + SummaryEntry._ID + " = " + SummaryEntry.ROW_ID + ";");
+                createLowStockIndex(db);
+                break;
+            case 8:
+                // Append-only ledger of every change to a quantity, read back one product at a time
+                db.execSQL("CREATE TABLE " + StockMovementEntry.TABLE_NAME + " ("
+                        + StockMovementEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                        + StockMovementEntry.COLUMN_PRODUCT_ID + " INTEGER NOT NULL, "
+                        + StockMovementEntry.COLUMN_KIND + " INTEGER NOT NULL, "
+                        + StockMovementEntry.COLUMN_DELTA + " INTEGER NOT NULL, "
+                        + StockMovementEntry.COLUMN_CREATED_AT + " INTEGER NOT NULL DEFAULT ("
+                        + NOW_MILLIS + "));");
+                db.execSQL("CREATE INDEX stock_movements_product_index ON " + StockMovementEntry.TABLE_NAME
+                        + " (" + StockMovementEntry.COLUMN_PRODUCT_ID + ", " + StockMovementEntry._ID + ");");
+                // Start every existing product off with its current quantity
+                db.execSQL("INSERT INTO " + StockMovementEntry.TABLE_NAME + " ("
+                        + StockMovementEntry.COLUMN_PRODUCT_ID + ", "
+                        + StockMovementEntry.COLUMN_KIND + ", "
+                        + StockMovementEntry.COLUMN_DELTA + ") SELECT "
+                        + InventoryEntry._ID + ", "
+                        + StockMovementEntry.KIND_CHECKPOINT + ", "
+                        + InventoryEntry.COLUMN_INVENTORY_QUANTITY + " FROM " + InventoryEntry.TABLE_NAME + ";");
+                break;
+            case 9:
+                // Suppliers get a table of their own, with one row per name, and products point to
+                // theirs. A supplier's phone number is the one of its newest product that has one.
+                db.execSQL("CREATE TABLE " + SupplierEntry.TABLE_NAME + " ("
+                        + SupplierEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                        + SupplierEntry.COLUMN_NAME + " TEXT NOT NULL UNIQUE, "
+                        + SupplierEntry.COLUMN_PHONE_NUMBER + " TEXT);");
+                db.execSQL("INSERT INTO " + SupplierEntry.TABLE_NAME + " ("
+                        + SupplierEntry.COLUMN_NAME + ", "
+                        + SupplierEntry.COLUMN_PHONE_NUMBER + ") SELECT "
+                        + InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME + ", (SELECT p."
+                        + InventoryEntry.COLUMN_INVENTORY_SUPPLIERPHONENUMBER + " FROM "
+                        + InventoryEntry.TABLE_NAME + " p WHERE p."
+                        + InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME + " = i."
+                        + InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME + " AND p."
+                        + InventoryEntry.COLUMN_INVENTORY_SUPPLIERPHONENUMBER + " IS NOT NULL ORDER BY p."
+                        + InventoryEntry._ID + " DESC LIMIT 1) FROM "
+                        + InventoryEntry.TABLE_NAME + " i GROUP BY "
+                        + InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME + " ORDER BY MIN("
+                        + InventoryEntry._ID + ");");
+                // SQLite cannot drop columns, so the inventory table is copied without them
+                db.execSQL("CREATE TABLE " + NEW_INVENTORY_TABLE_NAME + " ("
+                        + InventoryEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                        + InventoryEntry.COLUMN_INVENTORY_PRODUCT + " TEXT NOT NULL, "
+                        + InventoryEntry.COLUMN_INVENTORY_PRICE + " REAL NOT NULL DEFAULT 0.00, "
+                        + InventoryEntry.COLUMN_INVENTORY_QUANTITY + " INTEGER NOT NULL DEFAULT 0, "
+                        + InventoryEntry.COLUMN_INVENTORY_SUPPLIER_ID + " INTEGER NOT NULL REFERENCES "
+                        + SupplierEntry.TABLE_NAME + " (" + SupplierEntry._ID + "), "
+                        + InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD + " INTEGER NOT NULL DEFAULT "
+                        + InventoryEntry.DEFAULT_REORDER_THRESHOLD + ");");
+                db.execSQL("INSERT INTO " + NEW_INVENTORY_TABLE_NAME + " ("
+                        + InventoryEntry._ID + ", "
+                        + InventoryEntry.COLUMN_INVENTORY_PRODUCT + ", "
+                        + InventoryEntry.COLUMN_INVENTORY_PRICE + ", "
+                        + InventoryEntry.COLUMN_INVENTORY_QUANTITY + ", "
+                        + InventoryEntry.COLUMN_INVENTORY_SUPPLIER_ID + ", "
+                        + InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD + ") SELECT i."
+                        + InventoryEntry._ID + ", i."
+                        + InventoryEntry.COLUMN_INVENTORY_PRODUCT + ", i."
+                        + InventoryEntry.COLUMN_INVENTORY_PRICE + ", i."
+                        + InventoryEntry.COLUMN_INVENTORY_QUANTITY + ", s."
+                        + SupplierEntry._ID + ", i."
+                        + InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD + " FROM "
+                        + InventoryEntry.TABLE_NAME + " i JOIN " + SupplierEntry.TABLE_NAME + " s ON s."
+                        + SupplierEntry.COLUMN_NAME + " = i." + InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME + ";");
+                replaceInventoryTable(db);
+                // The supplier name index is replaced by one on the supplier, which the foreign key
+                // and the supplier's products are looked up with
+                db.execSQL("CREATE INDEX inventory_supplier_index ON " + InventoryEntry.TABLE_NAME
+                        + " (" + InventoryEntry.COLUMN_INVENTORY_SUPPLIER_ID + ");");
+                db.execSQL("CREATE INDEX inventory_quantity_index ON " + InventoryEntry.TABLE_NAME
+                        + " (" + InventoryEntry.COLUMN_INVENTORY_QUANTITY + ");");
+                createListIndex(db);
+                createLowStockIndex(db);
+                createSummaryTriggers(db, true);
+                createSearchTriggers(db);
+                createInventoryView(db);
+                break;
+            case 10:
+                // Prices are kept as a whole number of cents, so totals add up exactly
+                db.execSQL("CREATE TABLE " + NEW_INVENTORY_TABLE_NAME + " ("
+                        + InventoryEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                        + InventoryEntry.COLUMN_INVENTORY_PRODUCT + " TEXT NOT NULL, "
+                        + InventoryEntry.COLUMN_INVENTORY_PRICE + " INTEGER NOT NULL DEFAULT 0, "
+                        + InventoryEntry.COLUMN_INVENTORY_QUANTITY + " INTEGER NOT NULL DEFAULT 0, "
+                        + InventoryEntry.COLUMN_INVENTORY_SUPPLIER_ID + " INTEGER NOT NULL REFERENCES "
+                        + SupplierEntry.TABLE_NAME + " (" + SupplierEntry._ID + "), "
+                        + InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD + " INTEGER NOT NULL DEFAULT "
+                        + InventoryEntry.DEFAULT_REORDER_THRESHOLD + ");");
+                db.execSQL("INSERT INTO " + NEW_INVENTORY_TABLE_NAME + " ("
+                        + InventoryEntry._ID + ", "
+                        + InventoryEntry.COLUMN_INVENTORY_PRODUCT + ", "
+                        + InventoryEntry.COLUMN_INVENTORY_PRICE + ", "
+                        + InventoryEntry.COLUMN_INVENTORY_QUANTITY + ", "
+                        + InventoryEntry.COLUMN_INVENTORY_SUPPLIER_ID + ", "
+                        + InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD + ") SELECT "
+                        + InventoryEntry._ID + ", "
+                        + InventoryEntry.COLUMN_INVENTORY_PRODUCT + ", CAST(ROUND("
+                        + InventoryEntry.COLUMN_INVENTORY_PRICE + " * 100) AS INTEGER), "
+                        + InventoryEntry.COLUMN_INVENTORY_QUANTITY + ", "
+                        + InventoryEntry.COLUMN_INVENTORY_SUPPLIER_ID + ", "
+                        + InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD + " FROM "
+                        + InventoryEntry.TABLE_NAME + ";");
+                replaceInventoryTable(db);
+                db.execSQL("CREATE INDEX inventory_supplier_index ON " + InventoryEntry.TABLE_NAME
+                        + " (" + InventoryEntry.COLUMN_INVENTORY_SUPPLIER_ID + ");");
+                db.execSQL("CREATE INDEX inventory_quantity_index ON " + InventoryEntry.TABLE_NAME
+                        + " (" + InventoryEntry.COLUMN_INVENTORY_QUANTITY + ");");
+                createListIndex(db);
+                createLowStockIndex(db);
+                createSearchTriggers(db);
+                createInventoryView(db);
+                // The total stock value is summed again from the prices in cents, into a column
+                // that holds it as an integer too
+                db.execSQL("DROP TABLE " + SummaryEntry.TABLE_NAME + ";");
+                db.execSQL("CREATE TABLE " + SummaryEntry.TABLE_NAME + " ("
+                        + SummaryEntry._ID + " INTEGER PRIMARY KEY, "
+                        + SummaryEntry.COLUMN_STOCK_VALUE + " INTEGER NOT NULL DEFAULT 0, "
+                        + SummaryEntry.COLUMN_UNITS + " INTEGER NOT NULL DEFAULT 0, "
+                        + SummaryEntry.COLUMN_PRODUCTS + " INTEGER NOT NULL DEFAULT 0, "
+                        + SummaryEntry.COLUMN_LOW_STOCK + " INTEGER NOT NULL DEFAULT 0);");
+                db.execSQL("INSERT INTO " + SummaryEntry.TABLE_NAME + " ("
+                        + SummaryEntry._ID + ", "
+                        + SummaryEntry.COLUMN_STOCK_VALUE + ", "
+                        + SummaryEntry.COLUMN_UNITS + ", "
+                        + SummaryEntry.COLUMN_PRODUCTS + ", "
+                        + SummaryEntry.COLUMN_LOW_STOCK + ") SELECT "
+                        + SummaryEntry.ROW_ID + ", "
+                        + "IFNULL(SUM(" + stockValueOf("") + "), 0), "
+                        + "IFNULL(SUM(" + InventoryEntry.COLUMN_INVENTORY_QUANTITY + "), 0), "
+                        + "COUNT(*), "
+                        + "IFNULL(SUM(" + isLowStock("", true) + "), 0) FROM "
+                        + InventoryEntry.TABLE_NAME + ";");
+                createSummaryTriggers(db, true);
+                break;
+            case 11:
+                // The full-text index is built again with a tokenizer that folds the case of every
+                // letter, not just of ASCII, and the triggers keep filling the new one
+                db.execSQL("DROP TABLE " + InventoryEntry.SEARCH_TABLE_NAME + ";");
+                createSearchTable(db);
+                db.execSQL("INSERT INTO " + InventoryEntry.SEARCH_TABLE_NAME + " (docid, "
+                        + InventoryEntry.COLUMN_INVENTORY_PRODUCT + ", "
+                        + InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME + ") SELECT "
+                        + InventoryEntry._ID + ", "
+                        + InventoryEntry.COLUMN_INVENTORY_PRODUCT + ", "
+                        + InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME + " FROM "
+                        + InventoryEntry.VIEW_NAME + ";");
+                break;
+            default:
+                throw new IllegalStateException("No migration to database version " + version);
+        }
+    }
+
+    /**
+     * Create the covering index of the product list: in list order, holding every column the
+     * list shows, so a page is read from the index alone.
+     */
+    private static void createListIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX inventory_list_index ON " + InventoryEntry.TABLE_NAME + " ("
+                + InventoryEntry.COLUMN_INVENTORY_PRODUCT + ", "
+                + InventoryEntry._ID + ", "
+                + InventoryEntry.COLUMN_INVENTORY_PRICE + ", "
+                + InventoryEntry.COLUMN_INVENTORY_QUANTITY + ");");
+    }
+
+    /**
+     * Index just the rows below their threshold, in list order with every column the low stock
+     * list reads, so the list costs time in proportion to how many products are low and never
+     * touches the table. SQLite before 3.8.0 has no partial indexes; there the same index over
+     * every row at least keeps the scan off the table.
+     */
+    private static void createLowStockIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX inventory_low_stock_index ON " + InventoryEntry.TABLE_NAME + " ("
+                + InventoryEntry.COLUMN_INVENTORY_PRODUCT + ", "
+                + InventoryEntry._ID + ", "
+                + InventoryEntry.COLUMN_INVENTORY_PRICE + ", "
+                + InventoryEntry.COLUMN_INVENTORY_QUANTITY + ", "
+                + InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD + ")"
+                + (supportsPartialIndexes(db) ? " WHERE " + isLowStock("", true) : "") + ";");
+    }
+
+    /**
+     * Replace the inventory table with {@link #NEW_INVENTORY_TABLE_NAME}, which already holds the
+     * copied rows. Everything that refers to the old table is dropped with it: its indexes and
+     * triggers, the view and the trigger on the suppliers. The caller creates them again. The
+     * _ID sequence carries over, so the _IDs of deleted rows, which the stock ledger may still
+     * refer to, are never given out again.
+     */
+    private static void replaceInventoryTable(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM sqlite_sequence WHERE name = '" + NEW_INVENTORY_TABLE_NAME + "';");
+        db.execSQL("INSERT INTO sqlite_sequence (name, seq) SELECT '" + NEW_INVENTORY_TABLE_NAME
+                + "', seq FROM sqlite_sequence WHERE name = '" + InventoryEntry.TABLE_NAME + "';");
+        // Newer SQLite checks views and triggers when a table is renamed, and these would point to
+        // a table that is missing at that moment
+        db.execSQL("DROP VIEW IF EXISTS " + InventoryEntry.VIEW_NAME + ";");
+        db.execSQL("DROP TRIGGER IF EXISTS suppliers_search_update;");
+        db.execSQL("DROP TABLE " + InventoryEntry.TABLE_NAME + ";");
+        db.execSQL("ALTER TABLE " + NEW_INVENTORY_TABLE_NAME + " RENAME TO " + InventoryEntry.TABLE_NAME + ";");
+    }
+
+    /**
+     * Create the triggers that keep the full-text index in sync with the inventory table and the
+     * supplier names. The index holds the name of each product's supplier, so renaming a supplier
+     * updates the entries of its products.
+     */
+    private static void createSearchTriggers(SQLiteDatabase db) {
+        String supplierName = "(SELECT " + SupplierEntry.COLUMN_NAME + " FROM " + SupplierEntry.TABLE_NAME
+                + " WHERE " + SupplierEntry._ID + " = new." + InventoryEntry.COLUMN_INVENTORY_SUPPLIER_ID + ")";
+        db.execSQL("CREATE TRIGGER inventory_search_insert AFTER INSERT ON "
+                + InventoryEntry.TABLE_NAME + " BEGIN INSERT INTO "
+                + InventoryEntry.SEARCH_TABLE_NAME + " (docid, "
+                + InventoryEntry.COLUMN_INVENTORY_PRODUCT + ", "
+                + InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME + ") VALUES (new."
+                + InventoryEntry._ID + ", new."
+                + InventoryEntry.COLUMN_INVENTORY_PRODUCT + ", " + supplierName + "); END;");
+        db.execSQL("CREATE TRIGGER inventory_search_update AFTER UPDATE OF "
+                + InventoryEntry.COLUMN_INVENTORY_PRODUCT + ", "
+                + InventoryEntry.COLUMN_INVENTORY_SUPPLIER_ID + " ON "
+                + InventoryEntry.TABLE_NAME + " BEGIN UPDATE "
+                + InventoryEntry.SEARCH_TABLE_NAME + " SET "
+                + InventoryEntry.COLUMN_INVENTORY_PRODUCT + " = new."
+                + InventoryEntry.COLUMN_INVENTORY_PRODUCT + ", "
+                + InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME + " = " + supplierName + " WHERE docid = new."
+                + InventoryEntry._ID + "; END;");
+        db.execSQL("CREATE TRIGGER inventory_search_delete AFTER DELETE ON "
+                + InventoryEntry.TABLE_NAME + " BEGIN DELETE FROM "
+                + InventoryEntry.SEARCH_TABLE_NAME + " WHERE docid = old."
+                + InventoryEntry._ID + "; END;");
+        db.execSQL("CREATE TRIGGER suppliers_search_update AFTER UPDATE OF "
+                + SupplierEntry.COLUMN_NAME + " ON " + SupplierEntry.TABLE_NAME + " BEGIN UPDATE "
+                + InventoryEntry.SEARCH_TABLE_NAME + " SET "
+                + InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME + " = new." + SupplierEntry.COLUMN_NAME
+                + " WHERE docid IN (SELECT " + InventoryEntry._ID + " FROM " + InventoryEntry.TABLE_NAME
+                + " WHERE " + InventoryEntry.COLUMN_INVENTORY_SUPPLIER_ID + " = new." + SupplierEntry._ID
+                + "); END;");
+    }
+
+    /**
+     * Create the view of the inventory with the name and phone number of each product's supplier,
+     * under the column names they had when they were stored on the product. SQLite flattens the
+     * view into the query, so the inventory indexes still serve it, and each supplier is found by
+     * its _ID.
+     */
+    private static void createInventoryView(SQLiteDatabase db) {
+        db.execSQL("CREATE VIEW " + InventoryEntry.VIEW_NAME + " AS SELECT i."
+                + InventoryEntry._ID + " AS " + InventoryEntry._ID + ", i."
+                + InventoryEntry.COLUMN_INVENTORY_PRODUCT + " AS " + InventoryEntry.COLUMN_INVENTORY_PRODUCT + ", i."
+                + InventoryEntry.COLUMN_INVENTORY_PRICE + " AS " + InventoryEntry.COLUMN_INVENTORY_PRICE + ", i."
+                + InventoryEntry.COLUMN_INVENTORY_QUANTITY + " AS " + InventoryEntry.COLUMN_INVENTORY_QUANTITY + ", i."
+                + InventoryEntry.COLUMN_INVENTORY_SUPPLIER_ID + " AS " + InventoryEntry.COLUMN_INVENTORY_SUPPLIER_ID + ", s."
+                + SupplierEntry.COLUMN_NAME + " AS " + InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME + ", s."
+                + SupplierEntry.COLUMN_PHONE_NUMBER + " AS " + InventoryEntry.COLUMN_INVENTORY_SUPPLIERPHONENUMBER + ", i."
+                + InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD + " AS " + InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD
+                + " FROM " + InventoryEntry.TABLE_NAME + " i JOIN " + SupplierEntry.TABLE_NAME + " s ON s."
+                + SupplierEntry._ID + " = i." + InventoryEntry.COLUMN_INVENTORY_SUPPLIER_ID + ";");
+    }
+
+    /**
+     * Create the triggers that keep the summary table up to date. Before version 7 a product was
+     * low on stock below a fixed quantity; since then it is below its own reorder threshold.
+     */
+    private static void createSummaryTriggers(SQLiteDatabase db, boolean perProductThreshold) {
+        db.execSQL("CREATE TRIGGER inventory_summary_insert AFTER INSERT ON "
+                + InventoryEntry.TABLE_NAME + " BEGIN UPDATE " + SummaryEntry.TABLE_NAME + " SET "
+                + SummaryEntry.COLUMN_STOCK_VALUE + " = " + SummaryEntry.COLUMN_STOCK_VALUE
+                + " + " + stockValueOf("new.") + ", "
+                + SummaryEntry.COLUMN_UNITS + " = " + SummaryEntry.COLUMN_UNITS
+                + " + new." + InventoryEntry.COLUMN_INVENTORY_QUANTITY + ", "
+                + SummaryEntry.COLUMN_PRODUCTS + " = " + SummaryEntry.COLUMN_PRODUCTS + " + 1, "
+                + SummaryEntry.COLUMN_LOW_STOCK + " = " + SummaryEntry.COLUMN_LOW_STOCK
+                + " + " + isLowStock("new.", perProductThreshold)
+                + " WHERE " + SummaryEntry._ID + " = " + SummaryEntry.ROW_ID + "; END;");
+        db.execSQL("CREATE TRIGGER inventory_summary_update AFTER UPDATE OF "
+                + InventoryEntry.COLUMN_INVENTORY_PRICE + ", "
+                + InventoryEntry.COLUMN_INVENTORY_QUANTITY
+                + (perProductThreshold ? ", " + InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD : "")
+                + " ON " + InventoryEntry.TABLE_NAME + " BEGIN UPDATE " + SummaryEntry.TABLE_NAME + " SET "
+                + SummaryEntry.COLUMN_STOCK_VALUE + " = " + SummaryEntry.COLUMN_STOCK_VALUE
+                + " - " + stockValueOf("old.") + " + " + stockValueOf("new.") + ", "
+                + SummaryEntry.COLUMN_UNITS + " = " + SummaryEntry.COLUMN_UNITS
+                + " - old." + InventoryEntry.COLUMN_INVENTORY_QUANTITY
+                + " + new." + InventoryEntry.COLUMN_INVENTORY_QUANTITY + ", "
+                + SummaryEntry.COLUMN_LOW_STOCK + " = " + SummaryEntry.COLUMN_LOW_STOCK
+                + " - " + isLowStock("old.", perProductThreshold) + " + " + isLowStock("new.", perProductThreshold)
+                + " WHERE " + SummaryEntry._ID + " = " + SummaryEntry.ROW_ID + "; END;");
+        db.execSQL("CREATE TRIGGER inventory_summary_delete AFTER DELETE ON "
+                + InventoryEntry.TABLE_NAME + " BEGIN UPDATE " + SummaryEntry.TABLE_NAME + " SET "
+                + SummaryEntry.COLUMN_STOCK_VALUE + " = " + SummaryEntry.COLUMN_STOCK_VALUE
+                + " - " + stockValueOf("old.") + ", "
+                + SummaryEntry.COLUMN_UNITS + " = " + SummaryEntry.COLUMN_UNITS
+                + " - old." + InventoryEntry.COLUMN_INVENTORY_QUANTITY + ", "
+                + SummaryEntry.COLUMN_PRODUCTS + " = " + SummaryEntry.COLUMN_PRODUCTS + " - 1, "
+                + SummaryEntry.COLUMN_LOW_STOCK + " = " + SummaryEntry.COLUMN_LOW_STOCK
+                + " - " + isLowStock("old.", perProductThreshold)
+                + " WHERE " + SummaryEntry._ID + " = " + SummaryEntry.ROW_ID + "; END;");
+    }
+
+    /**
+     * SQL for the stock value of an inventory row, with the given prefix on the column names
+     * (e.g. "new." in a trigger).
+     */
+    private static String stockValueOf(String row) {
+        return row + InventoryEntry.COLUMN_INVENTORY_PRICE + " * " + row + InventoryEntry.COLUMN_INVENTORY_QUANTITY;
+    }
+
+    /**
+     * SQL that is 1 if an inventory row is low on stock and 0 otherwise, with the given prefix on
+     * the column names. The row is compared with its own reorder threshold, or with the default
+     * threshold for the schema from before there was one.
+     */
+    private static String isLowStock(String row, boolean perProductThreshold) {
+        return "(" + row + InventoryEntry.COLUMN_INVENTORY_QUANTITY + " < "
+                + (perProductThreshold ? row + InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD
+                : String.valueOf(InventoryEntry.DEFAULT_REORDER_THRESHOLD)) + ")";
+    }
+
+    /**
+     * Return true if the SQLite library has partial indexes, which came in 3.8.0.
+     */
+    private static boolean supportsPartialIndexes(SQLiteDatabase db) {
+        String[] version = DatabaseUtils.stringForQuery(db, "SELECT sqlite_version()", null).split("\\.");
+        int major = Integer.parseInt(version[0]);
+        int minor = Integer.parseInt(version[1]);
+        return major > 3 || (major == 3 && minor >= 8);
+    }
+
+    /**
+     * Create the full-text index, with the unicode61 tokenizer where SQLite has it. It folds the
+     * case of every letter and drops accents. The simple tokenizer it falls back to only folds
+     * ASCII, so there searches for other letters have to match their case.
+     */
+    private static void createSearchTable(SQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE " + InventoryEntry.SEARCH_TABLE_NAME + " USING fts4("
+                + InventoryEntry.COLUMN_INVENTORY_PRODUCT + ", "
+                + InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME
+                + (supportsUnicodeTokenizer() ? ", tokenize=unicode61" : "") + ");");
+    }
+
+    /**
+     * Return whether SQLite has the unicode61 tokenizer, which Android builds it with from
+     * Lollipop on. It is tried on a database in memory, as a failed CREATE VIRTUAL TABLE can
+     * leave the table behind.
+     */
+    private static boolean supportsUnicodeTokenizer() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        SQLiteDatabase probe = SQLiteDatabase.create(null);
+        try {
+            probe.execSQL("CREATE VIRTUAL TABLE probe USING fts4(tokenize=unicode61);");
+            return true;
+        } catch (SQLiteException e) {
+            Log.w(LOG_TAG, "No unicode61 tokenizer, search folds the case of ASCII only: " + e.getMessage());
+            return false;
+        } finally {
+            probe.close();
+        }
+    }
+
+    /**
+     * Version the database is created at or upgraded to.
+     */
+    static int getDatabaseVersion() {
+        return DATABASE_VERSION;
     }
 }
@@ -0,0 +1,268 @@
+package com.cheyennelabs.inventoryapp.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentProvider;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import com.cheyennelabs.inventoryapp.data.InventoryContract.InventoryEntry;
+
+import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Writes every product to the pipe of an export, as CSV or JSON, for
+ * {@link ContentProvider#openPipeHelper}. The table is read in chunks by _ID, each a short query
+ * of its own, and every chunk is flushed down the pipe as soon as it is written. So the reader
+ * gets the first rows right away and the memory used does not depend on the size of the table.
+ * <p>
+ * The chunks are not read in one transaction, so rows that change during a long export are seen
+ * as they were when their chunk was read.
+ * <p>
+ * An export that fails part of the way must not pass for a whole one. From KitKat on the export
+ * has a pipe of its own, which is closed with the error, so the reader gets an
+ * {@link IOException}. On older versions the pipe can only end, so a CSV export then ends with a
+ * line saying that it failed, which does not read back as a product; a JSON export that fails
+ * lacks the end of its array.
+ */
+class InventoryExporter implements ContentProvider.PipeDataWriter<Void> {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = InventoryExporter.class.getSimpleName();
+
+    /**
+     * Rows read per query
+     */
+    private static final int CHUNK_SIZE = 1000;
+
+    /**
+     * The exported columns, in the order they are written
+     */
+    private static final String[] COLUMNS = {
+            InventoryEntry._ID,
+            InventoryEntry.COLUMN_INVENTORY_PRODUCT,
+            InventoryEntry.COLUMN_INVENTORY_PRICE,
+            InventoryEntry.COLUMN_INVENTORY_QUANTITY,
+            InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME,
+            InventoryEntry.COLUMN_INVENTORY_SUPPLIERPHONENUMBER,
+            InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD};
+
+    /**
+     * Read the chunk of rows after the given _ID. Seeking by _ID keeps every chunk as cheap as
+     * the first, where an offset would skip over every earlier row again.
+     */
+    private static final String SQL_QUERY_CHUNK = "SELECT " + InventoryEntry._ID + ", "
+            + InventoryEntry.COLUMN_INVENTORY_PRODUCT + ", "
+            + InventoryEntry.COLUMN_INVENTORY_PRICE + ", "
+            + InventoryEntry.COLUMN_INVENTORY_QUANTITY + ", "
+            + InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME + ", "
+            + InventoryEntry.COLUMN_INVENTORY_SUPPLIERPHONENUMBER + ", "
+            + InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD
+            + " FROM " + InventoryEntry.VIEW_NAME
+            + " WHERE " + InventoryEntry._ID + " > ?"
+            + " ORDER BY " + InventoryEntry._ID + " LIMIT " + CHUNK_SIZE;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final InventoryDbHelper mDbHelper;
+
+    InventoryExporter(InventoryDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Open a pipe, write the export to it on a background thread and return the end to read it
+     * from. If the export fails, the pipe is closed with the error.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    ParcelFileDescriptor openReliablePipe(final Uri uri, final String mimeType) throws FileNotFoundException {
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createReliablePipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Cannot open a pipe for " + uri + ": " + e.getMessage());
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                String error = export(pipe[1], uri, mimeType, false);
+                try {
+                    if (error == null) {
+                        pipe[1].close();
+                    } else {
+                        pipe[1].closeWithError(error);
+                    }
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Failed to close the export pipe for " + uri, e);
+                }
+            }
+        });
+        return pipe[0];
+    }
+
+    /**
+     * Write the export to a pipe of {@link ContentProvider#openPipeHelper}, for the versions
+     * without {@link #openReliablePipe}.
+     */
+    @Override
+    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType, Bundle opts,
+                                Void args) {
+        // The pipe is closed for us once this returns, so a failure can only be told in the file
+        export(output, uri, mimeType, true);
+    }
+
+    /**
+     * Write the export to the pipe, without closing it. Return null once it is complete, or why
+     * it is not. With markFailure, a CSV export that fails ends with a line saying so.
+     */
+    private String export(ParcelFileDescriptor output, Uri uri, String mimeType, boolean markFailure) {
+        boolean json = InventoryEntry.EXPORT_TYPE_JSON.equals(mimeType);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(output.getFileDescriptor()), UTF_8));
+        try {
+            if (json) {
+                writeJson(writer);
+            } else {
+                writeCsv(writer);
+            }
+            writer.flush();
+            return null;
+        } catch (IOException e) {
+            // Most likely the reader closed its end early
+            Log.w(LOG_TAG, "Export to " + uri + " stopped: " + e.getMessage());
+            return "Export stopped: " + e.getMessage();
+        } catch (RuntimeException e) {
+            // Such as a SQLiteException from reading a chunk. This runs on a background thread
+            // of its own, where it would take the whole process down, so it ends the export
+            // instead and tells the reader.
+            Log.e(LOG_TAG, "Export to " + uri + " failed", e);
+            String error = "Export failed: " + e.getMessage();
+            if (markFailure && !json) {
+                try {
+                    // On a line of its own, with a single field, so it never reads as a product
+                    writer.write('\n');
+                    writeCsvField(writer, error);
+                    writer.write('\n');
+                    writer.flush();
+                } catch (IOException ignored) {
+                    // The reader is gone
+                }
+            }
+            return error;
+        }
+    }
+
+    private void writeCsv(Writer writer) throws IOException {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (i != 0) {
+                writer.write(',');
+            }
+            writer.write(COLUMNS[i]);
+        }
+        writer.write('\n');
+
+        // Exports can run at the same time, so each has its own
+        char[] price = new char[Prices.MAX_LENGTH];
+        long lastId = Long.MIN_VALUE;
+        while (true) {
+            Cursor cursor = queryChunk(lastId);
+            try {
+                if (!cursor.moveToFirst()) {
+                    return;
+                }
+                do {
+                    for (int i = 0; i < COLUMNS.length; i++) {
+                        if (i != 0) {
+                            writer.write(',');
+                        }
+                        if (i == 2) {
+                            // Prices are written in whole units, as the import reads them
+                            writer.write(price, 0, Prices.format(cursor.getLong(i), price));
+                        } else {
+                            writeCsvField(writer, cursor.getString(i));
+                        }
+                    }
+                    writer.write('\n');
+                } while (cursor.moveToNext());
+                cursor.moveToLast();
+                lastId = cursor.getLong(0);
+            } finally {
+                cursor.close();
+            }
+            writer.flush();
+        }
+    }
+
+    /**
+     * Write a CSV field, quoted if it holds a comma, quote or line break.
+     */
+    private static void writeCsvField(Writer writer, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+    private void writeJson(Writer out) throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginArray();
+        long lastId = Long.MIN_VALUE;
+        while (true) {
+            Cursor cursor = queryChunk(lastId);
+            try {
+                if (!cursor.moveToFirst()) {
+                    break;
+                }
+                do {
+                    writer.beginObject();
+                    writer.name(COLUMNS[0]).value(cursor.getLong(0));
+                    writer.name(COLUMNS[1]).value(cursor.getString(1));
+                    writer.name(COLUMNS[2]).value(Prices.toDecimal(cursor.getLong(2)));
+                    writer.name(COLUMNS[3]).value(cursor.getLong(3));
+                    writer.name(COLUMNS[4]).value(cursor.getString(4));
+                    writer.name(COLUMNS[5]).value(cursor.getString(5));
+                    writer.name(COLUMNS[6]).value(cursor.getLong(6));
+                    writer.endObject();
+                } while (cursor.moveToNext());
+                cursor.moveToLast();
+                lastId = cursor.getLong(0);
+            } finally {
+                cursor.close();
+            }
+            writer.flush();
+        }
+        writer.endArray();
+        // Flushes the array's end without closing the pipe under the caller
+        writer.flush();
+    }
+
+    private Cursor queryChunk(long afterId) {
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+        return database.rawQuery(SQL_QUERY_CHUNK, new String[]{String.valueOf(afterId)});
+    }
+}
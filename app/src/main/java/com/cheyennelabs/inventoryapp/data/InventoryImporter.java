@@ -0,0 +1,309 @@
+package com.cheyennelabs.inventoryapp.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.os.Bundle;
+
+import com.cheyennelabs.inventoryapp.data.InventoryContract.InventoryEntry;
+
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Imports products from a CSV file, such as a supplier's price list. The file is read one record
+ * at a time and sent to the provider in chunks, each written in a transaction of its own, so the
+ * memory used does not depend on the size of the file. A row with the same product and supplier
+ * name as an existing product updates that product instead of adding a second one.
+ * <p>
+ * The first line names the columns, using the column names of {@link InventoryEntry}. The
+ * product, supplier name and supplier phone number columns are required; the price, quantity and
+ * reorder threshold columns are optional, and other columns are ignored. An empty optional value
+ * keeps the current value of an existing product. Prices are in whole units, such as "12.50", the
+ * way the export writes them.
+ * <p>
+ * Rows are checked with the same rules as the provider uses for an insert. A row that fails is
+ * reported to the {@link Listener} with its line number and skipped.
+ */
+public final class InventoryImporter {
+
+    /**
+     * Rows sent to the provider in each transaction
+     */
+    private static final int CHUNK_SIZE = 500;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Receives the progress of an import, on the thread running the import.
+     */
+    public interface Listener {
+
+        /**
+         * Called after every chunk that has been written.
+         *
+         * @param bytesRead bytes of the file read so far
+         * @param imported  rows written so far
+         * @param rejected  rows rejected so far
+         */
+        void onProgress(long bytesRead, int imported, int rejected);
+
+        /**
+         * Called for every row that is skipped.
+         *
+         * @param line   line of the file the row starts on, counting from 1
+         * @param reason why the row was skipped
+         */
+        void onRowRejected(int line, String reason);
+    }
+
+    /**
+     * Outcome of an import.
+     */
+    public static final class Result {
+
+        /**
+         * Rows written to the database
+         */
+        public final int imported;
+
+        /**
+         * Rows skipped
+         */
+        public final int rejected;
+
+        /**
+         * True if the import stopped because it was cancelled
+         */
+        public final boolean cancelled;
+
+        Result(int imported, int rejected, boolean cancelled) {
+            this.imported = imported;
+            this.rejected = rejected;
+            this.cancelled = cancelled;
+        }
+    }
+
+    private final ContentResolver mResolver;
+
+    private volatile boolean mCancelled;
+
+    public InventoryImporter(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Stop the import after the chunk being written. Chunks already written stay in the
+     * database. Can be called from any thread.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Import every row of a UTF-8 CSV file. Blocks until the whole file has been read or the
+     * import is cancelled, so don't call it on the main thread. The stream is not closed.
+     *
+     * @throws IOException if the file cannot be read, or its first line does not name the
+     *                     required columns
+     */
+    public Result importCsv(InputStream in, Listener listener) throws IOException {
+        CountingInputStream counter = new CountingInputStream(in);
+        CsvReader reader = new CsvReader(new BufferedReader(new InputStreamReader(counter, UTF_8)));
+
+        List<String> fields = new ArrayList<>();
+        if (!reader.readRecord(fields)) {
+            throw new IOException("The file is empty");
+        }
+        String[] columns = readHeader(fields);
+
+        ContentValues[] chunk = new ContentValues[CHUNK_SIZE];
+        int[] chunkLines = new int[CHUNK_SIZE];
+        int chunkSize = 0;
+        int imported = 0;
+        int rejected = 0;
+        while (!mCancelled) {
+            if (!reader.readRecord(fields)) {
+                break;
+            }
+            int line = reader.getRecordLine();
+            if (fields.size() == 1 && fields.get(0).isEmpty()) {
+                // Blank line
+                continue;
+            }
+
+            ContentValues values;
+            try {
+                values = toValues(columns, fields);
+                InventoryProvider.validateInventory(values);
+            } catch (IllegalArgumentException e) {
+                rejected++;
+                listener.onRowRejected(line, e.getMessage());
+                continue;
+            }
+
+            chunkLines[chunkSize] = line;
+            chunk[chunkSize++] = values;
+            if (chunkSize == CHUNK_SIZE) {
+                int written = writeChunk(chunk, chunkLines, chunkSize, listener);
+                imported += written;
+                rejected += chunkSize - written;
+                chunkSize = 0;
+                listener.onProgress(counter.getCount(), imported, rejected);
+            }
+        }
+
+        // A cancelled import drops the rows it has not written yet
+        if (chunkSize != 0 && !mCancelled) {
+            int written = writeChunk(chunk, chunkLines, chunkSize, listener);
+            imported += written;
+            rejected += chunkSize - written;
+            listener.onProgress(counter.getCount(), imported, rejected);
+        }
+        return new Result(imported, rejected, mCancelled);
+    }
+
+    /**
+     * Write a chunk of rows in one transaction, with the line of the file each one starts on.
+     * Return the number of rows written.
+     */
+    private int writeChunk(ContentValues[] chunk, int[] lines, int size, Listener listener) {
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(InventoryContract.EXTRA_VALUES,
+                size == chunk.length ? chunk : Arrays.copyOf(chunk, size));
+        Bundle result = mResolver.call(InventoryEntry.CONTENT_URI, InventoryContract.METHOD_IMPORT_ROWS,
+                null, extras);
+        Arrays.fill(chunk, null);
+        // They passed our checks, so the database refused them
+        int[] refused = result.getIntArray(InventoryContract.EXTRA_REFUSED_ROWS);
+        String[] reasons = result.getStringArray(InventoryContract.EXTRA_REFUSED_REASONS);
+        for (int i = 0; i < refused.length; i++) {
+            listener.onRowRejected(lines[refused[i]], "Refused by the database: " + reasons[i]);
+        }
+        return size - refused.length;
+    }
+
+    /**
+     * Map the fields of the first line to the columns of the inventory table. Columns that are
+     * not known map to null.
+     */
+    private static String[] readHeader(List<String> fields) throws IOException {
+        String[] columns = new String[fields.size()];
+        List<String> known = Arrays.asList(
+                InventoryEntry.COLUMN_INVENTORY_PRODUCT,
+                InventoryEntry.COLUMN_INVENTORY_PRICE,
+                InventoryEntry.COLUMN_INVENTORY_QUANTITY,
+                InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME,
+                InventoryEntry.COLUMN_INVENTORY_SUPPLIERPHONENUMBER,
+                InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD);
+        for (int i = 0; i < columns.length; i++) {
+            String name = fields.get(i).trim().toLowerCase(Locale.US);
+            columns[i] = known.contains(name) ? name : null;
+        }
+
+        List<String> found = Arrays.asList(columns);
+        if (!found.contains(InventoryEntry.COLUMN_INVENTORY_PRODUCT)
+                || !found.contains(InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME)
+                || !found.contains(InventoryEntry.COLUMN_INVENTORY_SUPPLIERPHONENUMBER)) {
+            throw new IOException("The first line has to name the "
+                    + InventoryEntry.COLUMN_INVENTORY_PRODUCT + ", "
+                    + InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME + " and "
+                    + InventoryEntry.COLUMN_INVENTORY_SUPPLIERPHONENUMBER + " columns");
+        }
+        return columns;
+    }
+
+    /**
+     * Turn the fields of a row into content values. Throws an {@link IllegalArgumentException}
+     * if the row has the wrong number of fields or a number that cannot be read.
+     */
+    private static ContentValues toValues(String[] columns, List<String> fields) {
+        if (fields.size() != columns.length) {
+            throw new IllegalArgumentException("Expected " + columns.length + " fields but found "
+                    + fields.size());
+        }
+
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < columns.length; i++) {
+            String column = columns[i];
+            String value = fields.get(i).trim();
+            if (column == null) {
+                continue;
+            }
+            if (column.equals(InventoryEntry.COLUMN_INVENTORY_PRICE)) {
+                if (!value.isEmpty()) {
+                    values.put(column, parseNumber(column, value).longValue());
+                }
+            } else if (column.equals(InventoryEntry.COLUMN_INVENTORY_QUANTITY)
+                    || column.equals(InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD)) {
+                if (!value.isEmpty()) {
+                    values.put(column, parseNumber(column, value).intValue());
+                }
+            } else if (!value.isEmpty()) {
+                // An empty name is as good as a missing one
+                values.put(column, value);
+            }
+        }
+        return values;
+    }
+
+    private static Number parseNumber(String column, String value) {
+        try {
+            if (column.equals(InventoryEntry.COLUMN_INVENTORY_PRICE)) {
+                // The file has prices in whole units, such as "12.50"
+                return Prices.parse(value);
+            }
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + column + " \"" + value + "\"");
+        }
+    }
+
+    /**
+     * Counts the bytes read through it, to tell how far into the file the import is.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            mCount += skipped;
+            return skipped;
+        }
+    }
+}
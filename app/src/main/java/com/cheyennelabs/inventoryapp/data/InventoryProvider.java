@@ -1,16 +1,51 @@
 package com.cheyennelabs.inventoryapp.data;
 
+import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
+import android.content.ClipDescription;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
 import android.util.Log;
 
 import com.cheyennelabs.inventoryapp.InventoryActivity;
+import com.cheyennelabs.inventoryapp.core.AppliedSales;
+import com.cheyennelabs.inventoryapp.core.Product;
+import com.cheyennelabs.inventoryapp.core.ProductValidator;
+import com.cheyennelabs.inventoryapp.core.StockEngine;
 import com.cheyennelabs.inventoryapp.data.InventoryContract.InventoryEntry;
+import com.cheyennelabs.inventoryapp.data.InventoryContract.StockMovementEntry;
+import com.cheyennelabs.inventoryapp.data.InventoryContract.SummaryEntry;
+import com.cheyennelabs.inventoryapp.data.InventoryContract.SupplierEntry;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 
 
 /**
@@ -33,6 +68,48 @@ public class InventoryProvider extends ContentProvider {
      */
     private static final int INVENTORY_ID = 101;
 
+    /**
+     * URI matcher code for the content URI to sell from a single item in the inventory table
+     */
+    private static final int INVENTORY_SELL = 102;
+
+    /**
+     * URI matcher code for the content URI to search the inventory table
+     */
+    private static final int INVENTORY_SEARCH = 103;
+
+    /**
+     * URI matcher code for the content URI of the paged product list
+     */
+    private static final int INVENTORY_LIST = 104;
+
+    /**
+     * URI matcher code for the content URI of the inventory totals
+     */
+    private static final int INVENTORY_SUMMARY = 105;
+
+    /**
+     * URI matcher code for the content URI of the products that are low on stock
+     */
+    private static final int INVENTORY_LOW_STOCK = 106;
+
+    /**
+     * URI matcher code for the content URI of the export of every product
+     */
+    private static final int INVENTORY_EXPORT = 107;
+
+    /**
+     * URI matcher code for the content URI of the stock movements of a single item
+     */
+    private static final int INVENTORY_MOVEMENTS = 108;
+
+    /**
+     * URI matcher codes for the content URI of the suppliers and of a single supplier
+     */
+    private static final int SUPPLIERS = 109;
+
+    private static final int SUPPLIER_ID = 110;
+
     /**
      * UriMatcher object to match a content URI to a corresponding code.
      * The input passed into the constructor represents the code to return for the root URI.
@@ -50,6 +127,31 @@ public class InventoryProvider extends ContentProvider {
         sUriMatcher.addURI(InventoryContract.CONTENT_AUTHORITY, InventoryContract.PATH_INVENTORY, INVENTORY);
 
         sUriMatcher.addURI(InventoryContract.CONTENT_AUTHORITY, InventoryContract.PATH_INVENTORY + "/#", INVENTORY_ID);
+
+        sUriMatcher.addURI(InventoryContract.CONTENT_AUTHORITY, InventoryContract.PATH_INVENTORY + "/"
+                + InventoryContract.PATH_SEARCH, INVENTORY_SEARCH);
+
+        sUriMatcher.addURI(InventoryContract.CONTENT_AUTHORITY, InventoryContract.PATH_INVENTORY + "/"
+                + InventoryContract.PATH_LIST, INVENTORY_LIST);
+
+        sUriMatcher.addURI(InventoryContract.CONTENT_AUTHORITY, InventoryContract.PATH_INVENTORY + "/"
+                + InventoryContract.PATH_SUMMARY, INVENTORY_SUMMARY);
+
+        sUriMatcher.addURI(InventoryContract.CONTENT_AUTHORITY, InventoryContract.PATH_INVENTORY + "/"
+                + InventoryContract.PATH_LOW_STOCK, INVENTORY_LOW_STOCK);
+
+        sUriMatcher.addURI(InventoryContract.CONTENT_AUTHORITY, InventoryContract.PATH_INVENTORY + "/"
+                + InventoryContract.PATH_EXPORT, INVENTORY_EXPORT);
+
+        sUriMatcher.addURI(InventoryContract.CONTENT_AUTHORITY, InventoryContract.PATH_INVENTORY + "/#/"
+                + InventoryContract.PATH_SELL, INVENTORY_SELL);
+
+        sUriMatcher.addURI(InventoryContract.CONTENT_AUTHORITY, InventoryContract.PATH_INVENTORY + "/#/"
+                + InventoryContract.PATH_MOVEMENTS, INVENTORY_MOVEMENTS);
+
+        sUriMatcher.addURI(InventoryContract.CONTENT_AUTHORITY, InventoryContract.PATH_SUPPLIERS, SUPPLIERS);
+
+        sUriMatcher.addURI(InventoryContract.CONTENT_AUTHORITY, InventoryContract.PATH_SUPPLIERS + "/#", SUPPLIER_ID);
     }
 
     /**
@@ -57,41 +159,261 @@ public class InventoryProvider extends ContentProvider {
      */
     private InventoryDbHelper mDbHelper;
 
+    /**
+     * Compiled statements for the writes that have a fixed shape
+     */
+    private InventoryStatements mStatements;
+
+    /**
+     * Sort order of a paged list query. It matches the keyset of {@link #SQL_AFTER_PAGE_KEY}, and
+     * the list index on product and _ID serves it without sorting.
+     */
+    private static final String PAGE_SORT_ORDER = InventoryEntry.COLUMN_INVENTORY_PRODUCT + ", "
+            + InventoryEntry._ID;
+
+    /**
+     * Selection for the rows after a page key. It takes the product twice and then the _ID. The
+     * first term lets SQLite seek straight to the start of the page in the product index.
+     */
+    private static final String SQL_AFTER_PAGE_KEY = InventoryEntry.COLUMN_INVENTORY_PRODUCT + " >= ? AND ("
+            + InventoryEntry.COLUMN_INVENTORY_PRODUCT + " > ? OR " + InventoryEntry._ID + " > ?)";
+
+    /**
+     * Selection for the rows below their reorder threshold. It is exactly the condition of the
+     * partial low stock index, which SQLite needs before it will use that index.
+     */
+    private static final String SQL_LOW_STOCK = InventoryEntry.COLUMN_INVENTORY_QUANTITY + " < "
+            + InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD;
+
+    /**
+     * Selection for the rows whose product or supplier name matches a full-text query.
+     */
+    private static final String SQL_MATCHES_SEARCH = InventoryEntry._ID + " IN (SELECT docid FROM "
+            + InventoryEntry.SEARCH_TABLE_NAME + " WHERE " + InventoryEntry.SEARCH_TABLE_NAME + " MATCH ?)";
+
+    /**
+     * Sort order of search results: products that start with the search text first, then products
+     * whose name matches, then the rows that only matched on the supplier. It takes a LIKE pattern
+     * and a full-text query restricted to the product column.
+     */
+    private static final String SEARCH_SORT_ORDER = "CASE WHEN "
+            + InventoryEntry.COLUMN_INVENTORY_PRODUCT + " LIKE ? ESCAPE '\\' THEN 0 WHEN "
+            + SQL_MATCHES_SEARCH + " THEN 1 ELSE 2 END, " + PAGE_SORT_ORDER;
+
+    /**
+     * Recently read single rows, so a product that was just looked at can be opened again
+     * without reading the database
+     */
+    private InventoryRowCache mRowCache;
+
+    /**
+     * Change notifications held back while {@link #applyBatch} runs on the current thread. They
+     * are sent once the whole batch has been committed.
+     */
+    private final ThreadLocal<Set<Uri>> mPendingNotifications = new ThreadLocal<>();
+
+    /**
+     * Default time to wait for more changes before notifying listeners, and the longest a
+     * notification may be held back during a long burst of writes.
+     */
+    private static final long NOTIFY_WINDOW_MS = 100;
+
+    private static final long NOTIFY_MAX_DELAY_MS = 500;
+
+    /**
+     * Merges the change notifications of writes that come in close together.
+     */
+    private ChangeNotificationScheduler mNotificationScheduler;
+
+    /**
+     * The types the export can be streamed as
+     */
+    private static final String[] EXPORT_TYPES = {InventoryEntry.EXPORT_TYPE_CSV, InventoryEntry.EXPORT_TYPE_JSON};
+
+    /**
+     * Writes exports to their pipes
+     */
+    private InventoryExporter mExporter;
+
+    /**
+     * Rolls old stock movements into checkpoints in the background
+     */
+    private LedgerCompactor mLedgerCompactor;
+
+    /**
+     * Names of the URI routes in the metrics, one per URI matcher code from {@link #INVENTORY} on,
+     * in order, and then one for the URIs that match none of them
+     */
+    private static final String[] METRICS_URI_ROUTES = {"INVENTORY", "INVENTORY_ID", "INVENTORY_SELL",
+            "INVENTORY_SEARCH", "INVENTORY_LIST", "INVENTORY_SUMMARY", "INVENTORY_LOW_STOCK",
+            "INVENTORY_EXPORT", "INVENTORY_MOVEMENTS", "SUPPLIERS", "SUPPLIER_ID", "UNKNOWN"};
+
+    /**
+     * The call methods, which come after the URI routes in the metrics. An unknown method counts
+     * as an unknown URI.
+     */
+    private static final String[] METRICS_CALL_METHODS = {InventoryContract.METHOD_SELL,
+            InventoryContract.METHOD_APPLY_SALES, InventoryContract.METHOD_ROW_CACHE_STATS,
+            InventoryContract.METHOD_SAVE_SNAPSHOT, InventoryContract.METHOD_RESTORE_SNAPSHOT,
+            InventoryContract.METHOD_COMPACT_LEDGER, InventoryContract.METHOD_NOTIFICATION_STATS,
+            InventoryContract.METHOD_METRICS, InventoryContract.METHOD_IMPORT_ROWS};
+
+    /**
+     * Counts and times every operation, per route
+     */
+    private ProviderMetrics mMetrics;
+
     @Override
     public boolean onCreate() {
         mDbHelper = new InventoryDbHelper(getContext());
+        mStatements = new InventoryStatements(mDbHelper, new InventoryStatements.SupplierListener() {
+            @Override
+            public void onSupplierAdded(long id) {
+                notifyChange(ContentUris.withAppendedId(SupplierEntry.CONTENT_URI, id));
+            }
+
+            @Override
+            public void onSupplierChanged(long id) {
+                notifyChange(ContentUris.withAppendedId(SupplierEntry.CONTENT_URI, id));
+                notifyChange(InventoryEntry.CONTENT_URI);
+            }
+
+            @Override
+            public void onSuppliersChanged() {
+                // Items beyond the selected ones show the new number too
+                notifyChange(SupplierEntry.CONTENT_URI);
+                notifyChange(InventoryEntry.CONTENT_URI);
+            }
+        });
+        mRowCache = new InventoryRowCache(InventoryRowCache.defaultMaxBytes());
+        String[] routes = Arrays.copyOf(METRICS_URI_ROUTES, METRICS_URI_ROUTES.length + METRICS_CALL_METHODS.length);
+        System.arraycopy(METRICS_CALL_METHODS, 0, routes, METRICS_URI_ROUTES.length, METRICS_CALL_METHODS.length);
+        mMetrics = new ProviderMetrics(routes);
+        mExporter = new InventoryExporter(mDbHelper);
+        mLedgerCompactor = new LedgerCompactor(mDbHelper);
+        mLedgerCompactor.start();
+        mNotificationScheduler = new ChangeNotificationScheduler(getContext().getContentResolver(),
+                NOTIFY_WINDOW_MS, NOTIFY_MAX_DELAY_MS);
         return true;
     }
 
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        // Figure out if the URI matcher can match the URI to a specific code
+        int match = sUriMatcher.match(uri);
+        long start = ProviderMetrics.start();
+        try {
+            return recordQuery(match, start, query(match, uri, projection, selection, selectionArgs, sortOrder));
+        } catch (RuntimeException e) {
+            mMetrics.recordFailure(ProviderMetrics.QUERY, routeOf(match), start);
+            throw e;
+        }
+    }
+
+    /**
+     * Query the URI, which matched the given code.
+     */
+    private Cursor query(int match, Uri uri, String[] projection, String selection, String[] selectionArgs,
+                         String sortOrder) {
         // Get readable database
         SQLiteDatabase database = mDbHelper.getReadableDatabase();
 
         // This cursor will hold the result of the query
         Cursor cursor;
 
-        // Figure out if the URI matcher can match the URI to a specific code
-        int match = sUriMatcher.match(uri);
         switch (match) {
             case INVENTORY:
+            case INVENTORY_LIST:
+            case INVENTORY_LOW_STOCK:
                 // For the INVENTORY code, query the inventory table directly with the given
                 // projection, selection, selection arguments, and sort order. The cursor
-                // could contain multiple rows of the inventory table.
-                cursor = database.query(InventoryEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                // could contain multiple rows of the inventory table. INVENTORY_LIST is the
+                // same query, but its cursor is registered on the list URI, so it isn't
+                // reloaded when a single row changes. INVENTORY_LOW_STOCK is the list, but only
+                // with the rows below their reorder threshold. The list columns are all in the
+                // inventory table; anything else is read through the view with the suppliers.
+                String table = InventoryEntry.TABLE_NAME;
+                if (match == INVENTORY) {
+                    table = InventoryEntry.VIEW_NAME;
+                } else if (match == INVENTORY_LIST) {
+                    // Only return the columns of the list, which the list index covers
+                    projection = checkListProjection(projection);
+                } else if (match == INVENTORY_LOW_STOCK) {
+                    // Same columns, covered by the low stock index
+                    projection = checkListProjection(projection);
+                    selection = DatabaseUtils.concatenateWhere(SQL_LOW_STOCK, selection);
+                    if (sortOrder == null) {
+                        sortOrder = PAGE_SORT_ORDER;
+                    }
+                }
+                String limit = uri.getQueryParameter(InventoryContract.QUERY_PARAMETER_LIMIT);
+                if (limit != null) {
+                    // This is a single page, so seek past the previous page's last row instead
+                    // of skipping over it with an offset.
+                    limit = String.valueOf(Integer.parseInt(limit));
+                    String afterProduct = uri.getQueryParameter(InventoryContract.QUERY_PARAMETER_AFTER_PRODUCT);
+                    String afterId = uri.getQueryParameter(InventoryContract.QUERY_PARAMETER_AFTER_ID);
+                    if (afterProduct != null && afterId != null) {
+                        selection = DatabaseUtils.concatenateWhere(selection, SQL_AFTER_PAGE_KEY);
+                        selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                                new String[]{afterProduct, afterProduct, afterId});
+                    }
+                    sortOrder = PAGE_SORT_ORDER;
+                }
+                cursor = database.query(table, projection, selection, selectionArgs,
+                        null, null, sortOrder, limit);
                 break;
             case INVENTORY_ID:
+                // Serve the row from the cache if the projection only asks for real columns
+                if (InventoryRowCache.hasColumns(projection)) {
+                    cursor = queryInventoryById(database, ContentUris.parseId(uri), projection);
+                    break;
+                }
 
                 selection = InventoryEntry._ID + "=?";
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
 
                 // This will perform a query on the inventory table where the _id equals 3 to return a
                 // Cursor containing that row of the table.
-                cursor = database.query(InventoryEntry.TABLE_NAME, projection, selection, selectionArgs,
+                cursor = database.query(InventoryEntry.VIEW_NAME, projection, selection, selectionArgs,
                         null, null, sortOrder);
                 break;
+            case INVENTORY_SEARCH:
+                cursor = searchInventory(database, uri, projection, null);
+                break;
+            case SUPPLIERS:
+                cursor = database.query(SupplierEntry.TABLE_NAME, projection, selection, selectionArgs,
+                        null, null, sortOrder);
+                break;
+            case SUPPLIER_ID:
+                selection = SupplierEntry._ID + "=?";
+                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                cursor = database.query(SupplierEntry.TABLE_NAME, projection, selection, selectionArgs,
+                        null, null, sortOrder);
+                break;
+            case INVENTORY_MOVEMENTS:
+                // The ledger of one product, oldest first, read straight from its index
+                selection = DatabaseUtils.concatenateWhere(StockMovementEntry.COLUMN_PRODUCT_ID + "=?", selection);
+                selectionArgs = DatabaseUtils.appendSelectionArgs(
+                        new String[]{uri.getPathSegments().get(1)}, selectionArgs);
+                if (sortOrder == null) {
+                    sortOrder = StockMovementEntry._ID;
+                }
+                cursor = database.query(StockMovementEntry.TABLE_NAME, projection, selection, selectionArgs,
+                        null, null, sortOrder);
+                // Every change to the item's quantity is announced on the item
+                cursor.setNotificationUri(getContext().getContentResolver(),
+                        ContentUris.withAppendedId(InventoryEntry.CONTENT_URI,
+                                Long.parseLong(uri.getPathSegments().get(1))));
+                return cursor;
+            case INVENTORY_SUMMARY:
+                // The totals are a single row, kept up to date by triggers
+                cursor = database.query(SummaryEntry.TABLE_NAME, projection,
+                        SummaryEntry._ID + " = " + SummaryEntry.ROW_ID, null, null, null, null);
+                // Any change to the inventory changes the totals, so listen to all of them
+                cursor.setNotificationUri(getContext().getContentResolver(), InventoryEntry.CONTENT_URI);
+                return cursor;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
@@ -99,12 +421,183 @@ public class InventoryProvider extends ContentProvider {
         return cursor;
     }
 
+    /**
+     * Record a query that returned the given cursor, and return the cursor. Counting its rows
+     * runs the query here, which would happen right after anyway: a loader counts the rows first,
+     * and so does the binder for a caller in another process. That way the latency is the whole
+     * query and not just compiling it.
+     */
+    private Cursor recordQuery(int match, long start, Cursor cursor) {
+        int rows;
+        try {
+            rows = cursor.getCount();
+        } catch (RuntimeException e) {
+            cursor.close();
+            throw e;
+        }
+        mMetrics.record(ProviderMetrics.QUERY, routeOf(match), start, rows);
+        return cursor;
+    }
+
+    /**
+     * Return the projection to use for the list URI: the list columns if none were asked for.
+     * Throws an {@link IllegalArgumentException} if a column outside the list columns is asked for.
+     */
+    private static String[] checkListProjection(String[] projection) {
+        if (projection == null) {
+            return InventoryEntry.LIST_PROJECTION;
+        }
+        List<String> listColumns = Arrays.asList(InventoryEntry.LIST_PROJECTION);
+        for (String column : projection) {
+            if (!listColumns.contains(column)) {
+                throw new IllegalArgumentException("Column " + column + " is not part of the list");
+            }
+        }
+        return projection;
+    }
+
+    /**
+     * Return the row with the given ID from the row cache, reading it from the database (and
+     * caching it) if it is not cached yet. The projection has to pass
+     * {@link InventoryRowCache#hasColumns}.
+     */
+    private Cursor queryInventoryById(SQLiteDatabase database, long id, String[] projection) {
+        Object[] row = mRowCache.get(id);
+        if (row == null) {
+            long generation = mRowCache.getGeneration();
+            Cursor cursor = database.query(InventoryEntry.VIEW_NAME, InventoryRowCache.COLUMNS,
+                    InventoryEntry._ID + "=?", new String[]{String.valueOf(id)}, null, null, null);
+            try {
+                if (cursor.moveToFirst()) {
+                    row = InventoryRowCache.readRow(cursor);
+                    mRowCache.put(id, row, generation);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return InventoryRowCache.toCursor(row, projection);
+    }
+
+    /**
+     * Same as the query above, but a search can be cancelled while it runs, so a search that has
+     * been overtaken by newer typing stops using the database right away.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder, CancellationSignal cancellationSignal) {
+        int match = sUriMatcher.match(uri);
+        long start = ProviderMetrics.start();
+        try {
+            Cursor cursor;
+            if (match != INVENTORY_SEARCH) {
+                cursor = query(match, uri, projection, selection, selectionArgs, sortOrder);
+            } else {
+                cursor = searchInventory(mDbHelper.getReadableDatabase(), uri, projection, cancellationSignal);
+                cursor.setNotificationUri(getContext().getContentResolver(), uri);
+            }
+            return recordQuery(match, start, cursor);
+        } catch (RuntimeException e) {
+            mMetrics.recordFailure(ProviderMetrics.QUERY, routeOf(match), start);
+            throw e;
+        }
+    }
+
+    /**
+     * Search the product and supplier names with the text in the search query parameter. Every
+     * word of the text has to match the start of a word in either name. The results are ranked by
+     * {@link #SEARCH_SORT_ORDER} and limited by the limit query parameter, if there is one.
+     */
+    private Cursor searchInventory(SQLiteDatabase database, Uri uri, String[] projection,
+                                   CancellationSignal cancellationSignal) {
+        String search = uri.getQueryParameter(InventoryContract.QUERY_PARAMETER_SEARCH);
+        String match = buildPrefixMatch(search, null);
+        if (match == null) {
+            // Nothing to search for, so return no rows (but the right columns)
+            return database.query(InventoryEntry.VIEW_NAME, projection, "0", null, null, null, null);
+        }
+
+        String limit = uri.getQueryParameter(InventoryContract.QUERY_PARAMETER_LIMIT);
+        if (limit != null) {
+            limit = String.valueOf(Integer.parseInt(limit));
+        }
+
+        String sql = SQLiteQueryBuilder.buildQueryString(false, InventoryEntry.VIEW_NAME, projection,
+                SQL_MATCHES_SEARCH, null, null, SEARCH_SORT_ORDER, limit);
+        String[] args = {
+                match,
+                search.trim().replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%",
+                buildPrefixMatch(search, InventoryEntry.COLUMN_INVENTORY_PRODUCT)};
+        if (cancellationSignal == null) {
+            return database.rawQuery(sql, args);
+        }
+        return database.rawQuery(sql, args, cancellationSignal);
+    }
+
+    /**
+     * Turn search text into a full-text query that matches every word as a prefix, optionally
+     * restricted to one column. Anything that isn't a letter or digit separates words, so the
+     * text can never be read as query syntax. Only ASCII is lowercased, which keeps AND, OR and
+     * NOT from being read as operators; the tokenizer folds the words the same way it folded the
+     * index, see {@link InventoryDbHelper}. Return null if there are no words.
+     */
+    private static String buildPrefixMatch(String search, String column) {
+        if (search == null) {
+            return null;
+        }
+        StringBuilder match = new StringBuilder();
+        for (String word : toLowerCaseAscii(search).split("[^\\p{L}\\p{N}]+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            if (column != null) {
+                match.append(column).append(':');
+            }
+            match.append(word).append('*');
+        }
+        return match.length() == 0 ? null : match.toString();
+    }
+
+    /**
+     * Lowercase just the ASCII letters of the text, as the simple tokenizer does.
+     */
+    private static String toLowerCaseAscii(String text) {
+        char[] chars = text.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            if (chars[i] >= 'A' && chars[i] <= 'Z') {
+                chars[i] += 'a' - 'A';
+            }
+        }
+        return new String(chars);
+    }
+
     @Override
     public Uri insert(Uri uri, ContentValues contentValues) {
         final int match = sUriMatcher.match(uri);
+        long start = ProviderMetrics.start();
+        try {
+            Uri result = insert(match, uri, contentValues);
+            mMetrics.record(ProviderMetrics.INSERT, routeOf(match), start, result == null ? 0 : 1);
+            return result;
+        } catch (RuntimeException e) {
+            mMetrics.recordFailure(ProviderMetrics.INSERT, routeOf(match), start);
+            throw e;
+        }
+    }
+
+    /**
+     * Insert into the URI, which matched the given code.
+     */
+    private Uri insert(int match, Uri uri, ContentValues contentValues) {
         switch (match) {
             case INVENTORY:
                 return insertInventory(uri, contentValues);
+            case SUPPLIERS:
+                return insertSupplier(uri, contentValues);
             default:
                 throw new IllegalArgumentException("Insertion is not supported for " + uri);
         }
@@ -116,63 +609,229 @@ public class InventoryProvider extends ContentProvider {
      */
     private Uri insertInventory(Uri uri, ContentValues values) {
 
+        Product product = ProductValues.toProduct(values);
+        ProductValidator.validateNew(product);
 
-        String name = values.getAsString(InventoryEntry.COLUMN_INVENTORY_PRODUCT);
-        if (name == null) {
-            throw new IllegalArgumentException("Product requires a name");
+        // Insert the new pet with the given values
+        long id;
+        try {
+            id = mStatements.insert(product);
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, "Error inserting " + values, e);
+            id = -1;
+        }
+        // If the ID is -1, then the insertion failed. Log an error and return null.
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
         }
 
-        Double price = values.getAsDouble(InventoryEntry.COLUMN_INVENTORY_PRICE);
-        if ((price < 0) && (price != null)) {
-            throw new IllegalArgumentException("Product requires a price");
+        notifyChange(InventoryEntry.buildChangeUri(id, InventoryContract.CHANGE_INSERT));
+        // Return the new URI with the ID (of the newly inserted row) appended at the end
+        return ContentUris.withAppendedId(uri, id);
+    }
+
+    /**
+     * Add a supplier. Return its content URI, or null if it could not be added, e.g. because
+     * there is a supplier with that name already.
+     */
+    private Uri insertSupplier(Uri uri, ContentValues values) {
+        validateSupplier(values, true);
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long id = database.insert(SupplierEntry.TABLE_NAME, null, values);
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
         }
 
-        String suppliername = values.getAsString(InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME);
-        if (suppliername == null) {
-            throw new IllegalArgumentException("Product requires a Supplier Name");
+        Uri supplierUri = ContentUris.withAppendedId(uri, id);
+        notifyChange(supplierUri);
+        return supplierUri;
+    }
+
+    /**
+     * Check the values of a supplier. Only a new supplier has to have a name. Throws an
+     * {@link IllegalArgumentException} describing the first value that is invalid.
+     */
+    private static void validateSupplier(ContentValues values, boolean isNew) {
+        if (isNew || values.containsKey(SupplierEntry.COLUMN_NAME)) {
+            String name = values.getAsString(SupplierEntry.COLUMN_NAME);
+            if (name == null) {
+                throw new IllegalArgumentException("Supplier requires a name");
+            }
         }
+    }
 
-        String supplierphonenumber = values.getAsString(InventoryEntry.COLUMN_INVENTORY_SUPPLIERPHONENUMBER);
-        if (supplierphonenumber == null) {
-            throw new IllegalArgumentException("Product requires a Supplier Phone Number");
+    /**
+     * Check that a new inventory row has every value it needs, see
+     * {@link ProductValidator#validateNew}. {@link InventoryImporter} checks its rows with this
+     * too, so it can report them by line.
+     */
+    static void validateInventory(ContentValues values) {
+        ProductValidator.validateNew(ProductValues.toProduct(values));
+    }
+
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        final int match = sUriMatcher.match(uri);
+        long start = ProviderMetrics.start();
+        try {
+            int rowsInserted = bulkInsert(match, uri, values);
+            mMetrics.record(ProviderMetrics.BULK_INSERT, routeOf(match), start, rowsInserted);
+            return rowsInserted;
+        } catch (RuntimeException e) {
+            mMetrics.recordFailure(ProviderMetrics.BULK_INSERT, routeOf(match), start);
+            throw e;
         }
+    }
 
-        int quantity = values.getAsInteger(InventoryEntry.COLUMN_INVENTORY_QUANTITY);
-        if ((quantity < 0) && (quantity != 0)) {
-            throw new IllegalArgumentException("Product requires a quantity");
+    /**
+     * Insert many rows into the URI, which matched the given code.
+     */
+    private int bulkInsert(int match, Uri uri, ContentValues[] values) {
+        switch (match) {
+            case INVENTORY:
+                return bulkInsertInventory(uri, values);
+            default:
+                throw new IllegalArgumentException("Insertion is not supported for " + uri);
         }
+    }
 
+    /**
+     * Insert many inventory rows in a single transaction. Every row goes through the same
+     * validation as {@link #insertInventory}, but a row that is rejected (or that SQLite refuses)
+     * is logged with its index and skipped instead of aborting the whole batch. Listeners are
+     * notified once at the end. Return the number of rows that were actually inserted, so the
+     * caller can tell how many were rejected.
+     * <p>
+     * With {@link InventoryContract#QUERY_PARAMETER_UPSERT} a row updates the rows with the same
+     * product and supplier name, if there are any, and counts as written.
+     */
+    private int bulkInsertInventory(Uri uri, ContentValues[] values) {
+        boolean upsert = Boolean.parseBoolean(uri.getQueryParameter(InventoryContract.QUERY_PARAMETER_UPSERT));
+        return insertInventoryRows(uri, values, upsert, null, null);
+    }
 
+    /**
+     * Upsert a chunk of imported rows, the way a bulk insert does, and return the index of each
+     * row that was skipped, and why, so the importer can report it with its line of the file.
+     */
+    private Bundle importRows(ContentValues[] values) {
+        ArrayList<Integer> refusedRows = new ArrayList<>();
+        ArrayList<String> refusedReasons = new ArrayList<>();
+        insertInventoryRows(InventoryEntry.CONTENT_URI, values, true, refusedRows, refusedReasons);
+
+        int[] rows = new int[refusedRows.size()];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = refusedRows.get(i);
+        }
+        Bundle result = new Bundle();
+        result.putIntArray(InventoryContract.EXTRA_REFUSED_ROWS, rows);
+        result.putStringArray(InventoryContract.EXTRA_REFUSED_REASONS,
+                refusedReasons.toArray(new String[refusedReasons.size()]));
+        return result;
+    }
+
+    /**
+     * Insert or upsert many inventory rows in a single transaction, as {@link #bulkInsertInventory}
+     * describes. Rows that are skipped are added to the given lists, if there are any: their index
+     * and the reason. Return the number of rows written.
+     */
+    private int insertInventoryRows(Uri uri, ContentValues[] values, boolean upsert,
+                                    List<Integer> refusedRows, List<String> refusedReasons) {
         // Get writeable database
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
-        // Insert the new pet with the given values
-        long id = database.insert(InventoryEntry.TABLE_NAME, null, values);
-        // If the ID is -1, then the insertion failed. Log an error and return null.
-        if (id == -1) {
-            Log.e(LOG_TAG, "Failed to insert row for " + uri);
-            return null;
+        int rowsInserted = 0;
+        database.beginTransactionNonExclusive();
+        try {
+            for (int i = 0; i < values.length; i++) {
+                try {
+                    Product product = ProductValues.toProduct(values[i]);
+                    ProductValidator.validateNew(product);
+                    // Runs in this transaction, so a rejected row leaves the others alone
+                    if (upsert) {
+                        mStatements.upsert(product);
+                    } else {
+                        mStatements.insert(product);
+                    }
+                    rowsInserted++;
+                } catch (IllegalArgumentException | SQLException e) {
+                    Log.e(LOG_TAG, "Rejected row " + i + " of bulk insert for " + uri + ": "
+                            + e.getMessage());
+                    if (refusedRows != null) {
+                        refusedRows.add(i);
+                        refusedReasons.add(e.getMessage());
+                    }
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            // Only now can no reader see the suppliers as they were
+            mStatements.dispatchSupplierChanges();
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
-        // Return the new URI with the ID (of the newly inserted row) appended at the end
-        return ContentUris.withAppendedId(uri, id);
+        // If 1 or more rows were inserted, notify all listeners once for the whole batch
+        if (rowsInserted != 0) {
+            notifyChange(InventoryEntry.CONTENT_URI);
+        }
+
+        // Return the number of rows inserted
+        return rowsInserted;
     }
 
     @Override
     public int update(Uri uri, ContentValues contentValues, String selection,
                       String[] selectionArgs) {
         final int match = sUriMatcher.match(uri);
+        long start = ProviderMetrics.start();
+        try {
+            int rowsUpdated = update(match, uri, contentValues, selection, selectionArgs);
+            mMetrics.record(ProviderMetrics.UPDATE, routeOf(match), start, rowsUpdated);
+            return rowsUpdated;
+        } catch (RuntimeException e) {
+            mMetrics.recordFailure(ProviderMetrics.UPDATE, routeOf(match), start);
+            throw e;
+        }
+    }
+
+    /**
+     * Update the URI, which matched the given code.
+     */
+    private int update(int match, Uri uri, ContentValues contentValues, String selection,
+                       String[] selectionArgs) {
         switch (match) {
             case INVENTORY:
                 return updateInventory(uri, contentValues, selection, selectionArgs);
             case INVENTORY_ID:
+                // The usual shapes of a single row update, only the quantity or every column,
+                // have a compiled statement
+                Product product = ProductValues.toProduct(contentValues);
+                if (product.size() == contentValues.size()
+                        && (product.isQuantityOnly() || product.isComplete())) {
+                    return updateInventoryById(uri, ContentUris.parseId(uri), product);
+                }
                 // For the INVENTORY_ID code, extract out the ID from the URI,
                 // so we know which row to update. Selection will be "_id=?" and selection
                 // arguments will be a String array containing the actual ID.
                 selection = InventoryEntry._ID + "=?";
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
                 return updateInventory(uri, contentValues, selection, selectionArgs);
+            case INVENTORY_SELL:
+                // For the INVENTORY_SELL code, the ID is the second to last path segment and the
+                // optional count to sell is in the content values.
+                long id = Long.parseLong(uri.getPathSegments().get(1));
+                Integer count = contentValues == null ? null
+                        : contentValues.getAsInteger(InventoryContract.EXTRA_COUNT);
+                return sellInventory(id, count == null ? 1 : count) == StockEngine.NOT_ENOUGH_STOCK ? 0 : 1;
+            case SUPPLIERS:
+                return updateSupplier(uri, contentValues, selection, selectionArgs);
+            case SUPPLIER_ID:
+                selection = SupplierEntry._ID + "=?";
+                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                return updateSupplier(uri, contentValues, selection, selectionArgs);
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
         }
@@ -182,84 +841,341 @@ public class InventoryProvider extends ContentProvider {
      * Update inventory in the database with the given content values. Apply the changes to the rows
      * specified in the selection and selection arguments (which could be 0 or 1 or more items).
      * Return the number of rows that were successfully updated.
+     * <p>
+     * A supplier name moves the rows to that supplier. A phone number without a name is written
+     * to the suppliers of the rows, so it changes for every item of those suppliers.
      */
     private int updateInventory(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
 
-        // If the {@link InventoryEntry#COLUMN_INVENTORY_PRODUCT key is present,
-        // check that the name value is not null.
-        if (values.containsKey(InventoryEntry.COLUMN_INVENTORY_PRODUCT)) {
-            String name = values.getAsString(InventoryEntry.COLUMN_INVENTORY_PRODUCT);
-            if (name == null) {
-                throw new IllegalArgumentException("Product requires a name");
+        Product product = ProductValues.toProduct(values);
+        if (product.size() != values.size()) {
+            throw new IllegalArgumentException("Cannot update " + uri + " with " + values);
+        }
+        ProductValidator.validateUpdate(product);
+
+        // Perform the update on the database and get the number of rows affected
+        int rowsUpdated = mStatements.update(product, selection, selectionArgs);
+
+        // If 1 or more rows were updated, then notify all listeners that the data at the
+        // given URI has changed
+        if (rowsUpdated != 0) {
+            notifyChange(changeUriFor(uri, InventoryContract.CHANGE_UPDATE));
+        }
+
+        // Return the number of rows updated
+        return rowsUpdated;
+    }
+
+    /**
+     * Update the suppliers matching the selection. This is a write to the supplier rows alone,
+     * however many items they supply. Return the number of suppliers updated.
+     */
+    private int updateSupplier(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+
+        validateSupplier(values, false);
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsUpdated;
+        try {
+            rowsUpdated = database.update(SupplierEntry.TABLE_NAME, values, selection, selectionArgs);
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, "Error updating " + uri + " with " + values, e);
+            throw new IllegalArgumentException("Cannot update " + uri + ": " + e.getMessage());
+        }
+
+        if (rowsUpdated != 0) {
+            notifyChange(uri);
+            // Every item of these suppliers shows their name and phone number
+            notifyChange(InventoryEntry.CONTENT_URI);
+        }
+        return rowsUpdated;
+    }
+
+    /**
+     * Update a single row with a product that only has a quantity or is complete, using a
+     * compiled statement. Return the number of rows that were updated.
+     */
+    private int updateInventoryById(Uri uri, long id, Product product) {
+
+        ProductValidator.validateUpdate(product);
+
+        int rowsUpdated = mStatements.update(id, product);
+
+        if (rowsUpdated != 0) {
+            notifyChange(changeUriFor(uri, InventoryContract.CHANGE_UPDATE));
+        }
+
+        return rowsUpdated;
+    }
+
+    /**
+     * Sell the given number of items from the row with the given ID, as long as there is enough
+     * stock. The decrement happens in SQLite, so it never depends on a quantity read earlier.
+     * Return the quantity left after the sale, or {@link StockEngine#NOT_ENOUGH_STOCK} if nothing
+     * was sold.
+     */
+    private int sellInventory(long id, int count) {
+        StockEngine.checkSale(count);
+
+        int quantity = mStatements.sell(id, count);
+
+        // If the sale went through, notify all listeners that the item has changed
+        if (quantity != StockEngine.NOT_ENOUGH_STOCK) {
+            notifyChange(InventoryEntry.buildChangeUri(id, InventoryContract.CHANGE_UPDATE));
+        }
+
+        return quantity;
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        long start = ProviderMetrics.start();
+        try {
+            Bundle result = callMethod(method, arg, extras);
+            mMetrics.record(ProviderMetrics.CALL, routeOf(method), start, 0);
+            return result;
+        } catch (RuntimeException e) {
+            mMetrics.recordFailure(ProviderMetrics.CALL, routeOf(method), start);
+            throw e;
+        }
+    }
+
+    private Bundle callMethod(String method, String arg, Bundle extras) {
+        if (InventoryContract.METHOD_SELL.equals(method)) {
+            int count = extras == null ? 1 : extras.getInt(InventoryContract.EXTRA_COUNT, 1);
+            Bundle result = new Bundle();
+            result.putInt(InventoryContract.EXTRA_QUANTITY, sellInventory(Long.parseLong(arg), count));
+            return result;
+        }
+        if (InventoryContract.METHOD_APPLY_SALES.equals(method)) {
+            if (extras == null) {
+                return applySales(new long[0], new long[0], new int[0]);
             }
+            return applySales(extras.getLongArray(InventoryContract.EXTRA_SEQUENCES),
+                    extras.getLongArray(InventoryContract.EXTRA_IDS),
+                    extras.getIntArray(InventoryContract.EXTRA_COUNTS));
         }
-        // check that the price value is not null.
-        if (values.containsKey(InventoryEntry.COLUMN_INVENTORY_PRICE)) {
-            Double price = values.getAsDouble(InventoryEntry.COLUMN_INVENTORY_PRICE);
-            if ((price < 0) && (price != null)) {
-                throw new IllegalArgumentException("Product requires a price");
+        if (InventoryContract.METHOD_ROW_CACHE_STATS.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(InventoryContract.EXTRA_CACHE_HITS, mRowCache.hitCount());
+            result.putInt(InventoryContract.EXTRA_CACHE_MISSES, mRowCache.missCount());
+            result.putInt(InventoryContract.EXTRA_CACHE_EVICTIONS, mRowCache.evictionCount());
+            result.putInt(InventoryContract.EXTRA_CACHE_SIZE, mRowCache.size());
+            result.putInt(InventoryContract.EXTRA_CACHE_MAX_SIZE, mRowCache.maxSize());
+            return result;
+        }
+        if (InventoryContract.METHOD_SAVE_SNAPSHOT.equals(method)
+                || InventoryContract.METHOD_RESTORE_SNAPSHOT.equals(method)) {
+            if (arg == null) {
+                throw new IllegalArgumentException("Snapshot requires a file");
             }
+            Bundle result = new Bundle();
+            result.putInt(InventoryContract.EXTRA_ROWS, InventoryContract.METHOD_SAVE_SNAPSHOT.equals(method)
+                    ? saveSnapshot(new File(arg)) : restoreSnapshot(new File(arg)));
+            return result;
         }
-
-        // check that the supplier value is not null.
-        if (values.containsKey(InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME)) {
-            String suppliername = values.getAsString(InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME);
-            if (suppliername == null) {
-                throw new IllegalArgumentException("Product requires a supplier name");
+        if (InventoryContract.METHOD_COMPACT_LEDGER.equals(method)) {
+            return mLedgerCompactor.compact();
+        }
+        if (InventoryContract.METHOD_NOTIFICATION_STATS.equals(method)) {
+            if (extras != null && extras.containsKey(InventoryContract.EXTRA_NOTIFY_WINDOW_MS)) {
+                mNotificationScheduler.setWindow(extras.getLong(InventoryContract.EXTRA_NOTIFY_WINDOW_MS),
+                        extras.getLong(InventoryContract.EXTRA_NOTIFY_MAX_DELAY_MS));
             }
+            Bundle result = new Bundle();
+            result.putLong(InventoryContract.EXTRA_NOTIFY_WINDOW_MS, mNotificationScheduler.getWindowMs());
+            result.putLong(InventoryContract.EXTRA_NOTIFY_MAX_DELAY_MS, mNotificationScheduler.getMaxDelayMs());
+            result.putLong(InventoryContract.EXTRA_NOTIFICATIONS_RECEIVED,
+                    mNotificationScheduler.getReceivedCount());
+            result.putLong(InventoryContract.EXTRA_NOTIFICATIONS_DISPATCHED,
+                    mNotificationScheduler.getDispatchedCount());
+            return result;
         }
-        // check that the supplierphone value is not null.
-        if (values.containsKey(InventoryEntry.COLUMN_INVENTORY_SUPPLIERPHONENUMBER)) {
-            String supplierphonenumber = values.getAsString(InventoryEntry.COLUMN_INVENTORY_SUPPLIERPHONENUMBER);
-            if (supplierphonenumber == null) {
-                throw new IllegalArgumentException("Product requires a Supplier Phone Number");
+        if (InventoryContract.METHOD_IMPORT_ROWS.equals(method)) {
+            Parcelable[] rows = extras == null ? null : extras.getParcelableArray(InventoryContract.EXTRA_VALUES);
+            if (rows == null) {
+                throw new IllegalArgumentException("Import requires rows");
             }
+            return importRows(Arrays.copyOf(rows, rows.length, ContentValues[].class));
         }
-        // check that the quantity value is not null.
-        if (values.containsKey(InventoryEntry.COLUMN_INVENTORY_QUANTITY)) {
-            int quantity = values.getAsInteger(InventoryEntry.COLUMN_INVENTORY_QUANTITY);
-            if ((quantity < 0) && (quantity != 0)) {
-                throw new IllegalArgumentException("Product requires a Quantity");
+        if (InventoryContract.METHOD_METRICS.equals(method)) {
+            StringWriter metrics = new StringWriter();
+            PrintWriter writer = new PrintWriter(metrics);
+            dumpMetrics(writer, extras != null && extras.getBoolean(InventoryContract.EXTRA_RESET));
+            writer.flush();
+            Bundle result = new Bundle();
+            result.putString(InventoryContract.EXTRA_METRICS, metrics.toString());
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Print the metrics for {@code adb shell dumpsys activity provider
+     * com.cheyennelabs.inventoryapp/.data.InventoryProvider}. With the argument "reset" they are
+     * cleared afterwards.
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        dumpMetrics(writer, args != null && Arrays.asList(args).contains("reset"));
+    }
+
+    /**
+     * Print the metrics of every route, and the totals of the notifications and the row cache.
+     */
+    private void dumpMetrics(PrintWriter writer, boolean reset) {
+        mMetrics.dump(writer);
+        writer.println(String.format(Locale.US, "Notifications: %d announced, %d sent after merging",
+                mNotificationScheduler.getReceivedCount(), mNotificationScheduler.getDispatchedCount()));
+        writer.println(String.format(Locale.US, "Row cache: %d hits, %d misses, %d evictions, %d of %d bytes",
+                mRowCache.hitCount(), mRowCache.missCount(), mRowCache.evictionCount(), mRowCache.size(),
+                mRowCache.maxSize()));
+        if (reset) {
+            mMetrics.reset();
+        }
+    }
+
+    /**
+     * Return the metrics route of a URI matcher code.
+     */
+    private static int routeOf(int match) {
+        if (match >= INVENTORY && match <= SUPPLIER_ID) {
+            return match - INVENTORY;
+        }
+        return METRICS_URI_ROUTES.length - 1;
+    }
+
+    /**
+     * Return the metrics route of a call method.
+     */
+    private static int routeOf(String method) {
+        for (int i = 0; i < METRICS_CALL_METHODS.length; i++) {
+            if (METRICS_CALL_METHODS[i].equals(method)) {
+                return METRICS_URI_ROUTES.length + i;
             }
         }
+        return METRICS_URI_ROUTES.length - 1;
+    }
 
+    /**
+     * Apply a batch of queued sales in one transaction, and move the watermark to the last one in
+     * the same transaction. Sales at or below the watermark were applied by an earlier call and
+     * are skipped, so a batch that is sent again after a crash is never applied twice. Once the
+     * batch commits the {@link SaleQueue} stops counting it, and then listeners are notified.
+     */
+    private Bundle applySales(long[] sequences, long[] ids, int[] counts) {
+        if (sequences == null || ids == null || counts == null
+                || ids.length != sequences.length || counts.length != sequences.length) {
+            throw new IllegalArgumentException("Sales require a sequence number, an ID and a count each");
+        }
 
-        // Otherwise, get writeable database to update the data
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        AppliedSales applied = mStatements.applySales(sequences, ids, counts);
 
-        // Perform the update on the database and get the number of rows affected
-        int rowsUpdated = database.update(InventoryEntry.TABLE_NAME, values, selection, selectionArgs);
+        // The batch was committed, so the queue must stop counting it before anyone reloads
+        SaleQueue.onSalesApplied(applied.getWatermark());
 
-        // If 1 or more rows were updated, then notify all listeners that the data at the
-        // given URI has changed
-        if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+        // Now tell listeners what changed. The list already showed the rejected sales, so it
+        // has to show the real quantity of those rows again.
+        for (long id : applied.getSoldIds()) {
+            notifyChange(InventoryEntry.buildChangeUri(id, InventoryContract.CHANGE_UPDATE));
+        }
+        for (long id : applied.getRejectedIds()) {
+            notifyChange(InventoryEntry.buildChangeUri(id, InventoryContract.CHANGE_UPDATE));
         }
 
-        // Return the number of rows updated
-        return rowsUpdated;
+        int rejected = applied.getRejectedIds().length;
+        if (rejected != 0) {
+            Log.e(LOG_TAG, "Dropped " + rejected + " queued sales without enough stock");
+        }
+
+        Bundle result = new Bundle();
+        result.putLong(InventoryContract.EXTRA_SEQUENCE, applied.getWatermark());
+        result.putInt(InventoryContract.EXTRA_REJECTED, rejected);
+        return result;
+    }
+
+    /**
+     * Write a binary snapshot of every product to the given file. Return the number of products.
+     */
+    private int saveSnapshot(File file) {
+        try {
+            return InventorySnapshot.write(mDbHelper.getWritableDatabase(), file);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to write snapshot " + file, e);
+            throw new IllegalArgumentException("Cannot write snapshot " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Replace every product and supplier with the ones in the given snapshot file, in one
+     * transaction. Return the number of products restored.
+     */
+    private int restoreSnapshot(File file) {
+        int rowsRestored;
+        try {
+            rowsRestored = InventorySnapshot.restore(mDbHelper.getWritableDatabase(), file);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to restore snapshot " + file, e);
+            throw new IllegalArgumentException("Cannot restore snapshot " + file + ": " + e.getMessage());
+        }
+
+        // Every row may have changed, and the suppliers were replaced too
+        notifyChange(InventoryEntry.CONTENT_URI);
+        notifyChange(SupplierEntry.CONTENT_URI);
+        return rowsRestored;
     }
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        final int match = sUriMatcher.match(uri);
+        long start = ProviderMetrics.start();
+        try {
+            int rowsDeleted = delete(match, uri, selection, selectionArgs);
+            mMetrics.record(ProviderMetrics.DELETE, routeOf(match), start, rowsDeleted);
+            return rowsDeleted;
+        } catch (RuntimeException e) {
+            mMetrics.recordFailure(ProviderMetrics.DELETE, routeOf(match), start);
+            throw e;
+        }
+    }
+
+    /**
+     * Delete from the URI, which matched the given code.
+     */
+    private int delete(int match, Uri uri, String selection, String[] selectionArgs) {
         // Get writeable database
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
         // Track the number of rows that were deleted
         int rowsDeleted;
 
-        final int match = sUriMatcher.match(uri);
         switch (match) {
             case INVENTORY:
                 // Delete all rows that match the selection and selection args
-                rowsDeleted = database.delete(InventoryEntry.TABLE_NAME, selection, selectionArgs);
+                rowsDeleted = database.delete(InventoryEntry.TABLE_NAME, InventoryStatements.selectThroughView(selection),
+                        selectionArgs);
                 break;
             case INVENTORY_ID:
                 // Delete a single row given by the ID in the URI
-                selection = InventoryEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                rowsDeleted = database.delete(InventoryEntry.TABLE_NAME, selection, selectionArgs);
+                rowsDeleted = mStatements.delete(ContentUris.parseId(uri));
                 break;
+            case SUPPLIERS:
+            case SUPPLIER_ID:
+                if (match == SUPPLIER_ID) {
+                    selection = SupplierEntry._ID + "=?";
+                    selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                }
+                // The foreign key refuses to delete a supplier that still has items
+                try {
+                    rowsDeleted = database.delete(SupplierEntry.TABLE_NAME, selection, selectionArgs);
+                } catch (SQLiteConstraintException e) {
+                    Log.e(LOG_TAG, "Error deleting " + uri, e);
+                    throw new IllegalArgumentException("Cannot delete a supplier that still has products");
+                }
+                if (rowsDeleted != 0) {
+                    notifyChange(uri);
+                }
+                return rowsDeleted;
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
@@ -267,13 +1183,138 @@ public class InventoryProvider extends ContentProvider {
         // If 1 or more rows were deleted, then notify all listeners that the data at the
         // given URI has changed
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(changeUriFor(uri, InventoryContract.CHANGE_DELETE));
         }
 
         // Return the number of rows deleted
         return rowsDeleted;
     }
 
+    /**
+     * Apply a list of operations (for example every line of a checkout) as a single transaction.
+     * If any operation fails, nothing is written. Listeners are notified once per changed URI
+     * after the transaction commits, instead of once per operation.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        // Get writeable database
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        Set<Uri> pendingNotifications = new LinkedHashSet<>();
+        mPendingNotifications.set(pendingNotifications);
+
+        ContentProviderResult[] results;
+        database.beginTransactionNonExclusive();
+        try {
+            // The default implementation applies each operation in order and resolves
+            // back-references, so it only needs to run inside our transaction.
+            results = super.applyBatch(operations);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            mPendingNotifications.remove();
+            mStatements.dispatchSupplierChanges();
+        }
+
+        // The batch was committed, so now tell listeners what changed
+        for (Uri uri : pendingNotifications) {
+            notifyChange(uri);
+        }
+
+        return results;
+    }
+
+    /**
+     * Return the URI to announce a change made through the given URI on. A change to a single row
+     * is announced on that row, so listeners can patch just that row. Anything else is announced
+     * on the URI itself, which means any number of rows may have changed.
+     */
+    private static Uri changeUriFor(Uri uri, String change) {
+        if (sUriMatcher.match(uri) == INVENTORY_ID) {
+            return InventoryEntry.buildChangeUri(ContentUris.parseId(uri), change);
+        }
+        return uri;
+    }
+
+    /**
+     * Notify all listeners that the data at the given URI has changed. While a batch is being
+     * applied the notification is held back until the batch commits, and after that it is merged
+     * with any other changes that come in right after it.
+     * <p>
+     * Every write announces its change here, so this is also where the row cache is cleared. That
+     * happens right away and again once a batch commits, so a row read in between is dropped too.
+     */
+    private void notifyChange(Uri uri) {
+        int match = sUriMatcher.match(uri);
+        if (match == INVENTORY_ID) {
+            mRowCache.remove(ContentUris.parseId(uri));
+        } else if (match != SUPPLIERS && match != SUPPLIER_ID) {
+            // Changes to suppliers that show up in the items are announced on the inventory too
+            mRowCache.clear();
+        }
+
+        Set<Uri> pendingNotifications = mPendingNotifications.get();
+        if (pendingNotifications != null) {
+            pendingNotifications.add(uri);
+            return;
+        }
+        mMetrics.recordNotification(routeOf(match));
+        mNotificationScheduler.schedule(uri);
+    }
+
+    /**
+     * Open the export as CSV. The rows are written to a pipe by a background thread while the
+     * caller reads them.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != INVENTORY_EXPORT) {
+            return super.openFile(uri, mode);
+        }
+        return openExport(uri, mode, InventoryEntry.EXPORT_TYPE_CSV);
+    }
+
+    /**
+     * Open the export as the first of its types that matches the filter, CSV or JSON.
+     */
+    @Override
+    public AssetFileDescriptor openTypedAssetFile(Uri uri, String mimeTypeFilter, Bundle opts)
+            throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != INVENTORY_EXPORT) {
+            return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+        }
+        String[] types = getStreamTypes(uri, mimeTypeFilter);
+        if (types == null) {
+            throw new FileNotFoundException("Cannot export as " + mimeTypeFilter);
+        }
+        return new AssetFileDescriptor(openExport(uri, "r", types[0]), 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+    }
+
+    @Override
+    public String[] getStreamTypes(Uri uri, String mimeTypeFilter) {
+        if (sUriMatcher.match(uri) != INVENTORY_EXPORT) {
+            return null;
+        }
+        List<String> types = new ArrayList<>();
+        for (String type : EXPORT_TYPES) {
+            if (ClipDescription.compareMimeTypes(type, mimeTypeFilter)) {
+                types.add(type);
+            }
+        }
+        return types.isEmpty() ? null : types.toArray(new String[types.size()]);
+    }
+
+    private ParcelFileDescriptor openExport(Uri uri, String mode, String mimeType) throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("The export can only be read, not opened with mode " + mode);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return mExporter.openReliablePipe(uri, mimeType);
+        }
+        return openPipeHelper(uri, mimeType, null, null, mExporter);
+    }
+
     @Override
     public String getType(Uri uri) {
         final int match = sUriMatcher.match(uri);
@@ -281,7 +1322,22 @@ public class InventoryProvider extends ContentProvider {
             case INVENTORY:
                 return InventoryEntry.CONTENT_LIST_TYPE;
             case INVENTORY_ID:
+            case INVENTORY_SELL:
                 return InventoryEntry.CONTENT_ITEM_TYPE;
+            case INVENTORY_SEARCH:
+            case INVENTORY_LIST:
+            case INVENTORY_LOW_STOCK:
+                return InventoryEntry.CONTENT_LIST_TYPE;
+            case INVENTORY_SUMMARY:
+                return SummaryEntry.CONTENT_ITEM_TYPE;
+            case INVENTORY_EXPORT:
+                return InventoryEntry.EXPORT_TYPE_CSV;
+            case INVENTORY_MOVEMENTS:
+                return StockMovementEntry.CONTENT_LIST_TYPE;
+            case SUPPLIERS:
+                return SupplierEntry.CONTENT_LIST_TYPE;
+            case SUPPLIER_ID:
+                return SupplierEntry.CONTENT_ITEM_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
@@ -0,0 +1,174 @@
+package com.cheyennelabs.inventoryapp.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.LruCache;
+
+import com.cheyennelabs.inventoryapp.data.InventoryContract.InventoryEntry;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps the most recently read inventory rows in memory, keyed by _ID, so opening a product that
+ * was looked at a moment ago does not query SQLite again. The cache is bounded by an estimate of
+ * the memory its rows take up.
+ * <p>
+ * The provider drops a row whenever it announces a change to it, and drops everything when many
+ * rows may have changed. A row read from the database is only stored if nothing was dropped while
+ * it was being read, so a row that changed during the read never ends up in the cache.
+ */
+class InventoryRowCache {
+
+    /**
+     * The columns of a cached row, in the order they are stored
+     */
+    static final String[] COLUMNS = {
+            InventoryEntry._ID,
+            InventoryEntry.COLUMN_INVENTORY_PRODUCT,
+            InventoryEntry.COLUMN_INVENTORY_PRICE,
+            InventoryEntry.COLUMN_INVENTORY_QUANTITY,
+            InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME,
+            InventoryEntry.COLUMN_INVENTORY_SUPPLIERPHONENUMBER,
+            InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD};
+
+    private static final List<String> COLUMN_LIST = Arrays.asList(COLUMNS);
+
+    /**
+     * Rough size of a cached row without its strings: the entry, its key, the array and the
+     * boxed numbers, in bytes.
+     */
+    private static final int ROW_OVERHEAD = 128;
+
+    private final LruCache<Long, Object[]> mRows;
+
+    /**
+     * Bumped every time rows are dropped. Guarded by this.
+     */
+    private long mGeneration;
+
+    /**
+     * @param maxBytes the most memory the cached rows may take up, in bytes
+     */
+    InventoryRowCache(int maxBytes) {
+        mRows = new LruCache<Long, Object[]>(maxBytes) {
+            @Override
+            protected int sizeOf(Long id, Object[] row) {
+                int size = ROW_OVERHEAD;
+                for (Object value : row) {
+                    if (value instanceof String) {
+                        size += 40 + 2 * ((String) value).length();
+                    }
+                }
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Return a cache size that fits the memory the app is given: 1/64 of the heap.
+     */
+    static int defaultMaxBytes() {
+        return (int) Math.min(Runtime.getRuntime().maxMemory() / 64, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Return true if a cached row has every column of the projection. A null projection means
+     * every column.
+     */
+    static boolean hasColumns(String[] projection) {
+        return projection == null || COLUMN_LIST.containsAll(Arrays.asList(projection));
+    }
+
+    /**
+     * Return the cached row with the given _ID, or null if it is not cached.
+     */
+    Object[] get(long id) {
+        return mRows.get(id);
+    }
+
+    /**
+     * Read the current row of the cursor, which has to hold {@link #COLUMNS} in that order.
+     */
+    static Object[] readRow(Cursor cursor) {
+        return new Object[]{
+                cursor.getLong(0),
+                cursor.getString(1),
+                cursor.getLong(2),
+                cursor.getInt(3),
+                cursor.getString(4),
+                cursor.getString(5),
+                cursor.getInt(6)};
+    }
+
+    /**
+     * Return the generation to pass to {@link #put} for a row that is about to be read.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Cache a row read from the database, unless rows were dropped since the read started.
+     */
+    synchronized void put(long id, Object[] row, long generation) {
+        if (generation == mGeneration) {
+            mRows.put(id, row);
+        }
+    }
+
+    /**
+     * Drop the row with the given _ID.
+     */
+    synchronized void remove(long id) {
+        mGeneration++;
+        mRows.remove(id);
+    }
+
+    /**
+     * Drop every row.
+     */
+    synchronized void clear() {
+        mGeneration++;
+        mRows.evictAll();
+    }
+
+    /**
+     * Return a cursor over a single row (or no rows, if the row is null) with the columns of the
+     * projection. The projection has to pass {@link #hasColumns}.
+     */
+    static Cursor toCursor(Object[] row, String[] projection) {
+        if (projection == null) {
+            projection = COLUMNS;
+        }
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        if (row != null) {
+            Object[] values = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                values[i] = row[COLUMN_LIST.indexOf(projection[i])];
+            }
+            cursor.addRow(values);
+        }
+        return cursor;
+    }
+
+    int hitCount() {
+        return mRows.hitCount();
+    }
+
+    int missCount() {
+        return mRows.missCount();
+    }
+
+    int evictionCount() {
+        return mRows.evictionCount();
+    }
+
+    int size() {
+        return mRows.size();
+    }
+
+    int maxSize() {
+        return mRows.maxSize();
+    }
+}
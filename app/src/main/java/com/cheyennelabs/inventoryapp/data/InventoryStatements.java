@@ -0,0 +1,762 @@
+package com.cheyennelabs.inventoryapp.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.cheyennelabs.inventoryapp.core.AppliedSales;
+import com.cheyennelabs.inventoryapp.core.InventoryRepository;
+import com.cheyennelabs.inventoryapp.core.Product;
+import com.cheyennelabs.inventoryapp.core.StockEngine;
+import com.cheyennelabs.inventoryapp.data.InventoryContract.InventoryEntry;
+import com.cheyennelabs.inventoryapp.data.InventoryContract.SalesWatermarkEntry;
+import com.cheyennelabs.inventoryapp.data.InventoryContract.StockMovementEntry;
+import com.cheyennelabs.inventoryapp.data.InventoryContract.SupplierEntry;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Compiled statements for the fixed-shape writes the provider does most often: insert, sell, set
+ * quantity, update a whole row by _ID, delete by _ID and the upsert of an import. Each statement is compiled the first time
+ * it is used and then only rebound, so these writes skip building the SQL from
+ * {@link ContentValues} and compiling it again every time. Updates by a selection and batches
+ * of queued sales are done here too, so every write of a product goes through this class.
+ * <p>
+ * Every write that changes a quantity also appends a movement to the stock ledger, in the same
+ * transaction, so the movements of a product always add up to its quantity.
+ * <p>
+ * The supplier name and phone number of a row are written to its supplier, which is looked up by
+ * name (and added if it is new) before the row itself is written.
+ * <p>
+ * A statement can only be bound by one thread at a time, so each one has its own lock. That lock
+ * is only taken once the thread holds a transaction. Taking it first could deadlock with a thread
+ * that holds the transaction and is waiting for the lock. The locks of the ledger statements are
+ * only ever taken last, inside the lock of the write they record.
+ * <p>
+ * This is the {@link InventoryRepository} of the app: the provider checks a write with the core's
+ * validation and hands it here.
+ */
+class InventoryStatements implements InventoryRepository {
+
+    /**
+     * Insert statement, with the columns in the order bound by {@link #bindInventory}.
+     */
+    private static final String SQL_INSERT_INVENTORY = "INSERT INTO " + InventoryEntry.TABLE_NAME + " ("
+            + InventoryEntry.COLUMN_INVENTORY_PRODUCT + ", "
+            + InventoryEntry.COLUMN_INVENTORY_PRICE + ", "
+            + InventoryEntry.COLUMN_INVENTORY_QUANTITY + ", "
+            + InventoryEntry.COLUMN_INVENTORY_SUPPLIER_ID + ", "
+            + InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD + ") VALUES (?, ?, ?, ?, ?)";
+
+    /**
+     * Update of every column of a single row, bound like {@link #SQL_INSERT_INVENTORY} with the
+     * _ID last.
+     */
+    private static final String SQL_UPDATE_INVENTORY = "UPDATE " + InventoryEntry.TABLE_NAME + " SET "
+            + InventoryEntry.COLUMN_INVENTORY_PRODUCT + " = ?, "
+            + InventoryEntry.COLUMN_INVENTORY_PRICE + " = ?, "
+            + InventoryEntry.COLUMN_INVENTORY_QUANTITY + " = ?, "
+            + InventoryEntry.COLUMN_INVENTORY_SUPPLIER_ID + " = ?, "
+            + InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD + " = ?"
+            + " WHERE " + InventoryEntry._ID + " = ?";
+
+    /**
+     * Set the quantity of a single row. Takes the quantity and then the _ID.
+     */
+    static final String SQL_SET_QUANTITY = "UPDATE " + InventoryEntry.TABLE_NAME
+            + " SET " + InventoryEntry.COLUMN_INVENTORY_QUANTITY + " = ?"
+            + " WHERE " + InventoryEntry._ID + " = ?";
+
+    /**
+     * Sell statement. Takes the count to sell, the _ID, and the count again, and only touches the
+     * row when there is enough stock, so concurrent sales can never oversell.
+     */
+    private static final String SQL_SELL_INVENTORY = "UPDATE " + InventoryEntry.TABLE_NAME
+            + " SET " + InventoryEntry.COLUMN_INVENTORY_QUANTITY + " = "
+            + InventoryEntry.COLUMN_INVENTORY_QUANTITY + " - ?"
+            + " WHERE " + InventoryEntry._ID + " = ? AND "
+            + InventoryEntry.COLUMN_INVENTORY_QUANTITY + " >= ?";
+
+    /**
+     * Read back the quantity of a single row after it was sold from.
+     */
+    private static final String SQL_QUERY_QUANTITY = "SELECT " + InventoryEntry.COLUMN_INVENTORY_QUANTITY
+            + " FROM " + InventoryEntry.TABLE_NAME + " WHERE " + InventoryEntry._ID + " = ?";
+
+    /**
+     * Update of the rows with a given product and supplier, for an upsert. Takes the price,
+     * quantity and reorder threshold, then the product and the supplier's _ID. A null price,
+     * quantity or threshold keeps the current one.
+     */
+    private static final String SQL_UPSERT_INVENTORY = "UPDATE " + InventoryEntry.TABLE_NAME + " SET "
+            + InventoryEntry.COLUMN_INVENTORY_PRICE + " = IFNULL(?, " + InventoryEntry.COLUMN_INVENTORY_PRICE + "), "
+            + InventoryEntry.COLUMN_INVENTORY_QUANTITY + " = IFNULL(?, " + InventoryEntry.COLUMN_INVENTORY_QUANTITY + "), "
+            + InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD + " = IFNULL(?, "
+            + InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD + ")"
+            + " WHERE " + InventoryEntry.COLUMN_INVENTORY_PRODUCT + " = ? AND "
+            + InventoryEntry.COLUMN_INVENTORY_SUPPLIER_ID + " = ?";
+
+    /**
+     * Look up the _ID of the supplier with a given name, or -1 if there is none.
+     */
+    private static final String SQL_QUERY_SUPPLIER = "SELECT IFNULL((SELECT " + SupplierEntry._ID
+            + " FROM " + SupplierEntry.TABLE_NAME + " WHERE " + SupplierEntry.COLUMN_NAME + " = ?), -1)";
+
+    /**
+     * Add a supplier. Takes the name and the phone number.
+     */
+    static final String SQL_INSERT_SUPPLIER = "INSERT INTO " + SupplierEntry.TABLE_NAME + " ("
+            + SupplierEntry.COLUMN_NAME + ", "
+            + SupplierEntry.COLUMN_PHONE_NUMBER + ") VALUES (?, ?)";
+
+    /**
+     * Set the phone number of a supplier. Takes the number and then the _ID, and leaves the row
+     * alone when the number is the same.
+     */
+    private static final String SQL_UPDATE_SUPPLIER_PHONE = "UPDATE " + SupplierEntry.TABLE_NAME
+            + " SET " + SupplierEntry.COLUMN_PHONE_NUMBER + " = ?1"
+            + " WHERE " + SupplierEntry._ID + " = ?2 AND " + SupplierEntry.COLUMN_PHONE_NUMBER + " IS NOT ?1";
+
+    /**
+     * Append a movement to the ledger. Takes the _ID, the kind and the change in quantity.
+     */
+    private static final String SQL_INSERT_MOVEMENT = "INSERT INTO " + StockMovementEntry.TABLE_NAME + " ("
+            + StockMovementEntry.COLUMN_PRODUCT_ID + ", "
+            + StockMovementEntry.COLUMN_KIND + ", "
+            + StockMovementEntry.COLUMN_DELTA + ") VALUES (?, ?, ?)";
+
+    /**
+     * Record the change of a single row to a new quantity. Takes the quantity and then the _ID.
+     */
+    static final String SQL_INSERT_CHANGE_BY_ID = insertChangesSql("?1")
+            + " AND " + InventoryEntry._ID + " = ?2";
+
+    /**
+     * Record the change of the rows with a given product and supplier to a new quantity. Takes
+     * the quantity, then the product and the supplier's _ID.
+     */
+    private static final String SQL_INSERT_CHANGE_BY_NAME = insertChangesSql("?1")
+            + " AND " + InventoryEntry.COLUMN_INVENTORY_PRODUCT + " = ?2 AND "
+            + InventoryEntry.COLUMN_INVENTORY_SUPPLIER_ID + " = ?3";
+
+    /**
+     * Start the ledger over with a checkpoint of the current quantity of every row.
+     */
+    static final String SQL_INSERT_CHECKPOINTS = "INSERT INTO " + StockMovementEntry.TABLE_NAME + " ("
+            + StockMovementEntry.COLUMN_PRODUCT_ID + ", "
+            + StockMovementEntry.COLUMN_KIND + ", "
+            + StockMovementEntry.COLUMN_DELTA + ") SELECT "
+            + InventoryEntry._ID + ", "
+            + StockMovementEntry.KIND_CHECKPOINT + ", "
+            + InventoryEntry.COLUMN_INVENTORY_QUANTITY + " FROM " + InventoryEntry.TABLE_NAME;
+
+    /**
+     * Read the sequence number of the last queued sale that was applied.
+     */
+    private static final String SQL_QUERY_WATERMARK = "SELECT " + SalesWatermarkEntry.COLUMN_SEQUENCE
+            + " FROM " + SalesWatermarkEntry.TABLE_NAME
+            + " WHERE " + SalesWatermarkEntry._ID + " = " + SalesWatermarkEntry.ROW_ID;
+
+    private static final String SQL_DELETE_INVENTORY = "DELETE FROM " + InventoryEntry.TABLE_NAME
+            + " WHERE " + InventoryEntry._ID + " = ?";
+
+    private final InventoryDbHelper mDbHelper;
+
+    private final CachedStatement mInsert = new CachedStatement(SQL_INSERT_INVENTORY);
+
+    private final CachedStatement mUpdate = new CachedStatement(SQL_UPDATE_INVENTORY);
+
+    private final CachedStatement mSetQuantity = new CachedStatement(SQL_SET_QUANTITY);
+
+    /**
+     * Sell statement. Its lock also guards {@link #mQuantity}, so a sale and the read of the new
+     * quantity always go together.
+     */
+    private final CachedStatement mSell = new CachedStatement(SQL_SELL_INVENTORY);
+
+    private final CachedStatement mQuantity = new CachedStatement(SQL_QUERY_QUANTITY);
+
+    private final CachedStatement mDelete = new CachedStatement(SQL_DELETE_INVENTORY);
+
+    private final CachedStatement mUpsert = new CachedStatement(SQL_UPSERT_INVENTORY);
+
+    private final CachedStatement mInsertMovement = new CachedStatement(SQL_INSERT_MOVEMENT);
+
+    private final CachedStatement mInsertChangeById = new CachedStatement(SQL_INSERT_CHANGE_BY_ID);
+
+    private final CachedStatement mInsertChangeByName = new CachedStatement(SQL_INSERT_CHANGE_BY_NAME);
+
+    /**
+     * Supplier lookup. Its lock also guards {@link #mInsertSupplier} and {@link #mUpdateSupplierPhone},
+     * so a supplier can't be added twice. It is released before the lock of the row being written
+     * is taken.
+     */
+    private final CachedStatement mQuerySupplier = new CachedStatement(SQL_QUERY_SUPPLIER);
+
+    private final CachedStatement mInsertSupplier = new CachedStatement(SQL_INSERT_SUPPLIER);
+
+    private final CachedStatement mUpdateSupplierPhone = new CachedStatement(SQL_UPDATE_SUPPLIER_PHONE);
+
+    private final SupplierListener mSupplierListener;
+
+    /**
+     * The supplier changes of the transaction that is open on each thread, held back until it
+     * has ended, see {@link #dispatchSupplierChanges}
+     */
+    private final ThreadLocal<SupplierChanges> mSupplierChanges = new ThreadLocal<>();
+
+    /**
+     * Told about the suppliers that writes add or change along the way, on the writing thread
+     * once its transaction has ended. Until then a reader on another connection still sees the
+     * old supplier, and whatever it reads then must not outlive the change.
+     */
+    interface SupplierListener {
+
+        void onSupplierAdded(long id);
+
+        /**
+         * The supplier's phone number changed, so every item of that supplier shows a new one.
+         */
+        void onSupplierChanged(long id);
+
+        /**
+         * The phone numbers of any number of suppliers changed.
+         */
+        void onSuppliersChanged();
+    }
+
+    InventoryStatements(InventoryDbHelper dbHelper, SupplierListener supplierListener) {
+        mDbHelper = dbHelper;
+        mSupplierListener = supplierListener;
+    }
+
+    /**
+     * Insert a row that already passed validation. Return its _ID.
+     */
+    @Override
+    public long insert(Product product) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        boolean ownTransaction = beginTransaction(database);
+        try {
+            long id = insert(database, product, supplierId(database, product));
+            if (ownTransaction) {
+                database.setTransactionSuccessful();
+            }
+            return id;
+        } finally {
+            if (ownTransaction) {
+                database.endTransaction();
+                dispatchSupplierChanges();
+            }
+        }
+    }
+
+    /**
+     * Insert a row for the given supplier, in a transaction the caller holds. Return its _ID.
+     */
+    private long insert(SQLiteDatabase database, Product product, long supplierId) {
+        long id;
+        synchronized (mInsert) {
+            SQLiteStatement statement = mInsert.get(database);
+            bindInventory(statement, product, supplierId);
+            id = statement.executeInsert();
+            // A new product's stock is its first restock
+            int quantity = product.quantityOrDefault();
+            if (id != -1 && quantity != 0) {
+                recordMovement(database, id, StockMovementEntry.KIND_RESTOCK, quantity);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Update the rows with the same product and supplier name as a row that already passed
+     * validation, or insert the row if there are none. Return true if rows were updated.
+     */
+    @Override
+    public boolean upsert(Product product) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        boolean ownTransaction = beginTransaction(database);
+        try {
+            // The phone number is the supplier's, so it is written there once
+            long supplierId = supplierId(database, product);
+            int rowsUpdated;
+            synchronized (mUpsert) {
+                Integer quantity = product.getQuantity();
+                if (quantity != null) {
+                    synchronized (mInsertChangeByName) {
+                        SQLiteStatement record = mInsertChangeByName.get(database);
+                        record.bindLong(1, quantity);
+                        record.bindString(2, product.getName());
+                        record.bindLong(3, supplierId);
+                        record.executeInsert();
+                    }
+                }
+                SQLiteStatement statement = mUpsert.get(database);
+                statement.clearBindings();
+                bindNullable(statement, 1, product.getPrice());
+                bindNullable(statement, 2, quantity);
+                bindNullable(statement, 3, product.getReorderThreshold());
+                statement.bindString(4, product.getName());
+                statement.bindLong(5, supplierId);
+                rowsUpdated = statement.executeUpdateDelete();
+            }
+            // Still in the transaction, so no other row with this product can appear in between
+            if (rowsUpdated == 0) {
+                insert(database, product, supplierId);
+            }
+            if (ownTransaction) {
+                database.setTransactionSuccessful();
+            }
+            return rowsUpdated != 0;
+        } finally {
+            if (ownTransaction) {
+                database.endTransaction();
+                dispatchSupplierChanges();
+            }
+        }
+    }
+
+    /**
+     * Update a single row with a product that passed validation and either only has a quantity
+     * or is {@link Product#isComplete complete}. Return the number of rows updated.
+     */
+    @Override
+    public int update(long id, Product product) {
+        if (product.isQuantityOnly()) {
+            return setQuantity(id, product.getQuantity());
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        boolean ownTransaction = beginTransaction(database);
+        try {
+            long supplierId = supplierId(database, product);
+            int rowsUpdated;
+            synchronized (mUpdate) {
+                recordChange(database, id, product.getQuantity());
+                SQLiteStatement statement = mUpdate.get(database);
+                bindInventory(statement, product, supplierId);
+                statement.bindLong(6, id);
+                rowsUpdated = statement.executeUpdateDelete();
+            }
+            if (ownTransaction) {
+                database.setTransactionSuccessful();
+            }
+            return rowsUpdated;
+        } finally {
+            if (ownTransaction) {
+                database.endTransaction();
+                dispatchSupplierChanges();
+            }
+        }
+    }
+
+    /**
+     * Update the rows a selection over {@link InventoryEntry#VIEW_NAME} picks with a product that
+     * passed validation. The SQL depends on the values that were set and on the selection, so it
+     * is compiled every time. A new quantity is recorded in the stock ledger and new supplier
+     * details go to the suppliers, all in the same transaction. Return the number of rows
+     * updated; a change of the phone number alone counts for every row it was asked for.
+     */
+    @Override
+    public int update(Product product, String selection, String[] selectionArgs) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        selection = selectThroughView(selection);
+        boolean ownTransaction = beginTransaction(database);
+        try {
+            ContentValues values = new ContentValues();
+            if (product.hasName()) {
+                values.put(InventoryEntry.COLUMN_INVENTORY_PRODUCT, product.getName());
+            }
+            if (product.hasPrice()) {
+                values.put(InventoryEntry.COLUMN_INVENTORY_PRICE, product.getPrice());
+            }
+            if (product.hasReorderThreshold()) {
+                values.put(InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD, product.getReorderThreshold());
+            }
+            if (product.hasSupplierName()) {
+                values.put(InventoryEntry.COLUMN_INVENTORY_SUPPLIER_ID, supplierId(database, product));
+            } else if (product.hasSupplierPhoneNumber()) {
+                updateSupplierPhoneNumbers(database, product.getSupplierPhoneNumber(), selection, selectionArgs);
+            }
+            if (product.hasQuantity()) {
+                values.put(InventoryEntry.COLUMN_INVENTORY_QUANTITY, product.getQuantity());
+                recordChanges(database, product.getQuantity(), selection, selectionArgs);
+            }
+
+            int rowsUpdated;
+            if (values.size() == 0) {
+                rowsUpdated = (int) DatabaseUtils.queryNumEntries(database, InventoryEntry.TABLE_NAME,
+                        selection, selectionArgs);
+            } else {
+                rowsUpdated = database.update(InventoryEntry.TABLE_NAME, values, selection, selectionArgs);
+            }
+            if (ownTransaction) {
+                database.setTransactionSuccessful();
+            }
+            return rowsUpdated;
+        } finally {
+            if (ownTransaction) {
+                database.endTransaction();
+                dispatchSupplierChanges();
+            }
+        }
+    }
+
+    /**
+     * Return a selection on the inventory table that picks the rows the given selection picks in
+     * the view with the suppliers, or null for every row.
+     */
+    static String selectThroughView(String selection) {
+        if (selection == null || selection.isEmpty()) {
+            return null;
+        }
+        return InventoryEntry._ID + " IN (SELECT " + InventoryEntry._ID + " FROM "
+                + InventoryEntry.VIEW_NAME + " WHERE " + selection + ")";
+    }
+
+    /**
+     * Set the phone number of the suppliers of the inventory rows matching the selection.
+     */
+    private void updateSupplierPhoneNumbers(SQLiteDatabase database, String phoneNumber,
+                                            String selection, String[] selectionArgs) {
+        String suppliers = "SELECT " + InventoryEntry.COLUMN_INVENTORY_SUPPLIER_ID + " FROM "
+                + InventoryEntry.TABLE_NAME + (selection == null ? "" : " WHERE " + selection);
+        ContentValues values = new ContentValues();
+        values.put(SupplierEntry.COLUMN_PHONE_NUMBER, phoneNumber);
+        if (database.update(SupplierEntry.TABLE_NAME, values, SupplierEntry._ID + " IN (" + suppliers + ")",
+                selectionArgs) != 0) {
+            supplierChanges().mAll = true;
+        }
+    }
+
+    private SupplierChanges supplierChanges() {
+        SupplierChanges changes = mSupplierChanges.get();
+        if (changes == null) {
+            changes = new SupplierChanges();
+            mSupplierChanges.set(changes);
+        }
+        return changes;
+    }
+
+    /**
+     * Tell the listener about the suppliers the writes on this thread added or changed, and
+     * forget them. Call it once the transaction they ran in has ended: the writes above do it for
+     * a transaction of their own, and whoever opened an outer transaction does it for that one.
+     * After a rollback the listener hears of changes that did not happen, which does no harm.
+     */
+    void dispatchSupplierChanges() {
+        SupplierChanges changes = mSupplierChanges.get();
+        if (changes == null) {
+            return;
+        }
+        mSupplierChanges.remove();
+        for (long id : changes.mAdded) {
+            mSupplierListener.onSupplierAdded(id);
+        }
+        if (changes.mAll) {
+            mSupplierListener.onSuppliersChanged();
+        } else {
+            for (long id : changes.mChanged) {
+                mSupplierListener.onSupplierChanged(id);
+            }
+        }
+    }
+
+    /**
+     * Set the quantity of a single row. Return the number of rows updated.
+     */
+    int setQuantity(long id, int quantity) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        boolean ownTransaction = beginTransaction(database);
+        try {
+            int rowsUpdated;
+            synchronized (mSetQuantity) {
+                recordChange(database, id, quantity);
+                SQLiteStatement statement = mSetQuantity.get(database);
+                statement.bindLong(1, quantity);
+                statement.bindLong(2, id);
+                rowsUpdated = statement.executeUpdateDelete();
+            }
+            if (ownTransaction) {
+                database.setTransactionSuccessful();
+            }
+            return rowsUpdated;
+        } finally {
+            if (ownTransaction) {
+                database.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Sell the given number of items from a single row, as long as there is enough stock. Return
+     * the quantity left after the sale, or {@link StockEngine#NOT_ENOUGH_STOCK} if nothing was sold.
+     */
+    @Override
+    public int sell(long id, int count) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        // Always in a transaction of its own, so the quantity read back is the one this sale left
+        database.beginTransactionNonExclusive();
+        try {
+            int quantity = StockEngine.NOT_ENOUGH_STOCK;
+            synchronized (mSell) {
+                SQLiteStatement sell = mSell.get(database);
+                sell.bindLong(1, count);
+                sell.bindLong(2, id);
+                sell.bindLong(3, count);
+                if (sell.executeUpdateDelete() != 0) {
+                    recordMovement(database, id, StockMovementEntry.KIND_SALE, -count);
+                    SQLiteStatement query = mQuantity.get(database);
+                    query.bindLong(1, id);
+                    quantity = (int) query.simpleQueryForLong();
+                }
+            }
+            database.setTransactionSuccessful();
+            return quantity;
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Apply a batch of queued sales in one transaction, and move the watermark to the last one in
+     * the same transaction.
+     */
+    @Override
+    public AppliedSales applySales(long[] sequences, long[] ids, int[] counts) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long[] sold = new long[sequences.length];
+        int soldCount = 0;
+        long[] rejected = new long[sequences.length];
+        int rejectedCount = 0;
+        long watermark;
+        database.beginTransactionNonExclusive();
+        try {
+            watermark = DatabaseUtils.longForQuery(database, SQL_QUERY_WATERMARK, null);
+            long newWatermark = watermark;
+            for (int i = 0; i < sequences.length; i++) {
+                if (sequences[i] <= watermark) {
+                    continue;
+                }
+                StockEngine.checkSale(counts[i]);
+                if (sell(ids[i], counts[i]) == StockEngine.NOT_ENOUGH_STOCK) {
+                    rejected[rejectedCount++] = ids[i];
+                } else {
+                    sold[soldCount++] = ids[i];
+                }
+                newWatermark = Math.max(newWatermark, sequences[i]);
+            }
+            if (newWatermark != watermark) {
+                ContentValues values = new ContentValues();
+                values.put(SalesWatermarkEntry.COLUMN_SEQUENCE, newWatermark);
+                database.update(SalesWatermarkEntry.TABLE_NAME, values,
+                        SalesWatermarkEntry._ID + " = " + SalesWatermarkEntry.ROW_ID, null);
+                watermark = newWatermark;
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        return new AppliedSales(watermark, Arrays.copyOf(sold, soldCount), Arrays.copyOf(rejected, rejectedCount));
+    }
+
+    /**
+     * Delete a single row. Return the number of rows deleted.
+     */
+    @Override
+    public int delete(long id) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        boolean ownTransaction = beginTransaction(database);
+        try {
+            int rowsDeleted;
+            synchronized (mDelete) {
+                SQLiteStatement statement = mDelete.get(database);
+                statement.bindLong(1, id);
+                rowsDeleted = statement.executeUpdateDelete();
+            }
+            if (ownTransaction) {
+                database.setTransactionSuccessful();
+            }
+            return rowsDeleted;
+        } finally {
+            if (ownTransaction) {
+                database.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Record the change of the rows matching a selection to a new quantity, before they are
+     * updated in the same transaction. The selection can be anything, so this statement is
+     * compiled every time.
+     */
+    private static void recordChanges(SQLiteDatabase database, int quantity, String selection, String[] selectionArgs) {
+        String sql = insertChangesSql(String.valueOf(quantity));
+        if (selection != null && !selection.isEmpty()) {
+            sql += " AND (" + selection + ")";
+        }
+        database.execSQL(sql, selectionArgs == null ? new Object[0] : selectionArgs);
+    }
+
+    /**
+     * Return a statement that appends a movement for every row about to be set to the given
+     * quantity, from the quantity it has now: a restock if it goes up and an adjustment if it goes
+     * down. Rows that keep their quantity get none. More conditions on the rows can be added
+     * with AND.
+     */
+    private static String insertChangesSql(String quantity) {
+        return "INSERT INTO " + StockMovementEntry.TABLE_NAME + " ("
+                + StockMovementEntry.COLUMN_PRODUCT_ID + ", "
+                + StockMovementEntry.COLUMN_KIND + ", "
+                + StockMovementEntry.COLUMN_DELTA + ") SELECT "
+                + InventoryEntry._ID + ", CASE WHEN " + quantity + " > " + InventoryEntry.COLUMN_INVENTORY_QUANTITY
+                + " THEN " + StockMovementEntry.KIND_RESTOCK + " ELSE " + StockMovementEntry.KIND_ADJUSTMENT
+                + " END, " + quantity + " - " + InventoryEntry.COLUMN_INVENTORY_QUANTITY
+                + " FROM " + InventoryEntry.TABLE_NAME
+                + " WHERE " + InventoryEntry.COLUMN_INVENTORY_QUANTITY + " != " + quantity;
+    }
+
+    /**
+     * Append a movement to the ledger. Only call it in a transaction, as the last lock taken.
+     */
+    private void recordMovement(SQLiteDatabase database, long id, int kind, long delta) {
+        synchronized (mInsertMovement) {
+            SQLiteStatement statement = mInsertMovement.get(database);
+            statement.bindLong(1, id);
+            statement.bindLong(2, kind);
+            statement.bindLong(3, delta);
+            statement.executeInsert();
+        }
+    }
+
+    /**
+     * Record the change of a single row to a new quantity, before it is updated. Only call it in a
+     * transaction, as the last lock taken.
+     */
+    private void recordChange(SQLiteDatabase database, long id, int quantity) {
+        synchronized (mInsertChangeById) {
+            SQLiteStatement statement = mInsertChangeById.get(database);
+            statement.bindLong(1, quantity);
+            statement.bindLong(2, id);
+            statement.executeInsert();
+        }
+    }
+
+    /**
+     * Return the _ID of the supplier of a product, see {@link #supplierId(SQLiteDatabase, String, String)}.
+     */
+    private long supplierId(SQLiteDatabase database, Product product) {
+        return supplierId(database, product.getSupplierName(), product.getSupplierPhoneNumber());
+    }
+
+    /**
+     * Return the _ID of the supplier with the given name, adding the supplier if there is none
+     * with that name yet. A phone number that is not null becomes the supplier's. Call it in a
+     * transaction, before taking any other statement lock.
+     */
+    long supplierId(SQLiteDatabase database, String name, String phoneNumber) {
+        synchronized (mQuerySupplier) {
+            SQLiteStatement query = mQuerySupplier.get(database);
+            query.bindString(1, name);
+            long id = query.simpleQueryForLong();
+            if (id == -1) {
+                SQLiteStatement insert = mInsertSupplier.get(database);
+                insert.clearBindings();
+                insert.bindString(1, name);
+                if (phoneNumber != null) {
+                    insert.bindString(2, phoneNumber);
+                }
+                id = insert.executeInsert();
+                supplierChanges().mAdded.add(id);
+                return id;
+            }
+            if (phoneNumber != null) {
+                SQLiteStatement update = mUpdateSupplierPhone.get(database);
+                update.bindString(1, phoneNumber);
+                update.bindLong(2, id);
+                if (update.executeUpdateDelete() != 0) {
+                    supplierChanges().mChanged.add(id);
+                }
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Bind one product to a statement compiled from {@link #SQL_INSERT_INVENTORY} or
+     * {@link #SQL_UPDATE_INVENTORY}. Missing price, quantity and reorder threshold fall back to
+     * the column defaults.
+     */
+    private static void bindInventory(SQLiteStatement statement, Product product, long supplierId) {
+        statement.clearBindings();
+        statement.bindString(1, product.getName());
+        statement.bindLong(2, product.priceOrDefault());
+        statement.bindLong(3, product.quantityOrDefault());
+        statement.bindLong(4, supplierId);
+        statement.bindLong(5, product.reorderThresholdOrDefault());
+    }
+
+    /**
+     * Bind a whole number, or null if it is missing.
+     */
+    private static void bindNullable(SQLiteStatement statement, int index, Number value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindLong(index, value.longValue());
+        }
+    }
+
+    /**
+     * Start a transaction unless the thread is already in one, such as a bulk insert or a batch.
+     * Joining the outer transaction keeps a failed row from rolling back the rows around it.
+     * Return true if a transaction was started and has to be ended by the caller.
+     */
+    private static boolean beginTransaction(SQLiteDatabase database) {
+        if (database.inTransaction()) {
+            return false;
+        }
+        database.beginTransactionNonExclusive();
+        return true;
+    }
+
+    /**
+     * Suppliers added and changed in one transaction
+     */
+    private static final class SupplierChanges {
+
+        final Set<Long> mAdded = new LinkedHashSet<>();
+
+        final Set<Long> mChanged = new LinkedHashSet<>();
+
+        /**
+         * True if any number of suppliers changed
+         */
+        boolean mAll;
+    }
+
+    /**
+     * A statement that is compiled on first use. Only use it while holding its lock.
+     */
+    private static final class CachedStatement {
+
+        private final String mSql;
+
+        private SQLiteStatement mStatement;
+
+        CachedStatement(String sql) {
+            mSql = sql;
+        }
+
+        SQLiteStatement get(SQLiteDatabase database) {
+            if (mStatement == null) {
+                mStatement = database.compileStatement(mSql);
+            }
+            return mStatement;
+        }
+    }
+}
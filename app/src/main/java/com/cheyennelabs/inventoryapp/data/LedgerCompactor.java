@@ -0,0 +1,167 @@
+package com.cheyennelabs.inventoryapp.data;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import com.cheyennelabs.inventoryapp.data.InventoryContract.InventoryEntry;
+import com.cheyennelabs.inventoryapp.data.InventoryContract.StockMovementEntry;
+
+/**
+ * Keeps the stock movement ledger from growing without bound. Every few hours, on a thread of its
+ * own, the movements of each product that are older than the retention period are rolled into a
+ * single checkpoint holding their sum, so the movements still add up to the quantity. The newest
+ * of the old movements becomes the checkpoint, which keeps the ledger in _ID order.
+ * <p>
+ * The quantity column is what the app reads, so the ledger is never needed to know the stock.
+ * Each run also counts the products whose movements do not add up to their quantity, which
+ * should always be none, and logs them.
+ */
+class LedgerCompactor {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = LedgerCompactor.class.getSimpleName();
+
+    /**
+     * Movements younger than this are kept as they are, in milliseconds
+     */
+    private static final long RETENTION_MS = 30L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Time from start to the first run, so it stays out of the way of the app starting up, and
+     * between runs after that, in milliseconds
+     */
+    private static final long FIRST_RUN_DELAY_MS = 60 * 1000;
+
+    private static final long RUN_INTERVAL_MS = 6 * 60 * 60 * 1000;
+
+    /**
+     * Old movements of products that were deleted. Takes the cutoff time.
+     */
+    private static final String SQL_DELETE_ORPHANS = "DELETE FROM " + StockMovementEntry.TABLE_NAME
+            + " WHERE " + StockMovementEntry.COLUMN_CREATED_AT + " < ?1 AND "
+            + StockMovementEntry.COLUMN_PRODUCT_ID + " NOT IN (SELECT " + InventoryEntry._ID
+            + " FROM " + InventoryEntry.TABLE_NAME + ")";
+
+    /**
+     * The newest old movement of every product, which becomes its checkpoint. Takes the cutoff
+     * time.
+     */
+    private static final String SQL_NEWEST_OLD_MOVEMENTS = "SELECT MAX(" + StockMovementEntry._ID
+            + ") FROM " + StockMovementEntry.TABLE_NAME
+            + " WHERE " + StockMovementEntry.COLUMN_CREATED_AT + " < ?1"
+            + " GROUP BY " + StockMovementEntry.COLUMN_PRODUCT_ID;
+
+    /**
+     * Turn the newest old movement of every product with more than one into a checkpoint of all
+     * of them. Takes the cutoff time.
+     */
+    private static final String SQL_UPDATE_CHECKPOINTS = "UPDATE " + StockMovementEntry.TABLE_NAME + " SET "
+            + StockMovementEntry.COLUMN_KIND + " = " + StockMovementEntry.KIND_CHECKPOINT + ", "
+            + StockMovementEntry.COLUMN_DELTA + " = (SELECT SUM(m." + StockMovementEntry.COLUMN_DELTA
+            + ") FROM " + StockMovementEntry.TABLE_NAME + " m WHERE m." + StockMovementEntry.COLUMN_PRODUCT_ID
+            + " = " + StockMovementEntry.TABLE_NAME + "." + StockMovementEntry.COLUMN_PRODUCT_ID
+            + " AND m." + StockMovementEntry.COLUMN_CREATED_AT + " < ?1)"
+            + " WHERE " + StockMovementEntry._ID + " IN (" + SQL_NEWEST_OLD_MOVEMENTS
+            + " HAVING COUNT(*) > 1)";
+
+    /**
+     * Delete the old movements that were rolled into a checkpoint. Takes the cutoff time.
+     */
+    private static final String SQL_DELETE_COMPACTED = "DELETE FROM " + StockMovementEntry.TABLE_NAME
+            + " WHERE " + StockMovementEntry.COLUMN_CREATED_AT + " < ?1 AND "
+            + StockMovementEntry._ID + " NOT IN (" + SQL_NEWEST_OLD_MOVEMENTS + ")";
+
+    /**
+     * Count the products whose movements do not add up to their quantity.
+     */
+    private static final String SQL_COUNT_MISMATCHED = "SELECT COUNT(*) FROM " + InventoryEntry.TABLE_NAME
+            + " i WHERE i." + InventoryEntry.COLUMN_INVENTORY_QUANTITY + " != (SELECT IFNULL(SUM("
+            + StockMovementEntry.COLUMN_DELTA + "), 0) FROM " + StockMovementEntry.TABLE_NAME
+            + " WHERE " + StockMovementEntry.COLUMN_PRODUCT_ID + " = i." + InventoryEntry._ID + ")";
+
+    private final InventoryDbHelper mDbHelper;
+
+    private Handler mHandler;
+
+    private final Runnable mRun = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                compact();
+            } catch (RuntimeException e) {
+                // Try again next time rather than take the process down
+                Log.e(LOG_TAG, "Failed to compact the stock ledger", e);
+            }
+            mHandler.postDelayed(this, RUN_INTERVAL_MS);
+        }
+    };
+
+    LedgerCompactor(InventoryDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Start compacting the ledger every few hours, for as long as the process lives.
+     */
+    void start() {
+        HandlerThread thread = new HandlerThread("LedgerCompactor", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+        mHandler.postDelayed(mRun, FIRST_RUN_DELAY_MS);
+    }
+
+    /**
+     * Compact the ledger now, in one transaction, on the calling thread, then check it. Return
+     * the number of movements removed in {@link InventoryContract#EXTRA_ROWS} and the number of
+     * products whose movements do not add up to their quantity in
+     * {@link InventoryContract#EXTRA_MISMATCHED}.
+     */
+    Bundle compact() {
+        long cutoff = System.currentTimeMillis() - RETENTION_MS;
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsRemoved;
+        database.beginTransactionNonExclusive();
+        try {
+            rowsRemoved = executeUpdateDelete(database, SQL_DELETE_ORPHANS, cutoff);
+            executeUpdateDelete(database, SQL_UPDATE_CHECKPOINTS, cutoff);
+            rowsRemoved += executeUpdateDelete(database, SQL_DELETE_COMPACTED, cutoff);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        // Counted after the commit, as it reads every movement and would otherwise keep writers
+        // waiting. A single query sees the tables as they were when it started.
+        long mismatched = DatabaseUtils.longForQuery(database, SQL_COUNT_MISMATCHED, null);
+
+        if (mismatched != 0) {
+            Log.e(LOG_TAG, mismatched + " products have stock movements that do not add up to their quantity");
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(InventoryContract.EXTRA_ROWS, rowsRemoved);
+        result.putInt(InventoryContract.EXTRA_MISMATCHED, (int) mismatched);
+        return result;
+    }
+
+    /**
+     * Run an UPDATE or DELETE that takes the cutoff time and return the number of rows it changed.
+     */
+    private static int executeUpdateDelete(SQLiteDatabase database, String sql, long cutoff) {
+        SQLiteStatement statement = database.compileStatement(sql);
+        try {
+            statement.bindLong(1, cutoff);
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+}
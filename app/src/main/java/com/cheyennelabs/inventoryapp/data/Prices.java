@@ -0,0 +1,88 @@
+package com.cheyennelabs.inventoryapp.data;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Converts prices between the whole number of cents they are stored as, see
+ * {@link InventoryContract.InventoryEntry#COLUMN_INVENTORY_PRICE}, and text with two decimals
+ * such as "12.50", which is what the user reads and types and what exports hold.
+ */
+public final class Prices {
+
+    /**
+     * Longest text {@link #format} writes: a sign, 19 digits and the decimal point
+     */
+    public static final int MAX_LENGTH = 21;
+
+    private Prices() {
+    }
+
+    /**
+     * Read a price such as "12", "12.5" or "12.50" as cents. More than two decimals are rounded,
+     * half up.
+     *
+     * @throws NumberFormatException if the text is not a number, or too large
+     */
+    public static long parse(String text) {
+        try {
+            return new BigDecimal(text.trim()).movePointRight(2)
+                    .setScale(0, RoundingMode.HALF_UP).longValueExact();
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Price out of range: " + text);
+        }
+    }
+
+    /**
+     * Convert a price stored as a floating point number, as before prices were kept in cents.
+     */
+    static long fromDouble(double price) {
+        return Math.round(price * 100);
+    }
+
+    /**
+     * Write a price in cents with two decimals, such as "12.50", to the start of the buffer,
+     * which has to hold at least {@link #MAX_LENGTH} characters. Return the number of characters
+     * written. Nothing is allocated, so a list can format into a buffer per row on every bind.
+     */
+    public static int format(long cents, char[] buffer) {
+        // Digits are taken off the negative value, which also has room for Long.MIN_VALUE
+        boolean negative = cents < 0;
+        long value = negative ? cents : -cents;
+        int digits = 1;
+        for (long rest = value / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        // At least "0.00"
+        digits = Math.max(digits, 3);
+
+        int length = digits + 1 + (negative ? 1 : 0);
+        int position = length;
+        for (int i = 0; i < digits; i++) {
+            if (i == 2) {
+                buffer[--position] = '.';
+            }
+            buffer[--position] = (char) ('0' - value % 10);
+            value /= 10;
+        }
+        if (negative) {
+            buffer[0] = '-';
+        }
+        return length;
+    }
+
+    /**
+     * Return a price in cents as text with two decimals, such as "12.50".
+     */
+    public static String toString(long cents) {
+        char[] buffer = new char[MAX_LENGTH];
+        return new String(buffer, 0, format(cents, buffer));
+    }
+
+    /**
+     * Return a price in cents as an exact decimal, such as 12.50, for writers that take numbers.
+     */
+    static BigDecimal toDecimal(long cents) {
+        return BigDecimal.valueOf(cents, 2);
+    }
+}
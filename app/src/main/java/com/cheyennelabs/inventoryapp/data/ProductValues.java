@@ -0,0 +1,63 @@
+package com.cheyennelabs.inventoryapp.data;
+
+import android.content.ContentValues;
+
+import com.cheyennelabs.inventoryapp.core.Product;
+import com.cheyennelabs.inventoryapp.data.InventoryContract.InventoryEntry;
+
+/**
+ * Turns the {@link ContentValues} of an inventory write into a {@link Product}, so the provider
+ * can hand it to the core's validation and repository. Only the columns that are present are set.
+ */
+final class ProductValues {
+
+    private ProductValues() {
+    }
+
+    /**
+     * Return the product in the values. A price with a fraction of a cent is most likely one that
+     * was meant in whole units, so it is refused rather than cut, and so is a price that is not a
+     * number. Both throw an {@link IllegalArgumentException}.
+     */
+    static Product toProduct(ContentValues values) {
+        Product product = new Product();
+        if (values.containsKey(InventoryEntry.COLUMN_INVENTORY_PRODUCT)) {
+            product.setName(values.getAsString(InventoryEntry.COLUMN_INVENTORY_PRODUCT));
+        }
+        if (values.containsKey(InventoryEntry.COLUMN_INVENTORY_PRICE)) {
+            product.setPrice(toPrice(values));
+        }
+        if (values.containsKey(InventoryEntry.COLUMN_INVENTORY_QUANTITY)) {
+            product.setQuantity(values.getAsInteger(InventoryEntry.COLUMN_INVENTORY_QUANTITY));
+        }
+        if (values.containsKey(InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME)) {
+            product.setSupplierName(values.getAsString(InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME));
+        }
+        if (values.containsKey(InventoryEntry.COLUMN_INVENTORY_SUPPLIERPHONENUMBER)) {
+            product.setSupplierPhoneNumber(values.getAsString(InventoryEntry.COLUMN_INVENTORY_SUPPLIERPHONENUMBER));
+        }
+        if (values.containsKey(InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD)) {
+            product.setReorderThreshold(values.getAsInteger(InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD));
+        }
+        return product;
+    }
+
+    /**
+     * Return the price in the values, in whole cents, or null if it is null.
+     */
+    private static Long toPrice(ContentValues values) {
+        Object value = values.get(InventoryEntry.COLUMN_INVENTORY_PRICE);
+        if (value == null) {
+            return null;
+        }
+        if ((value instanceof Float || value instanceof Double)
+                && ((Number) value).doubleValue() != Math.rint(((Number) value).doubleValue())) {
+            throw new IllegalArgumentException("Product price has to be a whole number of cents");
+        }
+        Long price = values.getAsLong(InventoryEntry.COLUMN_INVENTORY_PRICE);
+        if (price == null) {
+            throw new IllegalArgumentException("Product requires a price");
+        }
+        return price;
+    }
+}
@@ -0,0 +1,200 @@
+package com.cheyennelabs.inventoryapp.data;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts and times the work of {@link InventoryProvider}, so a slow list on a device can be
+ * traced to the URIs that are slow, or that are asked for far too often. Every operation is kept
+ * per route: the URI it matched, or the method of a call. For each one there is a count, a
+ * failure count, the rows returned or changed, and a histogram of the latency.
+ * <p>
+ * Recording only adds to atomic counters, so it never blocks a binder thread. The counters of
+ * one operation are not updated together, so a dump taken while operations run can be off by
+ * those operations. A reset swaps in new counters, and operations that were already recording
+ * into the old ones are dropped.
+ */
+final class ProviderMetrics {
+
+    static final int QUERY = 0;
+    static final int INSERT = 1;
+    static final int BULK_INSERT = 2;
+    static final int UPDATE = 3;
+    static final int DELETE = 4;
+    static final int CALL = 5;
+
+    private static final String[] OPERATION_NAMES = {"query", "insert", "bulkInsert", "update", "delete", "call"};
+
+    /**
+     * Latency buckets. The first is below 1 microsecond and bucket i is below 2^i microseconds,
+     * so the last one holds everything from about 4 seconds up.
+     */
+    private static final int BUCKETS = 24;
+
+    /**
+     * The name of each route, by its index
+     */
+    private final String[] mRoutes;
+
+    private volatile Counters mCounters;
+
+    ProviderMetrics(String[] routes) {
+        mRoutes = routes;
+        mCounters = new Counters(OPERATION_NAMES.length * routes.length, routes.length);
+    }
+
+    /**
+     * Return the current time, to pass to {@link #record} or {@link #recordFailure}.
+     */
+    static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record an operation on a route that started at the given time and returned or changed the
+     * given number of rows.
+     */
+    void record(int operation, int route, long start, long rows) {
+        long nanos = System.nanoTime() - start;
+        Counters counters = mCounters;
+        int slot = operation * mRoutes.length + route;
+        counters.mCount.incrementAndGet(slot);
+        counters.mRows.addAndGet(slot, rows);
+        addLatency(counters, slot, nanos);
+    }
+
+    /**
+     * Record an operation on a route that started at the given time and threw.
+     */
+    void recordFailure(int operation, int route, long start) {
+        long nanos = System.nanoTime() - start;
+        Counters counters = mCounters;
+        int slot = operation * mRoutes.length + route;
+        counters.mCount.incrementAndGet(slot);
+        counters.mFailures.incrementAndGet(slot);
+        addLatency(counters, slot, nanos);
+    }
+
+    /**
+     * Record a change notification for a route.
+     */
+    void recordNotification(int route) {
+        mCounters.mNotifications.incrementAndGet(route);
+    }
+
+    /**
+     * Start counting from zero again.
+     */
+    void reset() {
+        mCounters = new Counters(OPERATION_NAMES.length * mRoutes.length, mRoutes.length);
+    }
+
+    private static void addLatency(Counters counters, int slot, long nanos) {
+        counters.mTotalNanos.addAndGet(slot, nanos);
+        counters.mHistogram.incrementAndGet(slot * BUCKETS + bucketOf(nanos));
+        long max = counters.mMaxNanos.get(slot);
+        while (nanos > max && !counters.mMaxNanos.compareAndSet(slot, max, nanos)) {
+            max = counters.mMaxNanos.get(slot);
+        }
+    }
+
+    private static int bucketOf(long nanos) {
+        long micros = nanos / 1000;
+        return Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+    }
+
+    /**
+     * Print a table of every operation and route that was used, and the notifications per route.
+     * Latencies are in microseconds. Percentiles are the upper end of their histogram bucket, so
+     * they are within a factor of two of the real value.
+     */
+    void dump(PrintWriter writer) {
+        Counters counters = mCounters;
+        writer.println(String.format(Locale.US, "Provider metrics for the last %.1f s",
+                (SystemClock.uptimeMillis() - counters.mStartedAt) / 1000.0));
+        writer.println(String.format(Locale.US, "%-20s %-10s %8s %6s %10s %8s %8s %8s %8s %8s",
+                "route", "operation", "count", "failed", "rows", "mean_us", "p50_us", "p90_us", "p99_us", "max_us"));
+        for (int operation = 0; operation < OPERATION_NAMES.length; operation++) {
+            for (int route = 0; route < mRoutes.length; route++) {
+                int slot = operation * mRoutes.length + route;
+                long count = counters.mCount.get(slot);
+                if (count == 0) {
+                    continue;
+                }
+                writer.println(String.format(Locale.US, "%-20s %-10s %8d %6d %10d %8d %8d %8d %8d %8d",
+                        mRoutes[route], OPERATION_NAMES[operation], count, counters.mFailures.get(slot),
+                        counters.mRows.get(slot), counters.mTotalNanos.get(slot) / count / 1000,
+                        percentileMicros(counters, slot, count, 50),
+                        percentileMicros(counters, slot, count, 90),
+                        percentileMicros(counters, slot, count, 99),
+                        counters.mMaxNanos.get(slot) / 1000));
+            }
+        }
+        writer.println("Change notifications per route:");
+        for (int route = 0; route < mRoutes.length; route++) {
+            long notifications = counters.mNotifications.get(route);
+            if (notifications != 0) {
+                writer.println(String.format(Locale.US, "%-20s %8d", mRoutes[route], notifications));
+            }
+        }
+    }
+
+    /**
+     * Return the upper end of the bucket holding the given percentile, in microseconds, but no
+     * more than the maximum. The open last bucket is reported as the maximum.
+     */
+    private static long percentileMicros(Counters counters, int slot, long count, int percentile) {
+        long maxMicros = counters.mMaxNanos.get(slot) / 1000;
+        long rank = Math.max((count * percentile + 99) / 100, 1);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS - 1; bucket++) {
+            seen += counters.mHistogram.get(slot * BUCKETS + bucket);
+            if (seen >= rank) {
+                return Math.min(1L << bucket, maxMicros);
+            }
+        }
+        return maxMicros;
+    }
+
+    /**
+     * The counters of every operation and route, one slot for each, since the provider started
+     * or the last reset.
+     */
+    private static final class Counters {
+
+        final long mStartedAt = SystemClock.uptimeMillis();
+
+        final AtomicLongArray mCount;
+
+        final AtomicLongArray mFailures;
+
+        final AtomicLongArray mRows;
+
+        final AtomicLongArray mTotalNanos;
+
+        final AtomicLongArray mMaxNanos;
+
+        /**
+         * {@link #BUCKETS} buckets for each slot
+         */
+        final AtomicLongArray mHistogram;
+
+        /**
+         * Notifications, per route
+         */
+        final AtomicLongArray mNotifications;
+
+        Counters(int slots, int routes) {
+            mCount = new AtomicLongArray(slots);
+            mFailures = new AtomicLongArray(slots);
+            mRows = new AtomicLongArray(slots);
+            mTotalNanos = new AtomicLongArray(slots);
+            mMaxNanos = new AtomicLongArray(slots);
+            mHistogram = new AtomicLongArray(slots * BUCKETS);
+            mNotifications = new AtomicLongArray(routes);
+        }
+    }
+}
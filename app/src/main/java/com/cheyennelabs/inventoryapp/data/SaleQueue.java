@@ -0,0 +1,494 @@
+package com.cheyennelabs.inventoryapp.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import com.cheyennelabs.inventoryapp.core.StockEngine;
+import com.cheyennelabs.inventoryapp.data.InventoryContract.InventoryEntry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write-behind queue for sales made from the list. {@link #sell} only counts the sale in memory,
+ * so the list can show it straight away using {@link #getPendingCount}. The queue's own thread
+ * then appends it to a journal file and syncs it to disk, together with any other sales made in
+ * the meantime, so a crash loses at most the sales of the last moment. The same thread sends the
+ * journaled sales to the provider in batches ({@link InventoryContract#METHOD_APPLY_SALES}) once
+ * enough have queued up or a short time has passed. Only that thread touches the journal, so a
+ * tap never waits for the disk.
+ * <p>
+ * Every sale gets a sequence number. The provider stores the number of the last sale it applied
+ * in the same transaction as the sales, so when the app starts again after a crash the journal is
+ * replayed and only the sales that never made it to the database are applied. The provider also
+ * tells the queue which sales it applied before it notifies anyone ({@link #onSalesApplied}), so a
+ * list reloaded after the batch commits never takes a sale off twice.
+ */
+public final class SaleQueue {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = SaleQueue.class.getSimpleName();
+
+    /**
+     * Name of the journal file in the app's files directory
+     */
+    private static final String JOURNAL_NAME = "sales.journal";
+
+    /**
+     * Name of the file a new journal is written to before it replaces the old one
+     */
+    private static final String JOURNAL_TEMP_NAME = "sales.journal.tmp";
+
+    /**
+     * Send the queued sales once this many have queued up...
+     */
+    private static final int FLUSH_THRESHOLD = 20;
+
+    /**
+     * ...or once the oldest one has waited this long, in milliseconds.
+     */
+    private static final long FLUSH_DELAY_MS = 1000;
+
+    /**
+     * How long to wait before trying again after the provider could not be reached
+     */
+    private static final long RETRY_DELAY_MS = 5000;
+
+    private static SaleQueue sInstance;
+
+    /**
+     * Return the queue of the app, replaying any sales left in the journal the first time.
+     */
+    public static synchronized SaleQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SaleQueue(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Called by the provider once a batch of sales has committed and before it notifies anyone,
+     * with the sequence number of the last sale it has applied. Those sales are in the database
+     * now, so the list must stop taking them off.
+     */
+    static void onSalesApplied(long watermark) {
+        SaleQueue queue;
+        synchronized (SaleQueue.class) {
+            queue = sInstance;
+        }
+        if (queue != null) {
+            queue.clearPending(watermark);
+        }
+    }
+
+    private final ContentResolver mResolver;
+
+    private final File mJournalFile;
+
+    private final File mJournalTempFile;
+
+    private final Handler mHandler;
+
+    /**
+     * Number of items of each _ID sold but not applied yet. Guarded by itself, together with
+     * {@link #mPendingSales}, {@link #mIncoming} and the sequence numbers of the
+     * sales.
+     */
+    private final Map<Long, Integer> mPendingCounts = new HashMap<>();
+
+    /**
+     * The sales counted in {@link #mPendingCounts}, so they can be taken out again by their
+     * sequence number
+     */
+    private final List<Sale> mPendingSales = new ArrayList<>();
+
+    /**
+     * Sales made but not written to the journal yet, oldest first
+     */
+    private final List<Sale> mIncoming = new ArrayList<>();
+
+    // The fields below are only used on the queue's thread
+
+    private FileOutputStream mJournalStream;
+
+    private DataOutputStream mJournal;
+
+    private long mNextSequence;
+
+    /**
+     * Sequence number of the last sale read from the journal when it was loaded. The sales up to
+     * it are only counted as pending once the replay knows which of them were applied.
+     */
+    private long mLoadedSequence;
+
+    /**
+     * Sales written to the journal but not applied yet, oldest first
+     */
+    private final List<Sale> mQueued = new ArrayList<>();
+
+    private final Runnable mWrite = new Runnable() {
+        @Override
+        public void run() {
+            writeIncoming();
+        }
+    };
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private final Runnable mReplay = new Runnable() {
+        @Override
+        public void run() {
+            replay();
+        }
+    };
+
+    private SaleQueue(Context context) {
+        mResolver = context.getContentResolver();
+        mJournalFile = new File(context.getFilesDir(), JOURNAL_NAME);
+        mJournalTempFile = new File(context.getFilesDir(), JOURNAL_TEMP_NAME);
+
+        HandlerThread thread = new HandlerThread("SaleQueue", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+        mHandler.post(mReplay);
+    }
+
+    /**
+     * Queue a sale of the given number of items of the product with the given _ID. Only counts
+     * it as pending, so it is quick enough for the main thread; the sale is written to the
+     * journal and then to the database in the background.
+     */
+    public void sell(long id, int count) {
+        StockEngine.checkSale(count);
+        boolean first;
+        synchronized (mPendingCounts) {
+            // Without a sequence number until it is in the journal
+            Sale sale = new Sale(0, id, count);
+            first = mIncoming.isEmpty();
+            mIncoming.add(sale);
+            addPending(sale);
+        }
+        if (first) {
+            mHandler.post(mWrite);
+        }
+    }
+
+    /**
+     * Append the sales made since the last call to the journal and sync it once for all of them,
+     * then queue them to be sent. Called on the queue's thread.
+     */
+    private void writeIncoming() {
+        loadJournal();
+        List<Sale> sales;
+        synchronized (mPendingCounts) {
+            if (mIncoming.isEmpty()) {
+                return;
+            }
+            sales = new ArrayList<>(mIncoming);
+            mIncoming.clear();
+            for (Sale sale : sales) {
+                sale.sequence = mNextSequence++;
+            }
+        }
+        try {
+            for (Sale sale : sales) {
+                writeSale(mJournal, sale);
+            }
+            mJournal.flush();
+            mJournalStream.getFD().sync();
+        } catch (IOException e) {
+            // The sales are still queued in memory, they are just not safe from a crash
+            Log.e(LOG_TAG, "Failed to write " + sales.size() + " sales to the journal", e);
+        }
+
+        boolean first = mQueued.isEmpty();
+        mQueued.addAll(sales);
+        if (mQueued.size() >= FLUSH_THRESHOLD) {
+            mHandler.removeCallbacks(mFlush);
+            mHandler.post(mFlush);
+        } else if (first) {
+            mHandler.postDelayed(mFlush, FLUSH_DELAY_MS);
+        }
+    }
+
+    /**
+     * Return the number of items of the given _ID that were sold but are not in the database yet.
+     * Subtract it from the stored quantity to show what is really left.
+     */
+    public int getPendingCount(long id) {
+        synchronized (mPendingCounts) {
+            Integer count = mPendingCounts.get(id);
+            return count == null ? 0 : count;
+        }
+    }
+
+    private void addPending(Sale sale) {
+        synchronized (mPendingCounts) {
+            mPendingSales.add(sale);
+            addPendingCount(sale.id, sale.count);
+        }
+    }
+
+    /**
+     * Stop counting the sales up to the given sequence number as pending.
+     */
+    private void clearPending(long watermark) {
+        synchronized (mPendingCounts) {
+            Iterator<Sale> iterator = mPendingSales.iterator();
+            while (iterator.hasNext()) {
+                Sale sale = iterator.next();
+                // A sale that is not in the journal yet cannot have been applied
+                if (sale.sequence != 0 && sale.sequence <= watermark) {
+                    iterator.remove();
+                    addPendingCount(sale.id, -sale.count);
+                }
+            }
+        }
+    }
+
+    private void addPendingCount(long id, int count) {
+        int pending = getPendingCount(id) + count;
+        if (pending == 0) {
+            mPendingCounts.remove(id);
+        } else {
+            mPendingCounts.put(id, pending);
+        }
+    }
+
+    /**
+     * Send every queued sale to the provider in one batch. Once the provider has applied them they
+     * are dropped from the journal, since they are not needed any more. Sales made while the batch
+     * was on its way stay queued for the next one.
+     */
+    private void flush() {
+        // Send the sales made until now along with the others
+        writeIncoming();
+        if (mQueued.isEmpty()) {
+            return;
+        }
+        int size = mQueued.size();
+        long[] sequences = new long[size];
+        long[] ids = new long[size];
+        int[] counts = new int[size];
+        for (int i = 0; i < size; i++) {
+            Sale sale = mQueued.get(i);
+            sequences[i] = sale.sequence;
+            ids[i] = sale.id;
+            counts[i] = sale.count;
+        }
+        Bundle extras = new Bundle();
+        extras.putLongArray(InventoryContract.EXTRA_SEQUENCES, sequences);
+        extras.putLongArray(InventoryContract.EXTRA_IDS, ids);
+        extras.putIntArray(InventoryContract.EXTRA_COUNTS, counts);
+
+        Bundle result;
+        try {
+            result = mResolver.call(InventoryEntry.CONTENT_URI, InventoryContract.METHOD_APPLY_SALES, null, extras);
+        } catch (RuntimeException e) {
+            // Keep the sales and try again later; the watermark stops them being applied twice
+            Log.e(LOG_TAG, "Failed to apply " + sequences.length + " queued sales", e);
+            retry(mFlush);
+            return;
+        }
+        long watermark = result == null ? sequences[sequences.length - 1]
+                : result.getLong(InventoryContract.EXTRA_SEQUENCE);
+
+        // The provider has cleared them already, unless it runs in another process
+        clearPending(watermark);
+        dropApplied(watermark);
+        rewriteJournal();
+        if (!mQueued.isEmpty()) {
+            mHandler.removeCallbacks(mFlush);
+            mHandler.postDelayed(mFlush, mQueued.size() >= FLUSH_THRESHOLD ? 0 : FLUSH_DELAY_MS);
+        }
+    }
+
+    /**
+     * Find out from the provider which of the sales in the journal it has applied, count the
+     * others as pending and send them on. Tries again later if the provider cannot be reached.
+     */
+    private void replay() {
+        Bundle result;
+        try {
+            result = mResolver.call(InventoryEntry.CONTENT_URI, InventoryContract.METHOD_APPLY_SALES,
+                    null, null);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to read the sales watermark", e);
+            retry(mReplay);
+            return;
+        }
+        long watermark = result == null ? 0 : result.getLong(InventoryContract.EXTRA_SEQUENCE);
+
+        loadJournal();
+        dropApplied(watermark);
+        // Should the journal have gone missing, at least keep clear of the applied sales
+        mNextSequence = Math.max(mNextSequence, watermark + 1);
+        for (Sale sale : mQueued) {
+            if (sale.sequence <= mLoadedSequence) {
+                addPending(sale);
+            }
+        }
+        mLoadedSequence = 0;
+        rewriteJournal();
+
+        if (!mQueued.isEmpty()) {
+            Log.i(LOG_TAG, "Replaying " + mQueued.size() + " queued sales");
+            mHandler.removeCallbacks(mFlush);
+            mHandler.post(mFlush);
+        }
+    }
+
+    private void retry(Runnable runnable) {
+        mHandler.removeCallbacks(runnable);
+        mHandler.postDelayed(runnable, RETRY_DELAY_MS);
+    }
+
+    /**
+     * Load the sales in the journal the first time it is needed, and write them back to a fresh
+     * journal, dropping a record that was only half written when the app died. Called on the
+     * queue's thread.
+     */
+    private void loadJournal() {
+        if (mJournal != null) {
+            return;
+        }
+
+        long lastSequence = 0;
+        if (mJournalFile.exists()) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(mJournalFile)));
+                while (true) {
+                    Sale sale = new Sale(in.readLong(), in.readLong(), in.readInt());
+                    lastSequence = Math.max(lastSequence, sale.sequence);
+                    // A sale of nothing only keeps the sequence number, see rewriteJournal()
+                    if (sale.count != 0) {
+                        mQueued.add(sale);
+                    }
+                }
+            } catch (EOFException e) {
+                // End of the journal
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to read the sales journal", e);
+            } finally {
+                closeQuietly(in);
+            }
+        }
+        mLoadedSequence = lastSequence;
+        mNextSequence = lastSequence + 1;
+        rewriteJournal();
+    }
+
+    /**
+     * Drop the queued sales up to the given sequence number. Called on the queue's thread.
+     */
+    private void dropApplied(long watermark) {
+        Iterator<Sale> iterator = mQueued.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().sequence <= watermark) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Replace the journal with one that holds only the queued sales, and open it for appending.
+     * The new journal is synced before it replaces the old one, so a crash in between loses
+     * nothing. With no sales left it holds a sale of nothing with the last sequence number, so
+     * the numbers keep counting up after a restart. Called on the queue's thread.
+     */
+    private void rewriteJournal() {
+        closeQuietly(mJournal);
+        FileOutputStream stream = null;
+        try {
+            stream = new FileOutputStream(mJournalTempFile, false);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            if (mQueued.isEmpty()) {
+                writeSale(out, new Sale(mNextSequence - 1, 0, 0));
+            }
+            for (Sale sale : mQueued) {
+                writeSale(out, sale);
+            }
+            out.flush();
+            stream.getFD().sync();
+            out.close();
+            if (!mJournalTempFile.renameTo(mJournalFile)) {
+                throw new IOException("Cannot replace " + mJournalFile);
+            }
+        } catch (IOException e) {
+            // The old journal is still there and still holds every queued sale
+            Log.e(LOG_TAG, "Failed to rewrite the sales journal", e);
+            closeQuietly(stream);
+        }
+
+        try {
+            mJournalStream = new FileOutputStream(mJournalFile, true);
+            mJournal = new DataOutputStream(new BufferedOutputStream(mJournalStream));
+        } catch (FileNotFoundException e) {
+            throw new IllegalStateException("Cannot open the sales journal " + mJournalFile, e);
+        }
+    }
+
+    private static void writeSale(DataOutputStream out, Sale sale) throws IOException {
+        out.writeLong(sale.sequence);
+        out.writeLong(sale.id);
+        out.writeInt(sale.count);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing left to do with it
+            }
+        }
+    }
+
+    /**
+     * One queued sale
+     */
+    private static final class Sale {
+
+        /**
+         * 0 until the sale is written to the journal. Guarded by the pending counts.
+         */
+        long sequence;
+
+        final long id;
+
+        final int count;
+
+        Sale(long sequence, long id, int count) {
+            this.sequence = sequence;
+            this.id = id;
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.cheyennelabs.inventoryapp.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Collects the results of one benchmark run and writes them to a JSON file, so runs can be
+ * compared by a script:
+ * <pre>
+ * {"benchmark": "provider", "rows": 100000, "sqlite_version": "3.8.7",
+ *  "results": [{"name": "insert", "operations": 1000, "ops_per_sec": 5120.4,
+ *               "p50_us": 180.2, "p90_us": 240.9, "p99_us": 611.0, "max_us": 2304.7}, ...]}
+ * </pre>
+ * Timed results have the operation count, throughput and latency percentiles; other results
+ * hold whatever was measured, such as a size in bytes.
+ */
+final class BenchmarkReport {
+
+    /**
+     * System property that turns the benchmarks on; they are skipped otherwise
+     */
+    static final String PROPERTY_ENABLED = "inventory.benchmark";
+
+    /**
+     * System property holding the directory the reports are written to
+     */
+    static final String PROPERTY_DIR = "inventory.benchmark.dir";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String mBenchmark;
+
+    private final int mRows;
+
+    private final String mSqliteVersion;
+
+    private final List<Map<String, Object>> mResults = new ArrayList<>();
+
+    BenchmarkReport(String benchmark, int rows, String sqliteVersion) {
+        mBenchmark = benchmark;
+        mRows = rows;
+        mSqliteVersion = sqliteVersion;
+    }
+
+    static boolean isEnabled() {
+        return Boolean.getBoolean(PROPERTY_ENABLED);
+    }
+
+    /**
+     * Return the comma separated numbers of a system property.
+     */
+    static int[] intsProperty(String name, String fallback) {
+        String[] parts = System.getProperty(name, fallback).split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+
+    /**
+     * Add the throughput and latency of a timed operation.
+     */
+    void addTimed(String name, Latencies latencies) {
+        addTimed(name, latencies, 0);
+    }
+
+    /**
+     * Add the throughput and latency of a timed operation that handled the given number of items
+     * in all, such as the rows of a bulk insert, with the throughput in items too.
+     */
+    void addTimed(String name, Latencies latencies, long items) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("name", name);
+        result.put("operations", latencies.count());
+        result.put("ops_per_sec", latencies.perSecond(latencies.count()));
+        if (items != 0) {
+            result.put("items", items);
+            result.put("items_per_sec", latencies.perSecond(items));
+        }
+        result.put("p50_us", latencies.percentileMicros(50));
+        result.put("p90_us", latencies.percentileMicros(90));
+        result.put("p99_us", latencies.percentileMicros(99));
+        result.put("max_us", latencies.percentileMicros(100));
+        mResults.add(result);
+    }
+
+    /**
+     * Add a single measured value.
+     */
+    void addValue(String name, String metric, Number value) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("name", name);
+        result.put(metric, value);
+        mResults.add(result);
+    }
+
+    /**
+     * Write the report to the benchmark directory as {@code <benchmark>-<rows>.json} and return
+     * the file.
+     */
+    File write() throws IOException {
+        File dir = new File(System.getProperty(PROPERTY_DIR, "build/benchmarks"));
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File file = new File(dir, mBenchmark + "-" + mRows + ".json");
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"benchmark\": ");
+        appendValue(json, mBenchmark);
+        json.append(", \"rows\": ").append(mRows);
+        json.append(", \"sqlite_version\": ");
+        appendValue(json, mSqliteVersion);
+        json.append(",\n \"results\": [");
+        for (int i = 0; i < mResults.size(); i++) {
+            json.append(i == 0 ? "\n  {" : ",\n  {");
+            boolean first = true;
+            for (Map.Entry<String, Object> entry : mResults.get(i).entrySet()) {
+                if (!first) {
+                    json.append(", ");
+                }
+                first = false;
+                appendValue(json, entry.getKey());
+                json.append(": ");
+                appendValue(json, entry.getValue());
+            }
+            json.append('}');
+        }
+        json.append("]}\n");
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), UTF_8);
+        try {
+            writer.write(json.toString());
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    /**
+     * Append a number, or a string in quotes. The names and values written here never hold
+     * anything that needs escaping but quotes and backslashes.
+     */
+    private static void appendValue(StringBuilder json, Object value) {
+        if (value instanceof Double || value instanceof Float) {
+            json.append(String.format(Locale.US, "%.1f", ((Number) value).doubleValue()));
+        } else if (value instanceof Number) {
+            json.append(value);
+        } else {
+            json.append('"').append(String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\""))
+                    .append('"');
+        }
+    }
+
+    /**
+     * The latencies of every run of an operation, in nanoseconds.
+     */
+    static final class Latencies {
+
+        private long[] mNanos = new long[1024];
+
+        private int mCount;
+
+        private long mTotalNanos;
+
+        /**
+         * Return the current time, to pass to {@link #stop}.
+         */
+        static long start() {
+            return System.nanoTime();
+        }
+
+        /**
+         * Record the run that started at the given time.
+         */
+        void stop(long start) {
+            long nanos = System.nanoTime() - start;
+            if (mCount == mNanos.length) {
+                mNanos = Arrays.copyOf(mNanos, mCount * 2);
+            }
+            mNanos[mCount++] = nanos;
+            mTotalNanos += nanos;
+        }
+
+        int count() {
+            return mCount;
+        }
+
+        /**
+         * Return how many of the given things were handled per second of the recorded time.
+         */
+        double perSecond(long handled) {
+            return mTotalNanos == 0 ? 0 : handled * 1e9 / mTotalNanos;
+        }
+
+        /**
+         * Return the given percentile, by the nearest rank, in microseconds.
+         */
+        double percentileMicros(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(mNanos, mCount);
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(percentile / 100 * mCount);
+            return sorted[Math.max(rank, 1) - 1] / 1000.0;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.cheyennelabs.inventoryapp.data;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The CSV parsing of the importer, on the plain JVM.
+ */
+public class CsvReaderTest {
+
+    private static CsvReader reader(String csv) {
+        return new CsvReader(new StringReader(csv));
+    }
+
+    private static List<String> next(CsvReader reader) throws IOException {
+        List<String> fields = new ArrayList<>();
+        assertTrue(reader.readRecord(fields));
+        return fields;
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    @Test
+    public void quotedFieldsKeepCommasAndQuotes() throws IOException {
+        CsvReader reader = reader("product,suppliername\n"
+                + "\"Widget, large\",\"Acme \"\"Best\"\" Co\"\n"
+                + "\"\",plain\n");
+        assertEquals(Arrays.asList("product", "suppliername"), next(reader));
+        assertEquals(Arrays.asList("Widget, large", "Acme \"Best\" Co"), next(reader));
+        assertEquals(Arrays.asList("", "plain"), next(reader));
+        assertFalse(reader.readRecord(new ArrayList<String>()));
+    }
+
+    @Test
+    public void quotedFieldsKeepLineBreaks() throws IOException {
+        CsvReader reader = reader("a,b\r\n\"one\r\ntwo\rthree\",x\n\nlast");
+        next(reader);
+        assertEquals(Arrays.asList("one\ntwo\nthree", "x"), next(reader));
+        // The record is counted from the line it starts on
+        assertEquals(2, reader.getRecordLine());
+        assertEquals(Arrays.asList(""), next(reader));
+        assertEquals(5, reader.getRecordLine());
+        assertEquals(Arrays.asList("last"), next(reader));
+        assertEquals(6, reader.getRecordLine());
+    }
+
+    @Test
+    public void byteOrderMarkIsDropped() throws IOException {
+        CsvReader reader = reader("\uFEFFproduct,price\n\uFEFFWidget,1\n");
+        assertEquals(Arrays.asList("product", "price"), next(reader));
+        // Only at the start of the file
+        assertEquals(Arrays.asList("\uFEFFWidget", "1"), next(reader));
+    }
+
+    @Test
+    public void recordsAreLimitedInLength() throws IOException {
+        String longest = repeat('x', CsvReader.MAX_RECORD_LENGTH);
+        CsvReader reader = reader(longest + "\n" + longest + "x\n");
+        assertEquals(CsvReader.MAX_RECORD_LENGTH, next(reader).get(0).length());
+        assertTooLong(reader, 2);
+
+        // The very first line is limited too
+        assertTooLong(reader(longest + "x"), 1);
+
+        // And a quote that is never closed stops at the limit, not at the end of the file
+        StringBuilder unclosed = new StringBuilder("\"");
+        for (int i = 0; i < 2000; i++) {
+            unclosed.append(repeat('y', 99)).append('\n');
+        }
+        assertTooLong(reader(unclosed.toString()), 656);
+    }
+
+    private static void assertTooLong(CsvReader reader, int line) throws IOException {
+        try {
+            reader.readRecord(new ArrayList<String>());
+            fail("Expected the record to be too long");
+        } catch (IOException e) {
+            assertEquals("The record on line " + line + " is longer than " + CsvReader.MAX_RECORD_LENGTH
+                    + " characters; is a quote missing?", e.getMessage());
+        }
+    }
+}
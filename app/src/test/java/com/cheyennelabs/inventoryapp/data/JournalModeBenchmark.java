@@ -0,0 +1,201 @@
+package com.cheyennelabs.inventoryapp.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.cheyennelabs.inventoryapp.core.Product;
+import com.cheyennelabs.inventoryapp.data.BenchmarkReport.Latencies;
+import com.cheyennelabs.inventoryapp.data.InventoryContract.InventoryEntry;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares reads of single rows while sales are being written, with the rollback journal and
+ * with write-ahead logging, on a table with the number of rows in the
+ * {@code inventory.benchmark.journalRows} system property (100,000 by default). For each journal
+ * mode the reads are timed once on their own and once while another thread keeps committing
+ * batches of sales, the way the {@link SaleQueue} sends them. The results go to
+ * {@code journal-<rows>.json}, see {@link BenchmarkReport}. Skipped unless the
+ * {@code inventory.benchmark} property is true.
+ * <p>
+ * Robolectric runs every SQLite call of the process on one thread, so this measures how long a
+ * read waits for a connection from the pool, which is what the journal mode changes for the app:
+ * with the rollback journal there is only the one connection and a read waits for the whole write
+ * transaction, with WAL reads get connections of their own. It does not measure SQLite's own file
+ * locks, which only a device shows.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class JournalModeBenchmark {
+
+    /**
+     * Timed reads per journal mode, with and without the writer
+     */
+    private static final int READS = 5000;
+
+    /**
+     * Sales per write transaction, as the sale queue sends them
+     */
+    private static final int BATCH_SIZE = 20;
+
+    /**
+     * Every product starts with this many, so the sales never run out
+     */
+    private static final int QUANTITY = 1000000;
+
+    private static final String SQL_QUERY_ROW = "SELECT " + InventoryEntry._ID + ", "
+            + InventoryEntry.COLUMN_INVENTORY_PRODUCT + ", "
+            + InventoryEntry.COLUMN_INVENTORY_PRICE + ", "
+            + InventoryEntry.COLUMN_INVENTORY_QUANTITY
+            + " FROM " + InventoryEntry.TABLE_NAME + " WHERE " + InventoryEntry._ID + " = ?";
+
+    private int mRows;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue("Benchmarks run with -Pbenchmark", BenchmarkReport.isEnabled());
+        mRows = BenchmarkReport.intsProperty("inventory.benchmark.journalRows", "100000")[0];
+    }
+
+    @Test
+    public void benchmarkReadsUnderWrites() throws Exception {
+        BenchmarkReport report = null;
+        for (boolean wal : new boolean[]{false, true}) {
+            String mode = wal ? "wal" : "rollback";
+            InventoryDbHelper dbHelper = new InventoryDbHelper(RuntimeEnvironment.application);
+            RuntimeEnvironment.application.deleteDatabase(dbHelper.getDatabaseName());
+            // Before the database is first opened, so the whole run uses the one mode
+            dbHelper.setWriteAheadLoggingEnabled(wal);
+            try {
+                SQLiteDatabase database = dbHelper.getWritableDatabase();
+                assertEquals(wal, "wal".equalsIgnoreCase(
+                        DatabaseUtils.stringForQuery(database, "PRAGMA journal_mode", null)));
+                if (report == null) {
+                    report = new BenchmarkReport("journal", mRows,
+                            DatabaseUtils.stringForQuery(database, "SELECT sqlite_version()", null));
+                }
+                benchmarkMode(report, mode, dbHelper);
+            } finally {
+                dbHelper.close();
+            }
+        }
+        report.write();
+    }
+
+    private void benchmarkMode(BenchmarkReport report, String mode, InventoryDbHelper dbHelper)
+            throws Exception {
+        final SQLiteDatabase database = dbHelper.getWritableDatabase();
+        final InventoryStatements statements = new InventoryStatements(dbHelper,
+                new InventoryStatements.SupplierListener() {
+                    @Override
+                    public void onSupplierAdded(long id) {
+                    }
+
+                    @Override
+                    public void onSupplierChanged(long id) {
+                    }
+
+                    @Override
+                    public void onSuppliersChanged() {
+                    }
+                });
+        fill(database, statements);
+
+        report.addTimed("read_alone_" + mode, read(database, new Random(42)));
+
+        // Sells random rows in batches until the reads are done
+        final Random writerRandom = new Random(7);
+        final Latencies batches = new Latencies();
+        final AtomicBoolean stop = new AtomicBoolean();
+        final Exception[] failure = new Exception[1];
+        Thread writer = new Thread("JournalModeBenchmark writer") {
+            @Override
+            public void run() {
+                try {
+                    while (!stop.get()) {
+                        long start = Latencies.start();
+                        database.beginTransactionNonExclusive();
+                        try {
+                            for (int i = 0; i < BATCH_SIZE; i++) {
+                                statements.sell(1 + writerRandom.nextInt(mRows), 1);
+                            }
+                            database.setTransactionSuccessful();
+                        } finally {
+                            database.endTransaction();
+                        }
+                        batches.stop(start);
+                    }
+                } catch (RuntimeException e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        writer.start();
+        Latencies reads;
+        try {
+            reads = read(database, new Random(42));
+        } finally {
+            stop.set(true);
+            writer.join();
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        report.addTimed("read_under_write_" + mode, reads);
+        report.addTimed("write_batch_" + mode, batches, (long) batches.count() * BATCH_SIZE);
+    }
+
+    /**
+     * Fill the empty table in one transaction; the rows get _IDs 1 to mRows.
+     */
+    private void fill(SQLiteDatabase database, InventoryStatements statements) {
+        database.beginTransactionNonExclusive();
+        try {
+            for (int i = 0; i < mRows; i++) {
+                Product product = new Product();
+                product.setName(ProviderBenchmark.productName(i));
+                product.setPrice((long) (100 + i % 10000));
+                product.setQuantity(QUANTITY);
+                product.setSupplierName("Supplier " + i % 100);
+                product.setSupplierPhoneNumber("555" + (1000 + i % 100));
+                product.setReorderThreshold(5);
+                statements.insert(product);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        assertEquals(mRows, DatabaseUtils.queryNumEntries(database, InventoryEntry.TABLE_NAME));
+    }
+
+    /**
+     * Read random rows, the way the editor loads one, on the calling thread.
+     */
+    private Latencies read(SQLiteDatabase database, Random random) {
+        Latencies latencies = new Latencies();
+        String[] args = new String[1];
+        for (int i = 0; i < READS; i++) {
+            args[0] = String.valueOf(1 + random.nextInt(mRows));
+            long start = Latencies.start();
+            Cursor cursor = database.rawQuery(SQL_QUERY_ROW, args);
+            try {
+                cursor.moveToFirst();
+                cursor.getString(1);
+            } finally {
+                cursor.close();
+            }
+            latencies.stop(start);
+        }
+        return latencies;
+    }
+}
@@ -0,0 +1,397 @@
+package com.cheyennelabs.inventoryapp.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.cheyennelabs.inventoryapp.data.BenchmarkReport.Latencies;
+import com.cheyennelabs.inventoryapp.data.InventoryContract.InventoryEntry;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.ParameterizedRobolectricTestRunner;
+import org.robolectric.Robolectric;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the throughput and latency of the provider's main operations on a table of each size
+ * in the {@code inventory.benchmark.sizes} system property, against the real SQLite that
+ * Robolectric runs on the JVM. The results go to {@code provider-<rows>.json}, see
+ * {@link BenchmarkReport}. Skipped unless the {@code inventory.benchmark} property is true; run
+ * with {@code ./gradlew testDebugUnitTest -Pbenchmark}.
+ * <p>
+ * Besides the operations the app uses, it compares setting a quantity through the statements
+ * {@link InventoryStatements} caches with doing the same through {@link SQLiteDatabase#update},
+ * which compiles its SQL every call, and the cursor window memory of the list projection with
+ * that of every column.
+ */
+@RunWith(ParameterizedRobolectricTestRunner.class)
+public class ProviderBenchmark {
+
+    /**
+     * Rows per bulk insert, as the importer sends them
+     */
+    private static final int CHUNK_SIZE = 500;
+
+    /**
+     * Runs of the operations that add or remove rows, which would change the table size
+     * noticeably if there were more of them
+     */
+    private static final int WRITES = 1000;
+
+    /**
+     * Runs of the operations that leave the table size alone
+     */
+    private static final int LOOKUPS = 10000;
+
+    /**
+     * Page size of the list, as the app asks for it
+     */
+    private static final int PAGE_SIZE = 50;
+
+    private static final int SUPPLIERS = 100;
+
+    /**
+     * Every product starts with this many, so the sales never run out
+     */
+    private static final int QUANTITY = 1000000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @ParameterizedRobolectricTestRunner.Parameters(name = "rows = {0}")
+    public static Collection<Object[]> sizes() {
+        List<Object[]> sizes = new ArrayList<>();
+        for (int rows : BenchmarkReport.intsProperty("inventory.benchmark.sizes", "1000,100000,1000000")) {
+            sizes.add(new Object[]{rows});
+        }
+        return sizes;
+    }
+
+    private final int mRows;
+
+    /**
+     * The same seed every run, so runs read and write the same rows
+     */
+    private final Random mRandom = new Random(42);
+
+    private InventoryProvider mProvider;
+
+    private InventoryDbHelper mDbHelper;
+
+    public ProviderBenchmark(int rows) {
+        mRows = rows;
+    }
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue("Benchmarks run with -Pbenchmark", BenchmarkReport.isEnabled());
+        mProvider = Robolectric.buildContentProvider(InventoryProvider.class)
+                .create(InventoryContract.CONTENT_AUTHORITY).get();
+        mDbHelper = new InventoryDbHelper(RuntimeEnvironment.application);
+
+        // Send every notification right away, so none is left waiting between timed calls
+        Bundle window = new Bundle();
+        window.putLong(InventoryContract.EXTRA_NOTIFY_WINDOW_MS, 0);
+        window.putLong(InventoryContract.EXTRA_NOTIFY_MAX_DELAY_MS, 0);
+        mProvider.call(InventoryContract.METHOD_NOTIFICATION_STATS, null, window);
+    }
+
+    @After
+    public void tearDown() {
+        if (mDbHelper != null) {
+            mDbHelper.close();
+        }
+    }
+
+    @Test
+    public void benchmarkProvider() throws IOException {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        BenchmarkReport report = new BenchmarkReport("provider", mRows,
+                DatabaseUtils.stringForQuery(database, "SELECT sqlite_version()", null));
+
+        // Filling the table is the bulk insert benchmark; the rows get _IDs 1 to mRows
+        Latencies bulkInsert = new Latencies();
+        for (int written = 0; written < mRows; written += CHUNK_SIZE) {
+            ContentValues[] chunk = new ContentValues[Math.min(CHUNK_SIZE, mRows - written)];
+            for (int i = 0; i < chunk.length; i++) {
+                chunk[i] = newProduct(written + i);
+            }
+            long start = Latencies.start();
+            mProvider.bulkInsert(InventoryEntry.CONTENT_URI, chunk);
+            bulkInsert.stop(start);
+        }
+        report.addTimed("bulk_insert", bulkInsert, mRows);
+        assertEquals(mRows, DatabaseUtils.queryNumEntries(database, InventoryEntry.TABLE_NAME));
+        checkSchema(report, database);
+
+        // These get _IDs mRows + 1 to mRows + WRITES, which the delete benchmark removes again
+        Latencies insert = new Latencies();
+        for (int i = 0; i < WRITES; i++) {
+            ContentValues values = newProduct(mRows + i);
+            long start = Latencies.start();
+            Uri uri = mProvider.insert(InventoryEntry.CONTENT_URI, values);
+            insert.stop(start);
+            assertNotNull(uri);
+        }
+        report.addTimed("insert", insert);
+
+        benchmarkQueries(report);
+        benchmarkUpdates(report);
+
+        Latencies delete = new Latencies();
+        for (int i = 1; i <= WRITES; i++) {
+            Uri uri = ContentUris.withAppendedId(InventoryEntry.CONTENT_URI, mRows + i);
+            long start = Latencies.start();
+            mProvider.delete(uri, null, null);
+            delete.stop(start);
+        }
+        report.addTimed("delete_by_id", delete);
+
+        report.write();
+    }
+
+    /**
+     * Check that the schema works on the SQLite the benchmark runs on, which is older than that
+     * of most devices: write-ahead logging and foreign keys are on, and the full text search and
+     * the low stock index answer queries. Whether the low stock index is partial, which takes
+     * SQLite 3.8.0, goes to the report.
+     */
+    private void checkSchema(BenchmarkReport report, SQLiteDatabase database) {
+        assertEquals("wal", DatabaseUtils.stringForQuery(database, "PRAGMA journal_mode", null).toLowerCase(Locale.US));
+        assertEquals(1, DatabaseUtils.longForQuery(database, "PRAGMA foreign_keys", null));
+
+        Uri search = InventoryEntry.SEARCH_URI.buildUpon()
+                .appendQueryParameter(InventoryContract.QUERY_PARAMETER_SEARCH, productName(mRows - 1))
+                .build();
+        Cursor cursor = mProvider.query(search, InventoryEntry.LIST_PROJECTION, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(mRows, cursor.getLong(0));
+        } finally {
+            cursor.close();
+        }
+
+        cursor = mProvider.query(InventoryEntry.LOW_STOCK_URI, InventoryEntry.LIST_PROJECTION, null, null, null);
+        try {
+            assertEquals(0, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+        String indexSql = DatabaseUtils.stringForQuery(database,
+                "SELECT sql FROM sqlite_master WHERE name = 'inventory_low_stock_index'", null);
+        report.addValue("low_stock_index_partial", "flag", indexSql.contains(" WHERE ") ? 1 : 0);
+    }
+
+    private void benchmarkQueries(BenchmarkReport report) {
+        // The editor's query, which the row cache may answer
+        Bundle cacheBefore = mProvider.call(InventoryContract.METHOD_ROW_CACHE_STATS, null, null);
+        Latencies queryById = new Latencies();
+        for (int i = 0; i < LOOKUPS; i++) {
+            Uri uri = ContentUris.withAppendedId(InventoryEntry.CONTENT_URI, randomId());
+            long start = Latencies.start();
+            Cursor cursor = mProvider.query(uri, InventoryRowCache.COLUMNS, null, null, null);
+            cursor.moveToFirst();
+            cursor.close();
+            queryById.stop(start);
+        }
+        report.addTimed("query_by_id", queryById);
+        Bundle cacheAfter = mProvider.call(InventoryContract.METHOD_ROW_CACHE_STATS, null, null);
+        report.addValue("query_by_id_cache_hits", "count",
+                cacheAfter.getInt(InventoryContract.EXTRA_CACHE_HITS)
+                        - cacheBefore.getInt(InventoryContract.EXTRA_CACHE_HITS));
+
+        // The whole list at once, read the way the list adapter reads it, once with the list
+        // columns and once with every column for comparison
+        int runs = Math.max(3, Math.min(20, 10000000 / mRows));
+        long[] windowBytes = new long[1];
+        report.addTimed("query_list", readAll(InventoryEntry.LIST_URI, InventoryEntry.LIST_PROJECTION,
+                runs, windowBytes), (long) runs * mRows);
+        report.addValue("query_list_window", "bytes", windowBytes[0]);
+        report.addTimed("query_all_columns", readAll(InventoryEntry.CONTENT_URI, null, runs, windowBytes),
+                (long) runs * mRows);
+        report.addValue("query_all_columns_window", "bytes", windowBytes[0]);
+
+        // One page of the list, starting at a random row
+        Latencies page = new Latencies();
+        for (int i = 0; i < LOOKUPS; i++) {
+            long id = randomId();
+            Uri uri = InventoryEntry.LIST_URI.buildUpon()
+                    .appendQueryParameter(InventoryContract.QUERY_PARAMETER_LIMIT, String.valueOf(PAGE_SIZE))
+                    .appendQueryParameter(InventoryContract.QUERY_PARAMETER_AFTER_PRODUCT, productName(id - 1))
+                    .appendQueryParameter(InventoryContract.QUERY_PARAMETER_AFTER_ID, String.valueOf(id))
+                    .build();
+            long start = Latencies.start();
+            Cursor cursor = mProvider.query(uri, InventoryEntry.LIST_PROJECTION, null, null, null);
+            while (cursor.moveToNext()) {
+                cursor.getLong(0);
+            }
+            cursor.close();
+            page.stop(start);
+        }
+        report.addTimed("query_list_page", page);
+    }
+
+    /**
+     * Query the URI the given number of times and read every value of every row. Return the
+     * latencies, and the estimated window memory of one run in the array.
+     */
+    private Latencies readAll(Uri uri, String[] projection, int runs, long[] windowBytes) {
+        Latencies latencies = new Latencies();
+        for (int run = 0; run < runs; run++) {
+            long start = Latencies.start();
+            Cursor cursor = mProvider.query(uri, projection, null, null, null);
+            int columns = cursor.getColumnCount();
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < columns; i++) {
+                    cursor.getString(i);
+                }
+            }
+            latencies.stop(start);
+            if (run == 0) {
+                windowBytes[0] = estimateWindowBytes(cursor);
+            }
+            cursor.close();
+        }
+        return latencies;
+    }
+
+    private void benchmarkUpdates(BenchmarkReport report) {
+        Latencies sell = new Latencies();
+        for (int i = 0; i < LOOKUPS; i++) {
+            String id = String.valueOf(randomId());
+            long start = Latencies.start();
+            mProvider.call(InventoryContract.METHOD_SELL, id, null);
+            sell.stop(start);
+        }
+        report.addTimed("sell", sell);
+
+        Latencies setQuantity = new Latencies();
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < LOOKUPS; i++) {
+            Uri uri = ContentUris.withAppendedId(InventoryEntry.CONTENT_URI, randomId());
+            values.put(InventoryEntry.COLUMN_INVENTORY_QUANTITY, QUANTITY + i);
+            long start = Latencies.start();
+            mProvider.update(uri, values, null, null);
+            setQuantity.stop(start);
+        }
+        report.addTimed("update_quantity", setQuantity);
+
+        // The same quantity change with its ledger entry, first through the statements the
+        // provider caches, then through the very same SQL compiled again on every call
+        InventoryStatements statements = new InventoryStatements(mDbHelper,
+                new InventoryStatements.SupplierListener() {
+                    @Override
+                    public void onSupplierAdded(long id) {
+                    }
+
+                    @Override
+                    public void onSupplierChanged(long id) {
+                    }
+
+                    @Override
+                    public void onSuppliersChanged() {
+                    }
+                });
+        Latencies cached = new Latencies();
+        for (int i = 0; i < LOOKUPS; i++) {
+            long id = randomId();
+            long start = Latencies.start();
+            statements.setQuantity(id, QUANTITY + i);
+            cached.stop(start);
+        }
+        report.addTimed("statement_cached", cached);
+
+        Latencies compiled = new Latencies();
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        for (int i = 0; i < LOOKUPS; i++) {
+            long id = randomId();
+            int quantity = QUANTITY + LOOKUPS + i;
+            long start = Latencies.start();
+            database.beginTransactionNonExclusive();
+            try {
+                SQLiteStatement change = database.compileStatement(InventoryStatements.SQL_INSERT_CHANGE_BY_ID);
+                change.bindLong(1, quantity);
+                change.bindLong(2, id);
+                change.executeInsert();
+                change.close();
+                SQLiteStatement update = database.compileStatement(InventoryStatements.SQL_SET_QUANTITY);
+                update.bindLong(1, quantity);
+                update.bindLong(2, id);
+                update.executeUpdateDelete();
+                update.close();
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+            compiled.stop(start);
+        }
+        report.addTimed("statement_compiled_per_call", compiled);
+    }
+
+    /**
+     * Estimate the memory a CursorWindow on a device takes for every row of the cursor: a 4 byte
+     * offset per row, a 16 byte slot per field, and each string in UTF-8 with a terminating zero.
+     * Robolectric keeps its rows differently, so the real window cannot be measured here.
+     */
+    private static long estimateWindowBytes(Cursor cursor) {
+        int columns = cursor.getColumnCount();
+        long bytes = 0;
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            bytes += 4 + 16 * columns;
+            for (int i = 0; i < columns; i++) {
+                if (cursor.getType(i) == Cursor.FIELD_TYPE_STRING) {
+                    bytes += cursor.getString(i).getBytes(UTF_8).length + 1;
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Return the _ID of a random row of the filled table.
+     */
+    private long randomId() {
+        return 1 + mRandom.nextInt(mRows);
+    }
+
+    /**
+     * Product names sort in the order they were added, so a page after a row's name starts at
+     * the next row.
+     */
+    static String productName(long index) {
+        return String.format(Locale.US, "Product %07d", index);
+    }
+
+    static ContentValues newProduct(int index) {
+        ContentValues values = new ContentValues();
+        values.put(InventoryEntry.COLUMN_INVENTORY_PRODUCT, productName(index));
+        values.put(InventoryEntry.COLUMN_INVENTORY_PRICE, 100 + index % 10000);
+        values.put(InventoryEntry.COLUMN_INVENTORY_QUANTITY, QUANTITY);
+        // Each supplier keeps one phone number, so no insert changes a supplier
+        values.put(InventoryEntry.COLUMN_INVENTORY_SUPPLIERNAME, "Supplier " + index % SUPPLIERS);
+        values.put(InventoryEntry.COLUMN_INVENTORY_SUPPLIERPHONENUMBER, "555" + (1000 + index % SUPPLIERS));
+        values.put(InventoryEntry.COLUMN_INVENTORY_REORDER_THRESHOLD, 5);
+        return values;
+    }
+}
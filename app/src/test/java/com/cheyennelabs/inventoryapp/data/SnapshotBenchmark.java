@@ -0,0 +1,149 @@
+package com.cheyennelabs.inventoryapp.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+
+import com.cheyennelabs.inventoryapp.data.BenchmarkReport.Latencies;
+import com.cheyennelabs.inventoryapp.data.InventoryContract.InventoryEntry;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares backing up and restoring the inventory as a binary snapshot with doing the same
+ * through a CSV export and import, on a table with the number of rows in the
+ * {@code inventory.benchmark.snapshotRows} system property (500,000 by default). The results go
+ * to {@code snapshot-<rows>.json}, see {@link BenchmarkReport}. Skipped unless the
+ * {@code inventory.benchmark} property is true.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SnapshotBenchmark {
+
+    private static final int RUNS = 3;
+
+    private static final int CHUNK_SIZE = 500;
+
+    private InventoryProvider mProvider;
+
+    private InventoryDbHelper mDbHelper;
+
+    private int mRows;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue("Benchmarks run with -Pbenchmark", BenchmarkReport.isEnabled());
+        mRows = BenchmarkReport.intsProperty("inventory.benchmark.snapshotRows", "500000")[0];
+        mProvider = Robolectric.buildContentProvider(InventoryProvider.class)
+                .create(InventoryContract.CONTENT_AUTHORITY).get();
+        mDbHelper = new InventoryDbHelper(RuntimeEnvironment.application);
+
+        Bundle window = new Bundle();
+        window.putLong(InventoryContract.EXTRA_NOTIFY_WINDOW_MS, 0);
+        window.putLong(InventoryContract.EXTRA_NOTIFY_MAX_DELAY_MS, 0);
+        mProvider.call(InventoryContract.METHOD_NOTIFICATION_STATS, null, window);
+    }
+
+    @After
+    public void tearDown() {
+        if (mDbHelper != null) {
+            mDbHelper.close();
+        }
+    }
+
+    @Test
+    public void benchmarkSnapshotAgainstCsv() throws IOException {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        BenchmarkReport report = new BenchmarkReport("snapshot", mRows,
+                DatabaseUtils.stringForQuery(database, "SELECT sqlite_version()", null));
+        for (int written = 0; written < mRows; written += CHUNK_SIZE) {
+            ContentValues[] chunk = new ContentValues[Math.min(CHUNK_SIZE, mRows - written)];
+            for (int i = 0; i < chunk.length; i++) {
+                chunk[i] = ProviderBenchmark.newProduct(written + i);
+            }
+            mProvider.bulkInsert(InventoryEntry.CONTENT_URI, chunk);
+        }
+
+        File dir = RuntimeEnvironment.application.getCacheDir();
+        File snapshot = new File(dir, "inventory.snapshot");
+        File csv = new File(dir, "inventory.csv");
+
+        Latencies saveSnapshot = new Latencies();
+        for (int run = 0; run < RUNS; run++) {
+            long start = Latencies.start();
+            mProvider.call(InventoryContract.METHOD_SAVE_SNAPSHOT, snapshot.getAbsolutePath(), null);
+            saveSnapshot.stop(start);
+        }
+        report.addTimed("snapshot_write", saveSnapshot, (long) RUNS * mRows);
+        report.addValue("snapshot_file", "bytes", snapshot.length());
+
+        // The same writer the export URI hands its pipe to, writing to a file instead
+        InventoryExporter exporter = new InventoryExporter(mDbHelper);
+        Latencies exportCsv = new Latencies();
+        for (int run = 0; run < RUNS; run++) {
+            csv.delete();
+            ParcelFileDescriptor output = ParcelFileDescriptor.open(csv,
+                    ParcelFileDescriptor.MODE_CREATE | ParcelFileDescriptor.MODE_WRITE_ONLY);
+            long start = Latencies.start();
+            exporter.writeDataToPipe(output, InventoryEntry.EXPORT_URI, InventoryEntry.EXPORT_TYPE_CSV, null, null);
+            exportCsv.stop(start);
+            output.close();
+        }
+        report.addTimed("csv_export", exportCsv, (long) RUNS * mRows);
+        report.addValue("csv_file", "bytes", csv.length());
+
+        Latencies restoreSnapshot = new Latencies();
+        for (int run = 0; run < RUNS; run++) {
+            long start = Latencies.start();
+            mProvider.call(InventoryContract.METHOD_RESTORE_SNAPSHOT, snapshot.getAbsolutePath(), null);
+            restoreSnapshot.stop(start);
+        }
+        report.addTimed("snapshot_restore", restoreSnapshot, (long) RUNS * mRows);
+        assertEquals(mRows, DatabaseUtils.queryNumEntries(database, InventoryEntry.TABLE_NAME));
+
+        // A CSV restore is an import into an empty table; emptying it is not timed
+        Latencies importCsv = new Latencies();
+        InventoryImporter.Listener listener = new InventoryImporter.Listener() {
+            @Override
+            public void onProgress(long bytesRead, int imported, int rejected) {
+            }
+
+            @Override
+            public void onRowRejected(int line, String reason) {
+                throw new AssertionError("Line " + line + " was rejected: " + reason);
+            }
+        };
+        for (int run = 0; run < RUNS; run++) {
+            mProvider.delete(InventoryEntry.CONTENT_URI, null, null);
+            InputStream in = new BufferedInputStream(new FileInputStream(csv));
+            try {
+                InventoryImporter importer = new InventoryImporter(RuntimeEnvironment.application.getContentResolver());
+                long start = Latencies.start();
+                importer.importCsv(in, listener);
+                importCsv.stop(start);
+            } finally {
+                in.close();
+            }
+        }
+        report.addTimed("csv_import", importCsv, (long) RUNS * mRows);
+        assertEquals(mRows, DatabaseUtils.queryNumEntries(database, InventoryEntry.TABLE_NAME));
+
+        report.write();
+    }
+}
@@ -0,0 +1,42 @@
+package com.cheyennelabs.inventoryapp.core;
+
+/**
+ * What became of a batch of queued sales, see {@link InventoryRepository#applySales}.
+ */
+public final class AppliedSales {
+
+    private final long mWatermark;
+
+    private final long[] mSoldIds;
+
+    private final long[] mRejectedIds;
+
+    public AppliedSales(long watermark, long[] soldIds, long[] rejectedIds) {
+        mWatermark = watermark;
+        mSoldIds = soldIds;
+        mRejectedIds = rejectedIds;
+    }
+
+    /**
+     * Return the sequence number of the last sale that has been applied, by this batch or an
+     * earlier one.
+     */
+    public long getWatermark() {
+        return mWatermark;
+    }
+
+    /**
+     * Return the _IDs of the products this batch sold from, once for each sale.
+     */
+    public long[] getSoldIds() {
+        return mSoldIds;
+    }
+
+    /**
+     * Return the _IDs of the products of the sales that were dropped for lack of stock, once for
+     * each sale.
+     */
+    public long[] getRejectedIds() {
+        return mRejectedIds;
+    }
+}
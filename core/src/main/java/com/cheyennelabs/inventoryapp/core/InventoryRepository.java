@@ -0,0 +1,55 @@
+package com.cheyennelabs.inventoryapp.core;
+
+/**
+ * Where products are written. Every write takes values that already passed
+ * {@link ProductValidator}, and every change to a quantity is recorded in the stock ledger along
+ * with it. Reading is left to the platform, which has its own cursors for lists of products.
+ */
+public interface InventoryRepository {
+
+    /**
+     * Insert a new product. Return its _ID.
+     */
+    long insert(Product product);
+
+    /**
+     * Update the products with the same name and supplier name as the given one, or insert it if
+     * there are none. Return true if products were updated.
+     */
+    boolean upsert(Product product);
+
+    /**
+     * Update the product with the given _ID with the values that were set. Return the number of
+     * products updated.
+     */
+    int update(long id, Product product);
+
+    /**
+     * Update every product the selection picks with the values that were set. The selection is in
+     * the storage's own query language and may name the supplier's name and phone number. A
+     * supplier name moves the products to that supplier; a phone number without a name is
+     * written to the suppliers of the products, so it changes for every product of those
+     * suppliers. Return the number of products updated.
+     */
+    int update(Product product, String selection, String[] selectionArgs);
+
+    /**
+     * Sell the given number of items of the product with the given _ID, as long as there is
+     * enough stock. Return the quantity left, or {@link StockEngine#NOT_ENOUGH_STOCK} if nothing
+     * was sold.
+     */
+    int sell(long id, int count);
+
+    /**
+     * Apply a batch of queued sales at once, one entry of the arrays per sale. Sales at or below
+     * the sales watermark were applied by an earlier batch and are skipped; a sale without enough
+     * stock is dropped. The watermark moves to the last sale of the batch along with the sales,
+     * so a batch that is sent again is never applied twice. Empty arrays only read the watermark.
+     */
+    AppliedSales applySales(long[] sequences, long[] ids, int[] counts);
+
+    /**
+     * Delete the product with the given _ID. Return the number of products deleted.
+     */
+    int delete(long id);
+}
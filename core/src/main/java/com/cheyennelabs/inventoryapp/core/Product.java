@@ -0,0 +1,169 @@
+package com.cheyennelabs.inventoryapp.core;
+
+/**
+ * The values of a product, or of the part of a product that a write changes. Each value
+ * remembers whether it was set at all, so a new product can tell a missing value (which gets its
+ * default) from one that was set to null, and an update only touches the values it sets.
+ * <p>
+ * The price is in whole cents and the quantity in items.
+ */
+public final class Product {
+
+    /**
+     * Reorder threshold of a product that doesn't set its own.
+     */
+    public static final int DEFAULT_REORDER_THRESHOLD = 5;
+
+    private static final int NAME = 1;
+    private static final int PRICE = 1 << 1;
+    private static final int QUANTITY = 1 << 2;
+    private static final int SUPPLIER_NAME = 1 << 3;
+    private static final int SUPPLIER_PHONE_NUMBER = 1 << 4;
+    private static final int REORDER_THRESHOLD = 1 << 5;
+    private static final int ALL = NAME | PRICE | QUANTITY | SUPPLIER_NAME | SUPPLIER_PHONE_NUMBER
+            | REORDER_THRESHOLD;
+
+    /**
+     * Which of the values were set
+     */
+    private int mSet;
+
+    private String mName;
+
+    private Long mPrice;
+
+    private Integer mQuantity;
+
+    private String mSupplierName;
+
+    private String mSupplierPhoneNumber;
+
+    private Integer mReorderThreshold;
+
+    public String getName() {
+        return mName;
+    }
+
+    public void setName(String name) {
+        mName = name;
+        mSet |= NAME;
+    }
+
+    public boolean hasName() {
+        return (mSet & NAME) != 0;
+    }
+
+    public Long getPrice() {
+        return mPrice;
+    }
+
+    public void setPrice(Long price) {
+        mPrice = price;
+        mSet |= PRICE;
+    }
+
+    public boolean hasPrice() {
+        return (mSet & PRICE) != 0;
+    }
+
+    public Integer getQuantity() {
+        return mQuantity;
+    }
+
+    public void setQuantity(Integer quantity) {
+        mQuantity = quantity;
+        mSet |= QUANTITY;
+    }
+
+    public boolean hasQuantity() {
+        return (mSet & QUANTITY) != 0;
+    }
+
+    public String getSupplierName() {
+        return mSupplierName;
+    }
+
+    public void setSupplierName(String supplierName) {
+        mSupplierName = supplierName;
+        mSet |= SUPPLIER_NAME;
+    }
+
+    public boolean hasSupplierName() {
+        return (mSet & SUPPLIER_NAME) != 0;
+    }
+
+    public String getSupplierPhoneNumber() {
+        return mSupplierPhoneNumber;
+    }
+
+    public void setSupplierPhoneNumber(String supplierPhoneNumber) {
+        mSupplierPhoneNumber = supplierPhoneNumber;
+        mSet |= SUPPLIER_PHONE_NUMBER;
+    }
+
+    public boolean hasSupplierPhoneNumber() {
+        return (mSet & SUPPLIER_PHONE_NUMBER) != 0;
+    }
+
+    public Integer getReorderThreshold() {
+        return mReorderThreshold;
+    }
+
+    public void setReorderThreshold(Integer reorderThreshold) {
+        mReorderThreshold = reorderThreshold;
+        mSet |= REORDER_THRESHOLD;
+    }
+
+    public boolean hasReorderThreshold() {
+        return (mSet & REORDER_THRESHOLD) != 0;
+    }
+
+    /**
+     * Return the price, or 0 if there is none.
+     */
+    public long priceOrDefault() {
+        return mPrice == null ? 0 : mPrice;
+    }
+
+    /**
+     * Return the quantity, or 0 if there is none.
+     */
+    public int quantityOrDefault() {
+        return mQuantity == null ? 0 : mQuantity;
+    }
+
+    /**
+     * Return the reorder threshold, or {@link #DEFAULT_REORDER_THRESHOLD} if there is none.
+     */
+    public int reorderThresholdOrDefault() {
+        return mReorderThreshold == null ? DEFAULT_REORDER_THRESHOLD : mReorderThreshold;
+    }
+
+    /**
+     * Return the number of values that were set.
+     */
+    public int size() {
+        return Integer.bitCount(mSet);
+    }
+
+    /**
+     * Return true if the quantity is the only value that was set.
+     */
+    public boolean isQuantityOnly() {
+        return mSet == QUANTITY;
+    }
+
+    /**
+     * Return true if every value was set.
+     */
+    public boolean isComplete() {
+        return mSet == ALL;
+    }
+
+    @Override
+    public String toString() {
+        return "Product{name=" + mName + ", price=" + mPrice + ", quantity=" + mQuantity
+                + ", supplierName=" + mSupplierName + ", supplierPhoneNumber=" + mSupplierPhoneNumber
+                + ", reorderThreshold=" + mReorderThreshold + "}";
+    }
+}
@@ -0,0 +1,84 @@
+package com.cheyennelabs.inventoryapp.core;
+
+/**
+ * Checks the values of a product before it is written. Each check throws an
+ * {@link IllegalArgumentException} describing the first value that is missing or invalid.
+ */
+public final class ProductValidator {
+
+    private ProductValidator() {
+    }
+
+    /**
+     * Check that a new product has every value it needs. A missing price, quantity or reorder
+     * threshold gets its default, but a name and supplier are required.
+     */
+    public static void validateNew(Product product) {
+        if (product.getName() == null) {
+            throw new IllegalArgumentException("Product requires a name");
+        }
+
+        // A missing price is 0
+        Long price = product.getPrice();
+        if ((price != null) && (price < 0)) {
+            throw new IllegalArgumentException("Product requires a price");
+        }
+
+        if (product.getSupplierName() == null) {
+            throw new IllegalArgumentException("Product requires a Supplier Name");
+        }
+
+        if (product.getSupplierPhoneNumber() == null) {
+            throw new IllegalArgumentException("Product requires a Supplier Phone Number");
+        }
+
+        Integer quantity = product.getQuantity();
+        if ((quantity != null) && (quantity < 0)) {
+            throw new IllegalArgumentException("Product requires a quantity");
+        }
+
+        Integer reorderThreshold = product.getReorderThreshold();
+        if ((reorderThreshold != null) && (reorderThreshold < 0)) {
+            throw new IllegalArgumentException("Product requires a reorder threshold");
+        }
+    }
+
+    /**
+     * Check the values of an update. Only the values that were set are checked, and none of them
+     * may be null.
+     */
+    public static void validateUpdate(Product product) {
+        if (product.hasName() && product.getName() == null) {
+            throw new IllegalArgumentException("Product requires a name");
+        }
+
+        if (product.hasPrice()) {
+            Long price = product.getPrice();
+            if ((price == null) || (price < 0)) {
+                throw new IllegalArgumentException("Product requires a price");
+            }
+        }
+
+        if (product.hasSupplierName() && product.getSupplierName() == null) {
+            throw new IllegalArgumentException("Product requires a supplier name");
+        }
+
+        if (product.hasSupplierPhoneNumber() && product.getSupplierPhoneNumber() == null) {
+            throw new IllegalArgumentException("Product requires a Supplier Phone Number");
+        }
+
+        if (product.hasQuantity()) {
+            Integer quantity = product.getQuantity();
+            if ((quantity == null) || (quantity < 0)) {
+                throw new IllegalArgumentException("Product requires a Quantity");
+            }
+        }
+
+        if (product.hasReorderThreshold()) {
+            Integer reorderThreshold = product.getReorderThreshold();
+            if ((reorderThreshold == null) || (reorderThreshold < 0)) {
+                throw new IllegalArgumentException("Product requires a reorder threshold");
+            }
+        }
+    }
+}
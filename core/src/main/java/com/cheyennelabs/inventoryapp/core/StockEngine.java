@@ -0,0 +1,70 @@
+package com.cheyennelabs.inventoryapp.core;
+
+/**
+ * The rules for changing the stock of a product: how a sale and a step of the quantity change it,
+ * and the kinds of movement the stock ledger records. The database applies
+ * the same rules in SQL, so a sale there never depends on a quantity read earlier.
+ */
+public final class StockEngine {
+
+    /**
+     * Returned instead of a quantity when there is not enough stock for the change.
+     */
+    public static final int NOT_ENOUGH_STOCK = -1;
+
+    /**
+     * The sum of older movements that were compacted, so the movements of an item always add up
+     * to its quantity.
+     */
+    public static final int KIND_CHECKPOINT = 0;
+
+    /**
+     * Items sold.
+     */
+    public static final int KIND_SALE = 1;
+
+    /**
+     * Stock added other than by a sale being undone.
+     */
+    public static final int KIND_RESTOCK = 2;
+
+    /**
+     * Stock taken away other than by a sale.
+     */
+    public static final int KIND_ADJUSTMENT = 3;
+
+    private StockEngine() {
+    }
+
+    /**
+     * Check the number of items in a sale. Throws an {@link IllegalArgumentException} unless it
+     * is positive.
+     */
+    public static void checkSale(int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Sale requires a positive count");
+        }
+    }
+
+    /**
+     * Return the quantity left after selling the given number of items from the given quantity,
+     * or {@link #NOT_ENOUGH_STOCK} if there are not that many.
+     */
+    public static int sell(int quantity, int count) {
+        checkSale(count);
+        return quantity >= count ? quantity - count : NOT_ENOUGH_STOCK;
+    }
+
+    /**
+     * Return the quantity after adding the given step to it, as the editor's buttons do, or
+     * {@link #NOT_ENOUGH_STOCK} if it would go negative. It stops at the largest quantity rather
+     * than overflowing.
+     */
+    public static int step(int quantity, int step) {
+        long stepped = (long) quantity + step;
+        if (stepped < 0) {
+            return NOT_ENOUGH_STOCK;
+        }
+        return (int) Math.min(stepped, Integer.MAX_VALUE);
+    }
+}
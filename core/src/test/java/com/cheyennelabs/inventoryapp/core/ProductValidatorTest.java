@@ -0,0 +1,85 @@
+package com.cheyennelabs.inventoryapp.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The validation rules, on the plain JVM.
+ */
+public class ProductValidatorTest {
+
+    private static Product newProduct() {
+        Product product = new Product();
+        product.setName("Widget");
+        product.setPrice(1250L);
+        product.setQuantity(3);
+        product.setSupplierName("Acme");
+        product.setSupplierPhoneNumber("555-0100");
+        product.setReorderThreshold(5);
+        return product;
+    }
+
+    private static void assertRejected(Product product, boolean isNew, String message) {
+        try {
+            if (isNew) {
+                ProductValidator.validateNew(product);
+            } else {
+                ProductValidator.validateUpdate(product);
+            }
+            fail("Expected " + product + " to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+
+    @Test
+    public void newProductUsesDefaults() {
+        Product product = new Product();
+        product.setName("Widget");
+        product.setSupplierName("Acme");
+        product.setSupplierPhoneNumber("555-0100");
+        ProductValidator.validateNew(product);
+
+        assertEquals(0, product.priceOrDefault());
+        assertEquals(0, product.quantityOrDefault());
+        assertEquals(Product.DEFAULT_REORDER_THRESHOLD, product.reorderThresholdOrDefault());
+    }
+
+    @Test
+    public void newProductNeedsNameAndSupplier() {
+        Product product = newProduct();
+        product.setName(null);
+        assertRejected(product, true, "Product requires a name");
+
+        product = newProduct();
+        product.setSupplierPhoneNumber(null);
+        assertRejected(product, true, "Product requires a Supplier Phone Number");
+
+        product = newProduct();
+        product.setPrice(-1L);
+        assertRejected(product, true, "Product requires a price");
+    }
+
+    @Test
+    public void updateChecksOnlyTheValuesItSets() {
+        Product change = new Product();
+        change.setQuantity(0);
+        ProductValidator.validateUpdate(change);
+        assertTrue(change.isQuantityOnly());
+        assertFalse(change.isComplete());
+
+        change.setQuantity(null);
+        assertRejected(change, false, "Product requires a Quantity");
+
+        change = new Product();
+        change.setPrice(null);
+        assertRejected(change, false, "Product requires a price");
+
+        assertTrue(newProduct().isComplete());
+        assertEquals(6, newProduct().size());
+    }
+}
@@ -0,0 +1,42 @@
+package com.cheyennelabs.inventoryapp.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * The stock rules, on the plain JVM.
+ */
+public class StockEngineTest {
+
+    @Test
+    public void sellNeverTakesMoreThanThereIs() {
+        assertEquals(2, StockEngine.sell(3, 1));
+        assertEquals(0, StockEngine.sell(3, 3));
+        assertEquals(StockEngine.NOT_ENOUGH_STOCK, StockEngine.sell(3, 4));
+        assertEquals(StockEngine.NOT_ENOUGH_STOCK, StockEngine.sell(0, 1));
+    }
+
+    @Test
+    public void saleNeedsAPositiveCount() {
+        StockEngine.checkSale(1);
+        for (int count : new int[]{0, -1, Integer.MIN_VALUE}) {
+            try {
+                StockEngine.sell(3, count);
+                fail("A sale of " + count + " was allowed");
+            } catch (IllegalArgumentException e) {
+                assertEquals("Sale requires a positive count", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void stepStaysInRange() {
+        assertEquals(1, StockEngine.step(0, 1));
+        assertEquals(0, StockEngine.step(1, -1));
+        assertEquals(StockEngine.NOT_ENOUGH_STOCK, StockEngine.step(0, -1));
+        assertEquals(Integer.MAX_VALUE, StockEngine.step(Integer.MAX_VALUE, 1));
+        assertEquals(Integer.MAX_VALUE - 1, StockEngine.step(Integer.MAX_VALUE, -1));
+    }
+}